@@ -1,31 +1,52 @@
 package fasterDB;
 
+import fasterDB.store.PageStore;
 import fasterDB.util.KeyLocker;
 import fasterDB.util.PageIdAllocator;
 import fasterDB.vo.Config;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Created by zn on 15/5/3.
  */
 public class Context {
+    private static final int MAX_CACHED_RECORD_BYTES = 1 << 20;
+
     private final Config config;
 
-    private final PageIdAllocator allocator;                          // pageId allocator
+    private final PageIdAllocator[] allocators;                       // pageId allocator of every page class
     private final KeyLocker keyLocker;
     private final LinkedBlockingQueue<byte[]> pageCache;        // used for MappedStorage
     private final ThreadLocal<byte[]> keyBytesShortCache;       // used for keyBytes shortToByte and byteToShort
     private final ThreadLocal<byte[]> keyBytesIntCache;         // used for keyBytes intToByte and byteToInt
     private final ThreadLocal<byte[]> keyBytesLongCache;        // used for keyBytes longToByte and byteToLong
-    private final ThreadLocal<byte[]> keyLengthBytesIntCache;   // used for keyLengthBytes intToByte and byteToInt
-    private final ThreadLocal<byte[]> oneByteArrayCache;        // used for byte[] bytes = new byte[1]
+    private final ThreadLocal<byte[]> keyBytesCache;            // used for encoding keys of any type
+    private final ThreadLocal<int[]> pageIdsCache;              // used for the candidates of the off-heap index
+    private final ThreadLocal<byte[]> recordCache;              // used for the pages of a record, grown on demand
 
     public Context(Config config, int pageIdInitialValue) throws IOException {
+        this(config, initialValues(config, pageIdInitialValue), null);
+    }
+
+    /**
+     * @param config
+     * @param pageIdInitialValues the first new local id of every page class
+     * @param freePageBits the free local ids of every page class below its initial value, one bit per page, may be null
+     * @throws IOException
+     */
+    public Context(Config config, int[] pageIdInitialValues, long[][] freePageBits) throws IOException {
         this.config = config;
-        this.allocator = new PageIdAllocator(pageIdInitialValue);
-        this.keyLocker = new KeyLocker(config.getLockPath(), config.getLockFile());
+        int classCount = config.getPageSizeClasses() == null ? 1 : config.getPageSizeClasses().length;
+        this.allocators = new PageIdAllocator[classCount];
+        for (int i = 0; i < classCount; i++) {
+            allocators[i] = new PageIdAllocator(pageIdInitialValues[i],
+                    freePageBits == null ? null : freePageBits[i], config.getPageIdMagazineSize(),
+                    config.getPageIdPolicy() == Config.PageIdPolicy.LOWEST);
+        }
+        this.keyLocker = new KeyLocker(config.getKeyLockStripes());
         int pageCacheSize = config.getPageCacheSize();
         if (pageCacheSize > 0) {
             this.pageCache = new LinkedBlockingQueue<byte[]>(pageCacheSize);
@@ -47,18 +68,29 @@ public class Context {
                 return new byte[8];
             }
         };
-        this.keyLengthBytesIntCache = new ThreadLocal<byte[]>() {
+        this.keyBytesCache = new ThreadLocal<byte[]>() {
             protected byte[] initialValue() {
-                return new byte[4];
+                return new byte[Record.MAX_KEY_LENGTH];
+            }
+        };
+        this.pageIdsCache = new ThreadLocal<int[]>() {
+            protected int[] initialValue() {
+                return new int[8];
             }
         };
-        this.oneByteArrayCache = new ThreadLocal<byte[]>() {
+        this.recordCache = new ThreadLocal<byte[]>() {
             protected byte[] initialValue() {
-                return new byte[1];
+                return new byte[0];
             }
         };
     }
 
+    private static int[] initialValues(Config config, int pageIdInitialValue) {
+        int[] values = new int[config.getPageSizeClasses() == null ? 1 : config.getPageSizeClasses().length];
+        Arrays.fill(values, pageIdInitialValue);
+        return values;
+    }
+
     public Config getConfig() {
         return config;
     }
@@ -79,16 +111,137 @@ public class Context {
         this.pageCache.offer(pageCache);
     }
 
-    public int[] borrowPageIds(int count) {
-        return allocator.borrowIds(count);
+    /**
+     * @param length
+     * @return a buffer of at least length bytes, records larger than MAX_CACHED_RECORD_BYTES get their own
+     */
+    public byte[] getRecordCache(int length) {
+        byte[] bytes = recordCache.get();
+        if (bytes.length >= length) {
+            return bytes;
+        }
+        bytes = new byte[length];
+        if (length <= MAX_CACHED_RECORD_BYTES) {
+            recordCache.set(bytes);
+        }
+        return bytes;
+    }
+
+    public int getPageClassCount() {
+        return allocators.length;
+    }
+
+    /**
+     * @param pageClass
+     * @param count
+     * @return page ids of the class
+     */
+    public int[] borrowPageIds(int pageClass, int count) {
+        int[] pageIds = allocators[pageClass].borrowIds(count);
+        if (allocators.length > 1 && pageIds != null) {
+            for (int i = 0; i < pageIds.length; i++) {
+                pageIds[i] = PageStore.pageIdOf(pageClass, pageIds[i], allocators.length);
+            }
+        }
+        return pageIds;
+    }
+
+    /**
+     * @param pageClass
+     * @param count
+     * @param below local ids of the class are below it
+     * @return page ids of the class, null if there are not enough free ids below the bound
+     */
+    public int[] borrowLowPageIds(int pageClass, int count, int below) {
+        int[] pageIds = allocators[pageClass].borrowLowIds(count, below);
+        if (allocators.length > 1 && pageIds != null) {
+            for (int i = 0; i < pageIds.length; i++) {
+                pageIds[i] = PageStore.pageIdOf(pageClass, pageIds[i], allocators.length);
+            }
+        }
+        return pageIds;
+    }
+
+    /**
+     * @param pageClass
+     * @return the free local ids of the class, after the ids cached for other threads were swept to them
+     */
+    public int sweepPageIds(int pageClass) {
+        allocators[pageClass].sweep();
+        return allocators[pageClass].freeCount();
+    }
+
+    /**
+     * Give up the free local ids of the class from a multiple of alignment on, see PageIdAllocator.truncate
+     * @return the first local id given up, the next new local id if none was
+     */
+    public int truncatePageIds(int pageClass, int alignment, PageIdAllocator.Truncation truncation) {
+        return allocators[pageClass].truncate(alignment, truncation);
     }
 
     public void returnPageIds(int[] pageIds) {
-        allocator.returnIds(pageIds);
+        if (pageIds == null) {
+            return;
+        }
+        for (int pageId : pageIds) {
+            returnPageId(pageId);
+        }
     }
 
     public void returnPageId(int pageId) {
-        allocator.returnId(pageId);
+        int pageClass = PageStore.classOf(pageId, allocators.length);
+        allocators[pageClass].returnId(PageStore.localIdOf(pageId, allocators.length));
+    }
+
+    /**
+     * @return the recycled page ids of every page class
+     */
+    public int[] getRecycledPageIds() {
+        if (allocators.length == 1) {
+            return allocators[0].recycledIds();
+        }
+        int[][] recycled = new int[allocators.length][];
+        int count = 0;
+        for (int i = 0; i < allocators.length; i++) {
+            recycled[i] = allocators[i].recycledIds();
+            count += recycled[i].length;
+        }
+        int[] pageIds = new int[count];
+        int index = 0;
+        for (int i = 0; i < allocators.length; i++) {
+            for (int localId : recycled[i]) {
+                pageIds[index++] = PageStore.pageIdOf(i, localId, allocators.length);
+            }
+        }
+        return pageIds;
+    }
+
+    /**
+     * @param pageClass
+     * @return the local id the next batch of new ids of the class starts with
+     */
+    public int getNextNewPageId(int pageClass) {
+        return allocators[pageClass].nextNewId();
+    }
+
+    public long getMultiPageBorrowCount() {
+        long count = 0;
+        for (PageIdAllocator allocator : allocators) {
+            count += allocator.getMultiPageBorrowCount();
+        }
+        return count;
+    }
+
+    public long getContiguousBorrowCount() {
+        long count = 0;
+        for (PageIdAllocator allocator : allocators) {
+            count += allocator.getContiguousBorrowCount();
+        }
+        return count;
+    }
+
+    public int[] getPageIdsCache() {
+        return pageIdsCache.get();
     }
 
     public byte[] getKeyBytesShortCache() {
@@ -103,19 +256,43 @@ public class Context {
         return keyBytesLongCache.get();
     }
 
-    public byte[] getKeyLengthBytesIntCache() {
-        return keyLengthBytesIntCache.get();
+    public byte[] getKeyBytesCache() {
+        return keyBytesCache.get();
     }
 
-    public byte[] getOneByteArrayCache() {
-        return oneByteArrayCache.get();
+    public void lock(Object key) {
+        keyLocker.lock(key);
+    }
+
+    public void unlock(Object key) {
+        keyLocker.unLock(key);
+    }
+
+    public void lockShared(Object key) {
+        keyLocker.lockShared(key);
+    }
+
+    public void unlockShared(Object key) {
+        keyLocker.unLockShared(key);
     }
 
-    public void lock(Object key) throws IOException {
+    public void lock(long key) {
         keyLocker.lock(key);
     }
 
-    public void unlock(Object key) throws IOException {
+    public void unlock(long key) {
         keyLocker.unLock(key);
     }
+
+    public void lockShared(long key) {
+        keyLocker.lockShared(key);
+    }
+
+    public void unlockShared(long key) {
+        keyLocker.unLockShared(key);
+    }
+
+    public KeyLocker getKeyLocker() {
+        return keyLocker;
+    }
 }
@@ -1,26 +1,45 @@
 package fasterDB;
 
-import com.google.common.cache.*;
+import fasterDB.cache.ValueCache;
+import fasterDB.index.HashIndex;
+import fasterDB.index.Index;
+import fasterDB.index.LongHashIndex;
+import fasterDB.index.LongIndex;
+import fasterDB.index.OffHeapIndex;
+import fasterDB.index.SkipListIndex;
+import fasterDB.store.Checkpoint;
+import fasterDB.store.HotKeyManifest;
 import fasterDB.store.LoggerWrapper;
-import fasterDB.store.MappedStorage;
+import fasterDB.store.PageStore;
+import fasterDB.store.Snapshot;
 import fasterDB.util.AtomicBitSet;
 import fasterDB.util.ByteUtil;
+import fasterDB.util.EpochBarrier;
 import fasterDB.util.NamedThreadFactory;
+import fasterDB.util.PageIdAllocator;
+import fasterDB.util.StringUtil;
 import fasterDB.vo.Config;
 import fasterDB.vo.InitializingBean;
 import fasterDB.vo.PageFaultException;
 import fasterDB.vo.Pair;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
+import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 import static fasterDB.Record.buildRecord;
 
@@ -29,33 +48,71 @@ import static fasterDB.Record.buildRecord;
  */
 public class DB<K, V> implements InitializingBean {
     private static final Logger logger = LoggerFactory.getLogger(DB.class);
+    private static final long MIN_WRITE_THROTTLE_NANOS = 1000;
+    private static final int OFF_HEAP_READ_RETRIES = 8;
+    private static final int MAX_COMPACTION_CANDIDATES = 1 << 16;     // records looked at by one pass of a class
 
     private final Config<V> config;
     private final long rollingThreshold;
     private final long writeBlockThreshold;
+    private final long maxWriteThrottleNanos;
     private final Lock rollingLock;
     private final Condition rollingGreen;
-    private final Condition rollingFinished;
 
     private Context context;
     private LoggerWrapper redoLog;
-    private MappedStorage mappedStorage;
-    private ConcurrentSkipListMap<K, Record> indexes;
-    private Cache<K, V> readCache;
-    private Cache<K, V> writeCache;
+    private PageStore pageStore;
+    private Index<K, Record> indexes;            // null when longIndexes or offHeapIndexes is used
+    private LongIndex<Record> longIndexes;       // the hash index of the integral key types
+    private OffHeapIndex offHeapIndexes;         // records are read back from their first page
+    private KeyAdapter keys;                      // the index dependent steps of the operations
+    private ValueCache<K, V> valueCache;          // values read and written, weighed by their encoded length
     private Thread rollingTask;
+    private Thread compactionTask;
+    private Thread writeBehindTask;
+    private Thread hotKeyManifestTask;
+    private Thread[] warmupTasks;
 
-    private volatile int lastPageId = -1;
     private final AtomicLong logBytes = new AtomicLong(0);
+    private final EpochBarrier epochBarrier = new EpochBarrier();
+    private volatile Queue<int[]> pendingFrees = new ConcurrentLinkedQueue<int[]>();   // pages freed since the last checkpoint
+    private volatile Queue<int[]> snapshotPages;    // records written or freed while a snapshot is taken, see writeSnapshot
+    private volatile boolean closing = false;
+    private volatile boolean checkpointRequested = false;
+    private volatile boolean truncateRequested = false;    // the next checkpoint gives up the free tail, see truncateTail
+    private volatile boolean tailRetired = false;          // the checkpoint after it cuts the tail off
+    private final LongAdder throttledWrites = new LongAdder();
+    private final LongAdder inPlaceUpdates = new LongAdder();
+    private final LongAdder freedPages = new LongAdder();
+    private volatile long freedPagesAtRoll = 0;        // getFreedPageCount when the last checkpoint took the pending frees
+    private final LongAdder relocatedRecords = new LongAdder();
+    private final LongAdder truncatedBytes = new LongAdder();
+    private final boolean inPlaceUpdate;            // only once the log record is durable, see Record.rewrite
+    private final boolean writeBehind;
+    private final int writeBehindBufferKV;
+    private final ConcurrentHashMap<K, byte[]> dirtyValues = new ConcurrentHashMap<K, byte[]>();  // logged, not yet in pages
+    private final LongAdder coalescedWrites = new LongAdder();
+    private final LongAdder materializedWrites = new LongAdder();
+    private final LongAdder writeThroughs = new LongAdder();
+    private volatile int warmupKeyCount = 0;
+    private final LongAdder warmedKeys = new LongAdder();
+    private volatile long warmupMillis = 0;             // -1 while the warm-up runs
+    private volatile double restoredHitRate = Double.NaN;   // of the cache before the restart, see HotKeyManifest
+    private volatile double recentHitRate = Double.NaN;     // of the cache since the manifest before the last one
+    private long manifestHits = 0;                      // written by the thread writing the manifest
+    private long manifestMisses = 0;
     private volatile boolean initialized = false;
 
     public DB(Config<V> config) {
         this.config = config;
         rollingThreshold = config.getRollingThreshold();
         writeBlockThreshold = config.getWriteBlockThreshold();
+        maxWriteThrottleNanos = TimeUnit.MICROSECONDS.toNanos(config.getMaxWriteThrottleMicros());
+        inPlaceUpdate = config.isInPlaceUpdate() && config.isLogWithFlush();
+        writeBehind = config.isWriteBehind();
+        writeBehindBufferKV = config.getWriteBehindBufferKV();
         rollingLock = new ReentrantLock();
         rollingGreen = rollingLock.newCondition();
-        rollingFinished = rollingLock.newCondition();
     }
 
     @Override
@@ -63,28 +120,104 @@ public class DB<K, V> implements InitializingBean {
         if (initialized) {
             return;
         }
-        readCache = CacheBuilder.newBuilder().maximumSize(config.getReadCacheKV())
-                .removalListener(new RemovalListener<K, V>() {
+        if (config.isCacheKVSet()) {
+            logger.warn("readCacheKV and writeCacheKV are ignored, the value cache is bounded by valueCacheBytes="
+                    + config.getValueCacheBytes());
+        }
+        valueCache = new ValueCache<K, V>(config.getValueCacheBytes(), config.isValueCacheAdmission(),
+                config.getOffHeapValueCacheBytes(),
+                Record.MAX_KEY_LENGTH, new ValueCache.Serializer<K, V>() {
+                    @Override
+                    public int encodeKey(K key, byte[] dst) {
+                        return DB.this.encodeKey(context, key, dst);
+                    }
+
                     @Override
-                    public void onRemoval(RemovalNotification<K, V> rn) {
+                    public byte[] encodeValue(V value) {
+                        return config.getValueCodec().toBytes(value);
                     }
-                }).build();
-        writeCache = CacheBuilder.newBuilder().maximumSize(config.getWriteCacheKV())
-                .removalListener(new RemovalListener<K, V>() {
+
                     @Override
-                    public void onRemoval(RemovalNotification<K, V> rn) {
+                    public V decodeValue(byte[] bytes) {
+                        return config.getValueCodec().toObject(bytes);
                     }
-                }).build();
+                });
 
         redoLog = new LoggerWrapper(config);
-        mappedStorage = new MappedStorage(config, false);
-        indexes = new ConcurrentSkipListMap<K, Record>();
-        mappedStorage.initialize();
+        pageStore = new PageStore(config, false);
+        createIndexes();
+        pageStore.initialize();
         rebuildIndexes();
-        context = new Context(config, lastPageId + 1);
+        checkpoint();
         rollingTask = new NamedThreadFactory("FDB", "rolling-task").newThread(new RollingTask());
         rollingTask.start();
+        if (config.getCompactionIntervalMillis() > 0) {
+            compactionTask = new NamedThreadFactory("FDB", "compaction-task").newThread(new CompactionTask());
+            compactionTask.start();
+        }
+        if (writeBehind) {
+            writeBehindTask = new NamedThreadFactory("FDB", "write-behind-task").newThread(new WriteBehindTask());
+            writeBehindTask.start();
+        }
+        if (config.getHotKeyManifestIntervalMillis() > 0) {
+            hotKeyManifestTask = new NamedThreadFactory("FDB", "hot-key-manifest-task").newThread(new HotKeyManifestTask());
+            hotKeyManifestTask.start();
+        }
         initialized = true;
+        if (config.getHotKeyManifestIntervalMillis() > 0) {
+            startWarmup();
+        }
+    }
+
+    /**
+     * Close
+     *
+     * takes a last checkpoint, so the next start loads the snapshot and has no log to replay, the checkpoint
+     * also writes the values left in the write-behind buffer to their pages. The hot-key manifest is
+     * written last as well.
+     * Operations should not be running when close is called.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public synchronized void close() throws IOException, InterruptedException {
+        if (!initialized) {
+            return;
+        }
+        closing = true;
+        if (compactionTask != null) {
+            // not interrupted, it may be writing the redo log through a channel
+            LockSupport.unpark(compactionTask);
+            compactionTask.join();
+        }
+        if (writeBehindTask != null) {
+            LockSupport.unpark(writeBehindTask);
+            writeBehindTask.join();
+        }
+        if (warmupTasks != null) {
+            for (Thread warmupTask : warmupTasks) {
+                warmupTask.join();
+            }
+        }
+        if (hotKeyManifestTask != null) {
+            LockSupport.unpark(hotKeyManifestTask);
+            hotKeyManifestTask.join();
+            try {
+                writeHotKeyManifest();
+            } catch (IOException e) {
+                logger.error("hot-key manifest", e);
+            }
+        }
+        rollingLock.lock();
+        try {
+            rollingGreen.signal();
+        } finally {
+            rollingLock.unlock();
+        }
+        rollingTask.join();
+        initialized = false;
+        checkpoint();
+        redoLog.close();
+        pageStore.close();
     }
 
     /**
@@ -100,25 +233,33 @@ public class DB<K, V> implements InitializingBean {
         if (key == null || value == null) {
             throw new NullPointerException("key and value should not be null");
         }
-        try {
-            context.lock(key);
-            V valueInWriteCache = writeCache.getIfPresent(key);
-            if (config.getValueCodec().equals(value, valueInWriteCache)) {
-                return;
-            }
-            V valueInReadCache = readCache.getIfPresent(key);
-            if (config.getValueCodec().equals(value, valueInReadCache)) {
-                return;
-            }
-            writeCache.put(key, value);
-            if (valueInReadCache != null) {
-                readCache.put(key, value);
-            }
-            byte[] valueBytes = config.getValueCodec().toBytes(value);
-            put(key, valueBytes);
-        } finally {
-            context.unlock(key);
+        if (longIndexes != null) {
+            put(toLong(key), value);
+            return;
+        }
+        doPut(key, 0, value);
+    }
+
+    /**
+     * Put with a primitive key, for the SHORT, INT and LONG key types
+     *
+     * the key is not boxed on its way to the key lock, the redo log and the index,
+     * only the caches see a boxed key
+     * @param key
+     * @param value
+     * @throws InterruptedException
+     */
+    public void put(long key, V value) throws Throwable {
+        assertInitialized();
+        if (value == null) {
+            throw new NullPointerException("value should not be null");
+        }
+        if (longIndexes == null) {
+            put(boxKey(key), value);
+            return;
         }
+        checkKeyRange(key);
+        doPut(null, key, value);
     }
 
     public void remove(K key) throws InterruptedException, IOException {
@@ -126,244 +267,1873 @@ public class DB<K, V> implements InitializingBean {
         if (key == null) {
             throw new NullPointerException("key should not be null");
         }
-        try {
-            context.lock(key);
-            Record old = indexes.remove(key);
-            if (old == null) {
-                return;
-            }
-            readCache.invalidate(key);
-            writeCache.invalidate(key);
-            byte[] keyBytes = getKeyBytes(context, key);
-            byte[] keyLengthBytes = context.getOneByteArrayCache();
-            keyLengthBytes[0] = (byte) keyBytes.length;
-            log(Record.OP.DEL.code, keyLengthBytes, keyBytes);
+        if (longIndexes != null) {
+            remove(toLong(key));
+            return;
+        }
+        doRemove(key, 0);
+    }
 
-            try {
-                old.lock(Record.OP.DEL);
-                int[] oldPageIds = old.removePageIds();
-                if (oldPageIds != null) {
-                    for (int oldPageId : oldPageIds) {
-                        mappedStorage.invalid(oldPageId);
-                    }
-                }
-                context.returnPageIds(oldPageIds);
-            } finally {
-                old.unlock(Record.OP.DEL);
-            }
-        } finally {
-            context.unlock(key);
+    /**
+     * Remove with a primitive key, for the SHORT, INT and LONG key types
+     * @param key
+     */
+    public void remove(long key) throws InterruptedException, IOException {
+        assertInitialized();
+        if (longIndexes == null) {
+            remove(boxKey(key));
+            return;
         }
+        checkKeyRange(key);
+        doRemove(null, key);
     }
 
+    /**
+     * Get
+     *
+     * a cache miss reads the pages without taking the key lock, see Record.getValue
+     * @param key
+     * @return
+     */
     public V get(K key) throws IOException, InterruptedException, PageFaultException {
         assertInitialized();
         if (key == null) {
             throw new NullPointerException("key should not be null");
         }
-        if (indexes.get(key) == null) {
-            return null;
-        }
-        V valueInReadCache = readCache.getIfPresent(key);
-        if (valueInReadCache != null) {
-            return valueInReadCache;
+        if (longIndexes != null) {
+            return get(toLong(key));
         }
-        V valueInWriteCache = writeCache.getIfPresent(key);
-        if (valueInWriteCache != null) {
-            return valueInWriteCache;
+        return doGet(key, 0);
+    }
+
+    /**
+     * Get with a primitive key, for the SHORT, INT and LONG key types
+     * @param key
+     * @return
+     */
+    public V get(long key) throws IOException, InterruptedException, PageFaultException {
+        assertInitialized();
+        if (longIndexes == null) {
+            return get(boxKey(key));
         }
+        checkKeyRange(key);
+        return doGet(null, key);
+    }
 
+    /**
+     * The body of put, for both kinds of keys, see KeyAdapter
+     */
+    private void doPut(K key, long longKey, V value) throws Throwable {
+        throttle();
         try {
-            context.lock(key);
-            Record record;
-            if ((record = indexes.get(key)) == null) {
-                return null;
-            }
-            valueInReadCache = readCache.getIfPresent(key);
-            if (valueInReadCache != null) {
-                return valueInReadCache;
-            }
-            valueInWriteCache = writeCache.getIfPresent(key);
-            if (valueInWriteCache != null) {
-                readCache.put(key, valueInWriteCache);
-                return valueInWriteCache;
-            }
-            byte[] valueBytes = record.getValue(context, mappedStorage);
-            if (valueBytes == null) {
-                throw new PageFaultException("key 's page is missed");
+            keys.lock(key, longKey);
+            key = keys.box(key, longKey);
+            if (isCached(key, value)) {
+                return;
             }
-            V value = config.getValueCodec().toObject(valueBytes);
-            if (value != null) {
-                readCache.put(key, value);
+            byte[] valueBytes = config.getValueCodec().toBytes(value);
+            if (writeBehind) {
+                putBehind(key, longKey, valueBytes);
+            } else {
+                put(key, longKey, valueBytes);
             }
-            return value;
+            // after the swap, a concurrent lock-free get either sees the new version or is overwritten here
+            valueCache.write(key, value, valueBytes.length);
         } finally {
-            context.unlock(key);
+            keys.unlock(key, longKey);
         }
     }
 
-    private void put(K key, byte[] valueBytes) throws Throwable {
-        byte[] keyBytes = getKeyBytes(context, key);
-        byte[] keyLengthBytes = context.getOneByteArrayCache();
-        keyLengthBytes[0] = (byte) keyBytes.length;
-        log(Record.OP.UPDATE.code, keyLengthBytes, keyBytes, valueBytes);
-        Record record = buildRecord(context, mappedStorage, keyBytes, valueBytes);
-        Record old = indexes.put(key, record);
-        if (old != null) {
+    private void doRemove(K key, long longKey) throws InterruptedException, IOException {
+        throttle();
+        try {
+            keys.lock(key, longKey);
+            if (writeBehind) {
+                key = keys.box(key, longKey);
+            }
+            boolean dirty = isDirty(key);
+            byte[] keyBytes = context.getKeyBytesCache();
+            int keyLength = keys.encode(key, longKey, keyBytes);
+            if (!dirty && !containsKey(key, longKey, keyBytes, keyLength)) {
+                return;
+            }
+            int ticket = epochBarrier.enter();
             try {
-                old.lock(Record.OP.UPDATE);
-                int[] oldPageIds = old.setPageIds(record.getPageIds());
-                if (oldPageIds != null) {
-                    for (int oldPageId : oldPageIds) {
-                        mappedStorage.invalid(oldPageId);
-                    }
+                log(Record.OP.DEL, keyBytes, keyLength, null);
+                applyRemove(key, longKey, keyBytes, keyLength);
+                if (dirty) {
+                    removeDirty(key);
                 }
-                context.returnPageIds(oldPageIds);
             } finally {
-                old.unlock(Record.OP.UPDATE);
+                epochBarrier.exit(ticket);
             }
+        } finally {
+            keys.unlock(key, longKey);
         }
     }
 
-    private byte[] getKeyBytes(Context context, Object key) {
-        switch (context.getConfig().getKeyType()) {
-            case STRING:
-                return ((String) key).getBytes(StandardCharsets.UTF_8);
-            case SHORT:
-                byte[] shortBytes = context.getKeyBytesShortCache();
-                ByteUtil.getBytesBigEndian((Short) key, shortBytes, 0);
-            case INT:
-                byte[] intBytes = context.getKeyBytesIntCache();
-                ByteUtil.getBytesBigEndian((Integer) key, intBytes, 0);
-            case FLOAT:
-                byte[] floatBytes = context.getKeyBytesIntCache();
-                ByteUtil.getBytesBigEndian(Float.floatToIntBits((Float) key), floatBytes, 0);
-            case LONG:
-                byte[] longBytes = context.getKeyBytesLongCache();
-                ByteUtil.getBytesBigEndian((Long) key, longBytes, 0);
-            case DOUBLE:
-                byte[] doubleBytes = context.getKeyBytesLongCache();
-                ByteUtil.getBytesBigEndian(Double.doubleToLongBits((Double) key), doubleBytes, 0);
+    /**
+     * Read under an epoch, the pages of a moved record are cut off the file only once it is drained,
+     * see truncateTail
+     */
+    private V doGet(K key, long longKey) throws IOException, InterruptedException, PageFaultException {
+        int ticket = epochBarrier.enter();
+        try {
+            return read(key, longKey);
+        } finally {
+            epochBarrier.exit(ticket);
         }
-        throw new IllegalArgumentException("key 's type is invalid");
     }
 
-    private void assertInitialized() {
-        if (!initialized) {
-            throw new RuntimeException("db has not initialized");
+    private V read(K key, long longKey) throws IOException, InterruptedException, PageFaultException {
+        if (writeBehind) {
+            key = keys.box(key, longKey);
+            V value = getDirty(key);
+            if (value != null) {
+                return value;
+            }
         }
+        if (offHeapIndexes != null) {
+            return getOffHeap(key);
+        }
+        Record record = keys.get(key, longKey);
+        if (record == null) {
+            return null;
+        }
+        key = keys.box(key, longKey);
+        V valueInCache = getCached(key);
+        if (valueInCache != null) {
+            return valueInCache;
+        }
+        int version = record.getVersion();
+        byte[] valueBytes = keys.getValue(record, key, longKey);
+        return toValue(key, record, version, valueBytes);
     }
 
-    private void rebuildIndexes() throws IOException, InterruptedException {
-        final AtomicBitSet pageIds = new AtomicBitSet(1024);
-        final Context tmpContext = new Context(config, 0);
-        int processors = Runtime.getRuntime().availableProcessors();
-        final int[] maxPageIds = new int[processors];
-        final CountDownLatch taskWaiter = new CountDownLatch(processors);
-        for (int i = 0; i < processors; i++) {
-            maxPageIds[i] = -1;
-            new Thread(new MappedRecordReader(taskWaiter, tmpContext, pageIds, maxPageIds, i, processors)).start();
-        }
-        taskWaiter.await();
+    /**
+     * Not counted as a cache lookup
+     */
+    private boolean isCached(K key, V value) {
+        return config.getValueCodec().equals(value, valueCache.peek(key));
+    }
+
+    private V getCached(K key) {
+        return valueCache.get(key);
+    }
 
-        for (int maxPageId : maxPageIds) {
-            lastPageId = Math.max(lastPageId, maxPageId);
+    private V toValue(K key, Record record, int version, byte[] valueBytes) {
+        if (valueBytes == null) {
+            return null;
         }
-        List<Long> emptyPageIds = pageIds.emptyBitValues();
-        for (Long pageId : emptyPageIds) {
-            if (pageId < lastPageId) {
-                tmpContext.returnPageId(pageId.intValue());
+        V value = config.getValueCodec().toObject(valueBytes);
+        if (value != null) {
+            valueCache.put(key, value, valueBytes.length);
+            // a writer swapped the record or buffered a value meanwhile, the value may be stale
+            if (record.getVersion() != version || isDirty(key)) {
+                valueCache.invalidate(key);
             }
         }
-        redoLog.redo(new fasterDB.store.Logger.Reader() {
-            @Override
-            public void read(byte[] bytes) {
-                try {
-                    switch (Record.OP.codeOf(bytes[0])) {
-                        case UPDATE:
-                            int keyLength0 = ByteUtil.getUnsignedByte(bytes, 1);
-                            put((K) Record.getKey(tmpContext, bytes, 1, 1 + keyLength0), Arrays.copyOfRange(bytes, 1 + keyLength0, bytes.length));
-                            break;
-                        case DEL:
-                            int keyLength = ByteUtil.getUnsignedByte(bytes, 1);
-                            remove((K) Record.getKey(tmpContext, bytes, 1, 1 + keyLength));
-                            break;
-                    }
-                } catch (Throwable cause) {
-                    logger.error("redo log", cause);
-                }
+        return value;
+    }
+
+    /**
+     * Log and apply under one epoch, so a checkpoint which drained the epoch knows every record
+     * logged before its lsn has been applied to the pages
+     */
+    private void put(K key, long longKey, byte[] valueBytes) throws Throwable {
+        int ticket = epochBarrier.enter();
+        try {
+            byte[] keyBytes = context.getKeyBytesCache();
+            int keyLength = keys.encode(key, longKey, keyBytes);
+            log(Record.OP.UPDATE, keyBytes, keyLength, valueBytes);
+            applyPut(key, longKey, keyBytes, keyLength, valueBytes);
+        } finally {
+            epochBarrier.exit(ticket);
+        }
+    }
+
+    /**
+     * Log the value and leave it in the write-behind buffer, a value still buffered for the key is replaced
+     * and never written to pages. Once the buffer is full, a key not in it yet is written through, which
+     * holds the writers back to the pace of the pages. Called with the key lock held.
+     */
+    private void putBehind(K key, long longKey, byte[] valueBytes) throws Throwable {
+        if (dirtyValues.size() >= writeBehindBufferKV && !dirtyValues.containsKey(key)) {
+            writeThroughs.increment();
+            LockSupport.unpark(writeBehindTask);
+            put(key, longKey, valueBytes);
+            return;
+        }
+        int ticket = epochBarrier.enter();
+        try {
+            byte[] keyBytes = context.getKeyBytesCache();
+            int keyLength = keys.encode(key, longKey, keyBytes);
+            log(Record.OP.UPDATE, keyBytes, keyLength, valueBytes);
+            // inside the epoch, so a checkpoint which drained it finds the value, see materializeDirty
+            bufferDirty(key, valueBytes);
+        } finally {
+            epochBarrier.exit(ticket);
+        }
+    }
+
+    private void bufferDirty(K key, byte[] valueBytes) {
+        if (dirtyValues.put(key, valueBytes) != null) {
+            coalescedWrites.increment();
+        }
+        if (dirtyValues.size() >= writeBehindBufferKV >>> 1) {
+            LockSupport.unpark(writeBehindTask);
+        }
+    }
+
+    private boolean isDirty(Object key) {
+        return writeBehind && dirtyValues.containsKey(key);
+    }
+
+    /**
+     * Not cached, the writer cached the value and the pages will have it soon
+     */
+    private V getDirty(K key) {
+        byte[] valueBytes = dirtyValues.get(key);
+        if (valueBytes == null) {
+            return null;
+        }
+        V valueInCache = getCached(key);
+        return valueInCache != null ? valueInCache : config.getValueCodec().toObject(valueBytes);
+    }
+
+    /**
+     * Called with the key lock held, after the removal was applied: until then readers still find the
+     * buffered value instead of the older one in the pages
+     */
+    private void removeDirty(K key) {
+        dirtyValues.remove(key);
+        valueCache.invalidate(key);
+    }
+
+    /**
+     * Write the value buffered for the key to its pages, it was logged already
+     */
+    private void materialize(K key) throws Throwable {
+        long longKey = keys.toLong(key);
+        try {
+            keys.lock(key, longKey);
+            byte[] valueBytes = dirtyValues.get(key);
+            if (valueBytes == null) {
+                return;
             }
-        });
+            int ticket = epochBarrier.enter();
+            try {
+                byte[] keyBytes = context.getKeyBytesCache();
+                applyPut(key, longKey, keyBytes, keys.encode(key, longKey, keyBytes), valueBytes);
+                dirtyValues.remove(key);
+            } finally {
+                epochBarrier.exit(ticket);
+            }
+        } finally {
+            keys.unlock(key, longKey);
+        }
+        materializedWrites.increment();
+    }
+
+    /**
+     * Write every value buffered so far to its pages. Values buffered meanwhile may or may not be written.
+     */
+    private void materializeDirty() throws Throwable {
+        for (K key : dirtyValues.keySet()) {
+            materialize(key);
+        }
     }
 
-    private void restoreRecords(Context context, AtomicBitSet pageIds, int[] maxPageIds, int index, int mode) {
-        maxPageIds[index] = -1;
-        for (int pageId = 0; ; pageId++) {
-            if (pageId % mode == index) {
+    private void applyPut(K key, long longKey, byte[] keyBytes, int keyLength, byte[] valueBytes) throws Throwable {
+        if (offHeapIndexes != null) {
+            // the key lock keeps the entry of the key stable, so the lookup needs no version check
+            long hash = OffHeapIndex.hash(keyBytes, keyLength);
+            Record old = findOffHeap(context, key, hash);
+            if (old != null && inPlaceUpdate) {
+                // readers of the off-heap index validate against the version of the hash, not of the record
+                long stamp = offHeapIndexes.beginUpdate(hash);
                 try {
-                    Pair<Object, Record> key2record = Record.restoreRecord(context, mappedStorage, pageId);
-                    if (key2record != null) {
-                        int[] recordPageIds = key2record.second.getPageIds();
-                        for (int recordPageId : recordPageIds) {
-                            pageIds.set(recordPageId);
-                        }
-                        maxPageIds[index] = Math.max(maxPageIds[index], recordPageIds[recordPageIds.length - 1]);
-                        indexes.put((K) key2record.first, key2record.second);
+                    if (old.rewrite(context, pageStore, keyBytes, keyLength, valueBytes)) {
+                        inPlaceUpdates.increment();
+                        return;
                     }
-                } catch (PageFaultException e) {
-                    logger.error("rebuild index", e);
-                    break;
-                } catch (IOException e) {
-                    logger.error("rebuild index", e);
-                    break;
+                } finally {
+                    offHeapIndexes.endUpdate(hash, stamp);
                 }
             }
+            Record record = buildRecord(context, pageStore, keyBytes, keyLength, valueBytes);
+            recordSnapshotPages(record.getPageIds());
+            if (old == null) {
+                offHeapIndexes.put(hash, record.getPageIds()[0]);
+            } else {
+                offHeapIndexes.replace(hash, old.getPageIds()[0], record.getPageIds()[0]);
+                freePages(old.getPageIds());
+            }
+            return;
+        }
+        Record old = keys.get(key, longKey);
+        if (old != null && rewrite(old, keyBytes, keyLength, valueBytes)) {
+            return;
+        }
+        Record record = buildRecord(context, pageStore, keyBytes, keyLength, valueBytes);
+        recordSnapshotPages(record.getPageIds());
+        old = keys.putIfAbsent(key, longKey, record);
+        if (old != null) {
+            swapPages(old, record);
         }
     }
 
-    public void log(byte[]... byteArrays) throws IOException {
-        int writeBytes = redoLog.log(config.isLogWithFlush(), byteArrays);
-        long logBytes = this.logBytes.addAndGet(writeBytes);
-        if (logBytes > rollingThreshold) {
+    /**
+     * Overwrite the pages of the indexed record, which takes no page ids and frees none
+     * @return false if the value needs other pages
+     */
+    private boolean rewrite(Record old, byte[] keyBytes, int keyLength, byte[] valueBytes) throws IOException {
+        if (!inPlaceUpdate || !old.rewrite(context, pageStore, keyBytes, keyLength, valueBytes)) {
+            return false;
+        }
+        inPlaceUpdates.increment();
+        return true;
+    }
+
+    private boolean containsKey(K key, long longKey, byte[] keyBytes, int keyLength) throws IOException {
+        if (offHeapIndexes != null) {
+            return findOffHeap(context, key, OffHeapIndex.hash(keyBytes, keyLength)) != null;
+        }
+        return keys.get(key, longKey) != null;
+    }
+
+    /**
+     * Get from the off-heap index
+     *
+     * the record is read back from its pages, the version of the hash plays the role of the record
+     * version: it changes whenever an entry of the hash is replaced or removed, which is before its
+     * pages can be reused
+     */
+    private V getOffHeap(K key) throws IOException, PageFaultException {
+        byte[] keyBytes = context.getKeyBytesCache();
+        long hash = OffHeapIndex.hash(keyBytes, encodeKey(context, key, keyBytes));
+        for (int retry = 0; retry < OFF_HEAP_READ_RETRIES; retry++) {
+            int version = offHeapIndexes.version(hash);
+            if ((version & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            Record record = findOffHeap(context, key, hash);
+            if (record == null) {
+                if (offHeapIndexes.version(hash) == version) {
+                    return null;
+                }
+                continue;
+            }
+            V valueInCache = getCached(key);
+            if (valueInCache != null) {
+                return valueInCache;
+            }
+            byte[] valueBytes;
             try {
-                rollingLock.lock();
-                rollingGreen.signal();
-                if (logBytes > writeBlockThreshold) {
-                    rollingFinished.await();
+                valueBytes = record.getValue(context, pageStore, key);
+            } catch (PageFaultException e) {
+                valueBytes = null;
+            }
+            if (offHeapIndexes.version(hash) == version) {
+                if (valueBytes == null) {
+                    throw new PageFaultException("key 's page is missed");
                 }
-            } catch (InterruptedException ignore) {
-            } finally {
-                rollingLock.unlock();
+                V value = config.getValueCodec().toObject(valueBytes);
+                if (value != null) {
+                    valueCache.put(key, value, valueBytes.length);
+                    if (offHeapIndexes.version(hash) != version || isDirty(key)) {
+                        valueCache.invalidate(key);
+                    }
+                }
+                return value;
+            }
+        }
+        try {
+            context.lockShared(key);
+            Record record = findOffHeap(context, key, hash);
+            if (record == null) {
+                return null;
             }
+            return toValue(key, record, record.getVersion(), record.getValue(context, pageStore, key));
+        } finally {
+            context.unlockShared(key);
         }
     }
 
-    private void doRoll() {
-        while (true) {
+    /**
+     * Read back the record of the key from the candidates of its hash
+     * @return null if the key is not indexed, or an entry changed meanwhile
+     */
+    private Record findOffHeap(Context context, Object key, long hash) throws IOException {
+        int[] candidates = context.getPageIdsCache();
+        int count = offHeapIndexes.get(hash, candidates);
+        if (count > candidates.length) {
+            candidates = new int[count];
+            count = Math.min(offHeapIndexes.get(hash, candidates), count);
+        }
+        for (int i = 0; i < count; i++) {
+            Pair<Object, Record> key2record;
             try {
-                rollingLock.lock();
-                rollingGreen.await();
-                logBytes.set(0);
-                redoLog.roll();
-                mappedStorage.flush();
-                rollingFinished.signalAll();
-            } catch (Throwable ignore) {
-            } finally {
-                rollingLock.unlock();
+                key2record = Record.restoreRecord(context, pageStore, candidates[i]);
+            } catch (PageFaultException e) {
+                continue;
+            }
+            if (key2record != null && key.equals(key2record.first)) {
+                return key2record.second;
             }
         }
+        return null;
     }
 
-    class MappedRecordReader extends Thread {
-        CountDownLatch taskWaiter;
-        Context context;
-        AtomicBitSet pageIds;
-        int[] maxPageIds;
+    /**
+     * A crash between writing a new record and invalidating the old one leaves both valid, keep the first
+     */
+    private void restoreOffHeap(Context context, Object key, int firstPageId) throws IOException {
+        byte[] keyBytes = context.getKeyBytesCache();
+        long hash = OffHeapIndex.hash(keyBytes, encodeKey(context, key, keyBytes));
+        try {
+            context.lock(key);
+            if (findOffHeap(context, key, hash) == null) {
+                offHeapIndexes.put(hash, firstPageId);
+            }
+        } finally {
+            context.unlock(key);
+        }
+    }
+
+    /**
+     * Keep the indexed record and swap its pages or value, readers holding it must see the version change
+     */
+    private void swapPages(Record old, Record record) throws IOException {
+        freePages(old.replace(record));
+    }
+
+    private void applyRemove(K key, long longKey, byte[] keyBytes, int keyLength) throws IOException {
+        Record old;
+        int[] oldPageIds;
+        if (offHeapIndexes != null) {
+            long hash = OffHeapIndex.hash(keyBytes, keyLength);
+            old = findOffHeap(context, key, hash);
+            if (old == null) {
+                return;
+            }
+            offHeapIndexes.remove(hash, old.getPageIds()[0]);
+            oldPageIds = old.getPageIds();
+        } else {
+            old = keys.remove(key, longKey);
+            if (old == null) {
+                return;
+            }
+            oldPageIds = old.removePageIds();
+        }
+        valueCache.invalidate(keys.box(key, longKey));
+        freePages(oldPageIds);
+    }
+
+    /**
+     * Freed pages stay valid and are not reused until the next checkpoint has written its snapshot:
+     * the last snapshot may still point to them, see checkpoint.
+     * Called inside the epoch, or by the replay.
+     */
+    private void freePages(int[] pageIds) {
+        if (pageIds != null) {
+            freedPages.add(pageIds.length);
+            pendingFrees.add(pageIds);
+            recordSnapshotPages(pageIds);
+        }
+    }
+
+    private void recordSnapshotPages(int[] pageIds) {
+        Queue<int[]> pages = snapshotPages;
+        if (pages != null && pageIds != null) {
+            pages.add(pageIds);
+        }
+    }
+
+    private void releasePages(Queue<int[]> freed) throws IOException {
+        for (int[] pageIds : freed) {
+            for (int pageId : pageIds) {
+                pageStore.invalid(pageId);
+            }
+            context.returnPageIds(pageIds);
+        }
+    }
+
+    /**
+     * @return how many writes were delayed by admission control
+     */
+    public long getThrottledWriteCount() {
+        return throttledWrites.sum();
+    }
+
+    /**
+     * @return how many puts overwrote the pages of the key instead of taking new ones, since startup
+     */
+    public long getInPlaceUpdateCount() {
+        return inPlaceUpdates.sum();
+    }
+
+    /**
+     * @return how many pages were freed by puts and removes since startup, every one of them is
+     * invalidated and returned to the allocator by the next checkpoint
+     */
+    public long getFreedPageCount() {
+        return freedPages.sum();
+    }
+
+    public long getCacheHitCount() {
+        assertInitialized();
+        return valueCache.getHitCount();
+    }
+
+    public long getCacheMissCount() {
+        assertInitialized();
+        return valueCache.getMissCount();
+    }
+
+    public double getCacheHitRate() {
+        assertInitialized();
+        return valueCache.getHitRate();
+    }
+
+    /**
+     * @return how many values read back were cached by the admission once the cache was full
+     */
+    public long getCacheAdmissionCount() {
+        assertInitialized();
+        return valueCache.getAdmissionCount();
+    }
+
+    /**
+     * @return how many values read back were not cached by the admission, their keys being read less often
+     */
+    public long getCacheRejectionCount() {
+        assertInitialized();
+        return valueCache.getRejectionCount();
+    }
+
+    /**
+     * @return how many misses of the heap cache were served by the off-heap cache
+     */
+    public long getOffHeapCacheHitCount() {
+        assertInitialized();
+        return valueCache.getOffHeapHitCount();
+    }
+
+    public long getOffHeapCacheMissCount() {
+        assertInitialized();
+        return valueCache.getOffHeapMissCount();
+    }
+
+    /**
+     * @return how many values evicted from the heap cache were demoted to the off-heap cache
+     */
+    public long getOffHeapCacheDemotionCount() {
+        assertInitialized();
+        return valueCache.getDemotionCount();
+    }
+
+    public long getOffHeapCacheEvictionCount() {
+        assertInitialized();
+        return valueCache.getOffHeapEvictionCount();
+    }
+
+    public long getOffHeapCachedBytes() {
+        assertInitialized();
+        return valueCache.getOffHeapBytes();
+    }
+
+    /**
+     * @return how many values were evicted from the cache for room
+     */
+    public long getCacheEvictionCount() {
+        assertInitialized();
+        return valueCache.getEvictionCount();
+    }
+
+    /**
+     * @return the weight of the cached values, their encoded length plus a fixed cost per entry
+     */
+    public long getCachedBytes() {
+        assertInitialized();
+        return valueCache.getWeightedBytes();
+    }
+
+    /**
+     * @return how many keys the warm-up loads, those of the manifest found on initialize
+     */
+    public int getWarmupKeyCount() {
+        assertInitialized();
+        return warmupKeyCount;
+    }
+
+    /**
+     * @return how many keys of the manifest the warm-up went through so far
+     */
+    public long getWarmedKeyCount() {
+        assertInitialized();
+        return warmedKeys.sum();
+    }
+
+    /**
+     * @return how long the warm-up took, -1 while it runs, 0 if there was none
+     */
+    public long getWarmupMillis() {
+        assertInitialized();
+        return warmupMillis;
+    }
+
+    /**
+     * @return the hit rate of the cache before the restart, as written in the manifest, NaN if unknown
+     */
+    public double getRestoredCacheHitRate() {
+        assertInitialized();
+        return restoredHitRate;
+    }
+
+    /**
+     * @return the hit rate of the cache between the last two manifests, NaN before the first one
+     */
+    public double getRecentCacheHitRate() {
+        assertInitialized();
+        return recentHitRate;
+    }
+
+    /**
+     * @return the hit rate since the start over the hit rate before the restart, 1 once it recovered,
+     * NaN if either is unknown or there were no hits before the restart
+     */
+    public double getCacheHitRateRecovery() {
+        assertInitialized();
+        long lookups = valueCache.getHitCount() + valueCache.getMissCount();
+        if (lookups == 0 || !(restoredHitRate > 0)) {
+            return Double.NaN;
+        }
+        return (double) valueCache.getHitCount() / lookups / restoredHitRate;
+    }
+
+    /**
+     * @return how many values wait in the write-behind buffer
+     */
+    public int getDirtyValueCount() {
+        assertInitialized();
+        return dirtyValues.size();
+    }
+
+    /**
+     * @return how many buffered values were replaced by a newer one before reaching the pages
+     */
+    public long getCoalescedWriteCount() {
+        assertInitialized();
+        return coalescedWrites.sum();
+    }
+
+    /**
+     * @return how many buffered values were written to pages
+     */
+    public long getMaterializedWriteCount() {
+        assertInitialized();
+        return materializedWrites.sum();
+    }
+
+    /**
+     * @return how many puts were written through as the write-behind buffer was full
+     */
+    public long getWriteThroughCount() {
+        assertInitialized();
+        return writeThroughs.sum();
+    }
+
+    /**
+     * @return how many records the compaction moved to lower pages since startup
+     */
+    public long getRelocatedRecordCount() {
+        return relocatedRecords.sum();
+    }
+
+    /**
+     * @return how many bytes the compaction cut off the data files since startup
+     */
+    public long getTruncatedBytes() {
+        return truncatedBytes.sum();
+    }
+
+    /**
+     * @return the bytes of the data files in use, of every page class
+     */
+    public long getDataFileBytes() {
+        assertInitialized();
+        return pageStore.getFileBytes();
+    }
+
+    /**
+     * @return how many data file chunks were forced by checkpoints and the background flush
+     */
+    public long getForcedChunkCount() {
+        assertInitialized();
+        return pageStore.getForcedChunkCount();
+    }
+
+    /**
+     * @return the direct memory used by the off-heap index, 0 with the other index types
+     */
+    public long getOffHeapIndexBytes() {
+        assertInitialized();
+        return offHeapIndexes == null ? 0 : offHeapIndexes.getMemoryBytes();
+    }
+
+    /**
+     * @return the share of multi-page records written to adjacent pages since startup, 1 if there was none
+     */
+    public double getPageContiguityRatio() {
+        assertInitialized();
+        long multiPage = context.getMultiPageBorrowCount();
+        return multiPage == 0 ? 1 : (double) context.getContiguousBorrowCount() / multiPage;
+    }
+
+    public long getKeyLockAcquiredCount() {
+        assertInitialized();
+        return context.getKeyLocker().getAcquiredCount();
+    }
+
+    public long getKeyLockContendedCount() {
+        assertInitialized();
+        return context.getKeyLocker().getContendedCount();
+    }
+
+    public double getGroupCommitAverageBatchSize() {
+        assertInitialized();
+        return redoLog.getGroupCommitter().getAverageBatchSize();
+    }
+
+    public long getGroupCommitAverageLatencyNanos() {
+        assertInitialized();
+        return redoLog.getGroupCommitter().getAverageLatencyNanos();
+    }
+
+    /**
+     * Encode the key into keyBytes
+     * @param context
+     * @param key
+     * @param keyBytes
+     * @return the length of the encoded key
+     */
+    private int encodeKey(Context context, Object key, byte[] keyBytes) {
+        switch (context.getConfig().getKeyType()) {
+            case STRING:
+                int length = StringUtil.encodeUtf8((String) key, keyBytes, 0);
+                if (length < 0) {
+                    throw new IllegalArgumentException("key 's length should <= " + keyBytes.length);
+                }
+                return length;
+            case SHORT:
+                ByteUtil.getBytesBigEndian((Short) key, keyBytes, 0);
+                return 2;
+            case INT:
+                ByteUtil.getBytesBigEndian((Integer) key, keyBytes, 0);
+                return 4;
+            case FLOAT:
+                ByteUtil.getBytesBigEndian(Float.floatToIntBits((Float) key), keyBytes, 0);
+                return 4;
+            case LONG:
+                ByteUtil.getBytesBigEndian((Long) key, keyBytes, 0);
+                return 8;
+            case DOUBLE:
+                ByteUtil.getBytesBigEndian(Double.doubleToLongBits((Double) key), keyBytes, 0);
+                return 8;
+        }
+        throw new IllegalArgumentException("key 's type is invalid");
+    }
+
+    /**
+     * Encode the primitive key into keyBytes, same bytes as the boxed key
+     * @return the length of the encoded key
+     */
+    private int encodeKey(Context context, long key, byte[] keyBytes) {
+        switch (context.getConfig().getKeyType()) {
+            case SHORT:
+                ByteUtil.getBytesBigEndian((short) key, keyBytes, 0);
+                return 2;
+            case INT:
+                ByteUtil.getBytesBigEndian((int) key, keyBytes, 0);
+                return 4;
+            case LONG:
+                ByteUtil.getBytesBigEndian(key, keyBytes, 0);
+                return 8;
+        }
+        throw new IllegalArgumentException("key 's type is not integral");
+    }
+
+    private static boolean isIntegral(Config.KeyType keyType) {
+        return keyType == Config.KeyType.SHORT || keyType == Config.KeyType.INT || keyType == Config.KeyType.LONG;
+    }
+
+    private long toLong(Object key) {
+        return ((Number) key).longValue();
+    }
+
+    private K boxKey(long key) {
+        checkKeyRange(key);
+        switch (config.getKeyType()) {
+            case SHORT:
+                return toKey(Short.valueOf((short) key));
+            case INT:
+                return toKey(Integer.valueOf((int) key));
+            case LONG:
+                return toKey(Long.valueOf(key));
+        }
+        throw new IllegalArgumentException("key 's type is not integral");
+    }
+
+    /**
+     * Keys decoded from bytes are of the class the key type stands for, which is K
+     */
+    @SuppressWarnings("unchecked")
+    private K toKey(Object key) {
+        return (K) key;
+    }
+
+    private void checkKeyRange(long key) {
+        switch (config.getKeyType()) {
+            case SHORT:
+                if (key < Short.MIN_VALUE || key > Short.MAX_VALUE) {
+                    throw new IllegalArgumentException("key should be a short");
+                }
+                break;
+            case INT:
+                if (key < Integer.MIN_VALUE || key > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("key should be an int");
+                }
+                break;
+        }
+    }
+
+    private void createIndexes() {
+        indexes = null;
+        longIndexes = null;
+        offHeapIndexes = null;
+        if (config.getIndexType() == Config.IndexType.OFF_HEAP) {
+            offHeapIndexes = new OffHeapIndex(config.getIndexSegments());
+        } else if (config.getIndexType() == Config.IndexType.HASH && isIntegral(config.getKeyType())) {
+            longIndexes = new LongHashIndex<Record>(config.getIndexSegments());
+        } else {
+            indexes = buildIndex();
+        }
+        keys = longIndexes != null ? new LongKeys() : new ObjectKeys();
+    }
+
+    private Index<K, Record> buildIndex() {
+        switch (config.getIndexType()) {
+            case SKIP_LIST:
+                return new SkipListIndex<K, Record>();
+            case HASH:
+                return new HashIndex<K, Record>(config.getIndexSegments());
+        }
+        throw new IllegalArgumentException("index 's type is invalid");
+    }
+
+    private void assertInitialized() {
+        if (!initialized) {
+            throw new RuntimeException("db has not initialized");
+        }
+    }
+
+    /**
+     * Load the snapshot, or scan the pages for the records if it is not usable, then replay the redo
+     * log from the last checkpoint
+     */
+    private void rebuildIndexes() throws IOException, InterruptedException {
+        final Context tmpContext = new Context(config, 0);
+        if (!loadSnapshot(tmpContext)) {
+            // inline values are in no page, a scan would drop those written before the last checkpoint
+            File inlineMarker = inlineMarkerFile();
+            if (inlineMarker.isFile()) {
+                throw new IOException("snapshot " + snapshotFile() + " is missing or not usable and has the only copy"
+                        + " of inline values, restore it, or delete " + inlineMarker + " to open without them");
+            }
+            scanPages(tmpContext);
+        }
+        redoLog.redo(new fasterDB.store.Logger.Reader() {
+            @Override
+            public void read(byte[] bytes) {
+                try {
+                    int keyLength = ByteUtil.getUnsignedByte(bytes, LoggerWrapper.KEY_LENGTH_INDEX);
+                    int keyEnd = LoggerWrapper.KEY_INDEX + keyLength;
+                    K key = toKey(Record.getKey(tmpContext, bytes, LoggerWrapper.KEY_INDEX, keyEnd));
+                    long longKey = keys.toLong(key);
+                    byte[] keyBytes = Arrays.copyOfRange(bytes, LoggerWrapper.KEY_INDEX, keyEnd);
+                    switch (Record.OP.codeOf(bytes[LoggerWrapper.OP_INDEX])) {
+                        case UPDATE:
+                            byte[] valueBytes = Arrays.copyOfRange(bytes, keyEnd, bytes.length);
+                            applyPut(key, longKey, keyBytes, keyLength, valueBytes);
+                            break;
+                        case DEL:
+                            applyRemove(key, longKey, keyBytes, keyLength);
+                            break;
+                    }
+                } catch (Throwable cause) {
+                    logger.error("redo log", cause);
+                }
+            }
+        });
+    }
+
+    private File snapshotFile() {
+        return new File(config.getDataPath(), config.getDataFile() + ".snapshot");
+    }
+
+    /**
+     * Exists while the last snapshot may have inline values, see checkpoint
+     */
+    private File inlineMarkerFile() {
+        return new File(config.getDataPath(), config.getDataFile() + ".snapshot.inline");
+    }
+
+    private File hotKeyManifestFile() {
+        return new File(config.getDataPath(), config.getDataFile() + ".hotkeys");
+    }
+
+    /**
+     * Write the keys of the hottest cached values, with the hit rate of the cache since the last manifest
+     */
+    private void writeHotKeyManifest() throws IOException {
+        long hits = valueCache.getHitCount();
+        long misses = valueCache.getMissCount();
+        long lookups = hits - manifestHits + misses - manifestMisses;
+        if (lookups > 0) {
+            recentHitRate = (double) (hits - manifestHits) / lookups;
+        }
+        manifestHits = hits;
+        manifestMisses = misses;
+        List<K> keys = valueCache.hottestKeys(config.getHotKeyManifestKV());
+        List<byte[]> encodedKeys = new ArrayList<byte[]>(keys.size());
+        byte[] keyBytes = context.getKeyBytesCache();
+        for (K key : keys) {
+            encodedKeys.add(Arrays.copyOf(keyBytes, encodeKey(context, key, keyBytes)));
+        }
+        new HotKeyManifest(recentHitRate, encodedKeys).write(hotKeyManifestFile());
+    }
+
+    /**
+     * Load the values of the keys of the last manifest in the background, while the db serves. Values
+     * loaded are cached as read back by a get, but not counted as lookups.
+     */
+    private void startWarmup() {
+        final HotKeyManifest manifest = HotKeyManifest.read(hotKeyManifestFile());
+        if (manifest == null || manifest.keys.isEmpty()) {
+            return;
+        }
+        restoredHitRate = manifest.hitRate;
+        warmupKeyCount = manifest.keys.size();
+        warmupMillis = -1;
+        final long startNanos = System.nanoTime();
+        final int threads = Math.min(config.getWarmupThreads(), manifest.keys.size());
+        final AtomicInteger running = new AtomicInteger(threads);
+        NamedThreadFactory threadFactory = new NamedThreadFactory("FDB", "warmup-task");
+        warmupTasks = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int first = i;
+            warmupTasks[i] = threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    // the hottest keys are first, every thread starts from the top
+                    for (int k = first; k < manifest.keys.size() && !closing; k += threads) {
+                        try {
+                            warmUp(manifest.keys.get(k));
+                        } catch (Throwable cause) {
+                            logger.warn("warm-up", cause);
+                        }
+                        warmedKeys.increment();
+                    }
+                    if (running.decrementAndGet() == 0) {
+                        warmupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+                    }
+                }
+            });
+            warmupTasks[i].start();
+        }
+    }
+
+    private void warmUp(byte[] keyBytes) throws IOException, PageFaultException {
+        K key = toKey(Record.getKey(context, keyBytes, 0, keyBytes.length));
+        if (valueCache.peek(key) != null || isDirty(key)) {
+            return;
+        }
+        int ticket = epochBarrier.enter();
+        try {
+            warmUp(key, keyBytes);
+        } finally {
+            epochBarrier.exit(ticket);
+        }
+    }
+
+    private void warmUp(K key, byte[] keyBytes) throws IOException, PageFaultException {
+        if (offHeapIndexes != null) {
+            try {
+                context.lockShared(key);
+                Record record = findOffHeap(context, key, OffHeapIndex.hash(keyBytes, keyBytes.length));
+                if (record != null) {
+                    toValue(key, record, record.getVersion(), record.getValue(context, pageStore, key));
+                }
+            } finally {
+                context.unlockShared(key);
+            }
+        } else {
+            long longKey = keys.toLong(key);
+            Record record = keys.get(key, longKey);
+            if (record != null) {
+                int version = record.getVersion();
+                toValue(key, record, version, keys.getValue(record, key, longKey));
+            }
+        }
+    }
+
+    /**
+     * Load the index and the free pages from the snapshot, the snapshot is only usable if the
+     * redo log from its lsn has not been deleted
+     * @return false if the pages have to be scanned
+     */
+    private boolean loadSnapshot(final Context tmpContext) throws IOException {
+        Checkpoint checkpoint = redoLog.getLastCheckpoint();
+        File file = snapshotFile();
+        if (checkpoint == null || Snapshot.readLsn(file) < checkpoint.lsn) {
+            return false;
+        }
+        final int classCount = pageStore.getClassCount();
+        final AtomicBitSet[] referenced = new AtomicBitSet[classCount];     // pages of the entries, see sweepPageIds
+        for (int pageClass = 0; pageClass < classCount; pageClass++) {
+            referenced[pageClass] = new AtomicBitSet(1024);
+        }
+        Snapshot snapshot = Snapshot.read(file, new Snapshot.Reader() {
+            @Override
+            public void readKey(byte[] keyBytes, int keyLength, int[] pageIds) {
+                for (int pageId : pageIds) {
+                    reference(referenced, pageId);
+                }
+                if (offHeapIndexes != null) {
+                    offHeapIndexes.put(OffHeapIndex.hash(keyBytes, keyLength), pageIds[0]);
+                    return;
+                }
+                K key = toKey(Record.getKey(tmpContext, keyBytes, 0, keyLength));
+                keys.put(key, keys.toLong(key), Record.loadRecord(pageIds));
+            }
+
+            @Override
+            public void readInline(byte[] keyBytes, int keyLength, byte[] valueBytes) {
+                if (offHeapIndexes != null) {
+                    throw new IllegalStateException("the snapshot has inline values, the off-heap index has none");
+                }
+                K key = toKey(Record.getKey(tmpContext, keyBytes, 0, keyLength));
+                keys.put(key, keys.toLong(key), Record.inlineRecord(valueBytes));
+            }
+
+            @Override
+            public void readHash(long hash, int firstPageId) {
+                if (offHeapIndexes == null) {
+                    throw new IllegalStateException("the snapshot has no keys, it was taken with the off-heap index");
+                }
+                reference(referenced, firstPageId);
+                offHeapIndexes.put(hash, firstPageId);
+            }
+        });
+        if (snapshot == null) {
+            logger.warn("snapshot " + file + " is corrupt or does not match the index type, scan the pages");
+            createIndexes();
+            return false;
+        }
+        if (snapshot.lastPageIds.length != classCount) {
+            logger.warn("snapshot " + file + " was taken with other page classes, scan the pages");
+            createIndexes();
+            return false;
+        }
+        // pages written by operations after the snapshot are garbage, the replay writes them again
+        long[][] freePageBits = new long[classCount][];
+        for (int pageClass = 0; pageClass < classCount; pageClass++) {
+            freePageBits[pageClass] = new long[(snapshot.lastPageIds[pageClass] + 64) >>> 6];
+        }
+        for (int pageId : snapshot.freePageIds) {
+            int pageClass = PageStore.classOf(pageId, classCount);
+            int localId = PageStore.localIdOf(pageId, classCount);
+            if (pageClass < classCount && localId <= snapshot.lastPageIds[pageClass]) {
+                pageStore.invalid(pageId);
+                freePageBits[pageClass][localId >>> 6] |= 1L << localId;
+            }
+        }
+        int[] pageIdInitialValues = new int[classCount];
+        int swept = 0;
+        for (int pageClass = 0; pageClass < classCount; pageClass++) {
+            swept += sweepPageIds(pageClass, snapshot.lastPageIds[pageClass], referenced[pageClass], freePageBits[pageClass]);
+            invalidPagesAbove(pageClass, snapshot.lastPageIds[pageClass]);
+            pageIdInitialValues[pageClass] = snapshot.lastPageIds[pageClass] + 1;
+        }
+        if (swept > 0) {
+            logger.info("snapshot " + file + " missed " + swept + " free pages, they are free again");
+        }
+        context = new Context(config, pageIdInitialValues, freePageBits);
+        return true;
+    }
+
+    /**
+     * The free ids of a snapshot are read from the magazines, the depot and the free bitmap of the
+     * allocators one after the other, an id a refill moved meanwhile may be in none of them. Such an id
+     * is in no entry either, and its page holds no record: pages are invalidated before their ids are
+     * returned. The pages of a record are valid, pages of records written after the walk are garbage
+     * and free in the snapshot already.
+     * @return the count of ids set free in freePageBits
+     */
+    private int sweepPageIds(int pageClass, int lastPageId, AtomicBitSet referenced, long[] freePageBits) {
+        int classCount = pageStore.getClassCount();
+        int swept = 0;
+        for (int localId = 0; localId <= lastPageId; localId++) {
+            if ((freePageBits[localId >>> 6] & (1L << localId)) != 0 || referenced.get(localId)) {
+                continue;
+            }
+            if (!pageStore.isAllocated(PageStore.pageIdOf(pageClass, localId, classCount))) {
+                freePageBits[localId >>> 6] |= 1L << localId;
+                swept++;
+            }
+        }
+        return swept;
+    }
+
+    private void invalidPagesAbove(int pageClass, int lastPageId) throws IOException {
+        int classCount = pageStore.getClassCount();
+        int pageCapacity = pageStore.getPageCapacity(pageClass);
+        for (int localId = lastPageId + 1; localId < pageCapacity; localId++) {
+            int pageId = PageStore.pageIdOf(pageClass, localId, classCount);
+            if (pageStore.isAllocated(pageId)) {
+                pageStore.invalid(pageId);
+            }
+        }
+    }
+
+    /**
+     * Write the index, the free pages and the last page id. Runs after the epoch was drained, so every
+     * operation before the checkpoint is in the index. Operations running meanwhile may be in it or not,
+     * the replay from the checkpoint applies them again, in order, on top of it.
+     * @return true if the snapshot has inline values, the inline marker exists then
+     */
+    private boolean writeSnapshot(Checkpoint checkpoint, Queue<int[]> releasable) throws IOException, InterruptedException {
+        final Snapshot.Writer writer = Snapshot.create(snapshotFile(), checkpoint.lsn);
+        try {
+            final byte[] keyBytes = new byte[Record.MAX_KEY_LENGTH];
+            final int classCount = pageStore.getClassCount();
+            final AtomicBitSet[] referenced = new AtomicBitSet[classCount];     // first pages of the entries
+            for (int pageClass = 0; pageClass < classCount; pageClass++) {
+                referenced[pageClass] = new AtomicBitSet(1024);
+            }
+            final IOException[] error = new IOException[1];
+            final boolean[] inline = new boolean[1];
+            if (offHeapIndexes != null) {
+                offHeapIndexes.forEach(new OffHeapIndex.Visitor() {
+                    @Override
+                    public void visit(long hash, int firstPageId) {
+                        try {
+                            writer.writeHash(hash, firstPageId);
+                            reference(referenced, firstPageId);
+                        } catch (IOException e) {
+                            error[0] = e;
+                        }
+                    }
+                });
+            } else if (longIndexes != null) {
+                longIndexes.forEach(new LongIndex.Visitor<Record>() {
+                    @Override
+                    public void visit(long key, Record record) {
+                        try {
+                            inline[0] |= writeEntry(writer, keyBytes, encodeKey(context, key, keyBytes), record, referenced);
+                        } catch (IOException e) {
+                            error[0] = e;
+                        }
+                    }
+                });
+            } else {
+                indexes.forEach(new Index.Visitor<K, Record>() {
+                    @Override
+                    public void visit(K key, Record record) {
+                        try {
+                            inline[0] |= writeEntry(writer, keyBytes, encodeKey(context, key, keyBytes), record, referenced);
+                        } catch (IOException e) {
+                            error[0] = e;
+                        }
+                    }
+                });
+            }
+            if (error[0] != null) {
+                throw error[0];
+            }
+            // taken after the entries: a page freed after its entry was written is still pending, not free
+            int[] recycled = context.getRecycledPageIds();
+            int[] lastPageIds = new int[classCount];
+            for (int pageClass = 0; pageClass < classCount; pageClass++) {
+                lastPageIds[pageClass] = context.getNextNewPageId(pageClass) - 1;
+            }
+            // operations which borrowed pages before the read are still recorded, wait for them
+            epochBarrier.advance();
+            // records written or freed after the roll which no entry points to are garbage once their
+            // operations are replayed, so they are free in the snapshot. Pages above lastPageIds are
+            // dropped at startup anyway.
+            List<int[]> garbage = new ArrayList<int[]>();
+            for (int[] pageIds : snapshotPages) {
+                int firstPageId = pageIds[0];
+                if (!referenced[PageStore.classOf(firstPageId, classCount)].get(PageStore.localIdOf(firstPageId, classCount))) {
+                    garbage.add(pageIds);
+                }
+            }
+            int freeCount = recycled.length;
+            for (int[] pageIds : releasable) {
+                freeCount += pageIds.length;
+            }
+            for (int[] pageIds : garbage) {
+                freeCount += pageIds.length;
+            }
+            int[] freePageIds = Arrays.copyOf(recycled, freeCount);
+            int index = recycled.length;
+            for (int[] pageIds : releasable) {
+                System.arraycopy(pageIds, 0, freePageIds, index, pageIds.length);
+                index += pageIds.length;
+            }
+            for (int[] pageIds : garbage) {
+                for (int pageId : pageIds) {
+                    if (PageStore.localIdOf(pageId, classCount) <= lastPageIds[PageStore.classOf(pageId, classCount)]) {
+                        freePageIds[index++] = pageId;
+                    }
+                }
+            }
+            pageStore.flush();
+            // every operation in the snapshot has been logged, make it durable so that the replay never
+            // applies an older value on top of a newer one from the snapshot
+            redoLog.flush();
+            if (inline[0]) {
+                // before the snapshot replaces one which may have had none
+                inlineMarkerFile().createNewFile();
+            }
+            writer.commit(lastPageIds, Arrays.copyOf(freePageIds, index));
+            return inline[0];
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        } catch (RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * A record changed meanwhile may be seen without pages nor value, it is skipped then: its
+     * operation is after the roll and replayed
+     * @return true if an inline value was written
+     */
+    private static boolean writeEntry(Snapshot.Writer writer, byte[] keyBytes, int keyLength, Record record,
+                                      AtomicBitSet[] referenced) throws IOException {
+        int[] pageIds = record.getPageIds();
+        if (pageIds != null) {
+            writer.writeKey(keyBytes, keyLength, pageIds);
+            reference(referenced, pageIds[0]);
+            return false;
+        }
+        byte[] inlineValue = record.getInlineValue();
+        if (inlineValue != null) {
+            writer.writeInline(keyBytes, keyLength, inlineValue);
+            return true;
+        }
+        return false;
+    }
+
+    private static void reference(AtomicBitSet[] referenced, int pageId) {
+        int classCount = referenced.length;
+        referenced[PageStore.classOf(pageId, classCount)].set(PageStore.localIdOf(pageId, classCount));
+    }
+
+    private void scanPages(Context tmpContext) throws InterruptedException, IOException {
+        int classCount = pageStore.getClassCount();
+        final AtomicBitSet[] pageIds = new AtomicBitSet[classCount];
+        for (int pageClass = 0; pageClass < classCount; pageClass++) {
+            pageIds[pageClass] = new AtomicBitSet(1024);
+        }
+        int processors = Runtime.getRuntime().availableProcessors();
+        final int[][] maxPageIds = new int[processors][classCount];
+        final CountDownLatch taskWaiter = new CountDownLatch(processors);
+        for (int i = 0; i < processors; i++) {
+            new Thread(new MappedRecordReader(taskWaiter, tmpContext, pageIds, maxPageIds[i], i, processors)).start();
+        }
+        taskWaiter.await();
+
+        long[][] freePageBits = new long[classCount][];
+        int[] pageIdInitialValues = new int[classCount];
+        for (int pageClass = 0; pageClass < classCount; pageClass++) {
+            int lastPageId = -1;
+            for (int[] maxPageId : maxPageIds) {
+                lastPageId = Math.max(lastPageId, maxPageId[pageClass]);
+            }
+            // valid pages out of any record are left by torn chains, they are free
+            for (int localId = 0; localId <= lastPageId; localId++) {
+                int pageId = PageStore.pageIdOf(pageClass, localId, classCount);
+                if (pageStore.isAllocated(pageId) && !pageIds[pageClass].get(localId)) {
+                    pageStore.invalid(pageId);
+                }
+            }
+            invalidPagesAbove(pageClass, lastPageId);
+            freePageBits[pageClass] = new long[(lastPageId + 64) >>> 6];
+            Arrays.fill(freePageBits[pageClass], -1L);
+            pageIds[pageClass].notAnd(freePageBits[pageClass]);
+            pageIdInitialValues[pageClass] = lastPageId + 1;
+        }
+        // replay allocates pages, so the context is built before it
+        context = new Context(config, pageIdInitialValues, freePageBits);
+    }
+
+    private void restoreRecords(Context context, AtomicBitSet[] pageIds, int[] maxPageIds, int index, int mode) {
+        int classCount = pageStore.getClassCount();
+        Arrays.fill(maxPageIds, -1);
+        for (int pageClass = 0; pageClass < classCount; pageClass++) {
+            int pageCapacity = pageStore.getPageCapacity(pageClass);
+            for (int localId = index; localId < pageCapacity; localId += mode) {
+                int pageId = PageStore.pageIdOf(pageClass, localId, classCount);
+                if (!pageStore.isAllocated(pageId)) {
+                    continue;
+                }
+                try {
+                    Pair<Object, Record> key2record = Record.restoreRecord(context, pageStore, pageId);
+                    if (key2record != null) {
+                        int[] recordPageIds = key2record.second.getPageIds();
+                        for (int recordPageId : recordPageIds) {
+                            int recordLocalId = PageStore.localIdOf(recordPageId, classCount);
+                            pageIds[pageClass].set(recordLocalId);
+                            maxPageIds[pageClass] = Math.max(maxPageIds[pageClass], recordLocalId);
+                        }
+                        if (offHeapIndexes != null) {
+                            restoreOffHeap(context, key2record.first, recordPageIds[0]);
+                        } else {
+                            K key = toKey(key2record.first);
+                            keys.put(key, keys.toLong(key), key2record.second);
+                        }
+                    }
+                } catch (PageFaultException ignore) {
+                    // never written, or a record whose chain was torn by a crash
+                } catch (IOException e) {
+                    logger.error("rebuild index", e);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Admission control, called outside of any key lock and epoch. While the log not yet checkpointed
+     * is over writeBlockThreshold, writers are delayed in proportion to the overshoot instead of
+     * being stopped, so a burst slows down smoothly while the rolling task catches up.
+     */
+    private void throttle() {
+        long over = logBytes.get() - writeBlockThreshold;
+        if (over <= 0 || maxWriteThrottleNanos == 0) {
+            return;
+        }
+        long span = Math.max(1, writeBlockThreshold - rollingThreshold);
+        long delay = over >= span ? maxWriteThrottleNanos : (long) ((double) maxWriteThrottleNanos * over / span);
+        throttledWrites.increment();
+        LockSupport.parkNanos(Math.max(delay, MIN_WRITE_THROTTLE_NANOS));
+    }
+
+    private void log(Record.OP op, byte[] keyBytes, int keyLength, byte[] valueBytes) throws IOException {
+        int writeBytes = redoLog.log(config.isLogWithFlush(), op.code, keyBytes, keyLength, valueBytes);
+        long logBytes = this.logBytes.addAndGet(writeBytes);
+        if (logBytes > rollingThreshold && logBytes - writeBytes <= rollingThreshold) {
+            try {
+                rollingLock.lock();
+                rollingGreen.signal();
+            } finally {
+                rollingLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Roll the redo log, wait for every operation logged before the roll, write the snapshot, which
+     * makes the pages durable, and then persist the checkpoint, which deletes the old segments.
+     * Pages freed before the roll are reused only once the snapshot no longer points to them.
+     */
+    private void checkpoint() throws IOException, InterruptedException {
+        snapshotPages = new ConcurrentLinkedQueue<int[]>();
+        Checkpoint checkpoint = redoLog.roll();
+        epochBarrier.advance();
+        // swapped after the drain, so every page freed by an operation before the roll is released,
+        // then drained again for the operations which still add to the old queue
+        Queue<int[]> releasable = pendingFrees;
+        pendingFrees = new ConcurrentLinkedQueue<int[]>();
+        freedPagesAtRoll = freedPages.sum();
+        epochBarrier.advance();
+        if (writeBehind) {
+            // the values logged before the roll are not replayed once the checkpoint is recorded,
+            // the snapshot must have them. Their old pages go to the new queue.
+            try {
+                materializeDirty();
+            } catch (IOException e) {
+                pendingFrees.addAll(releasable);
+                throw e;
+            } catch (Throwable cause) {
+                pendingFrees.addAll(releasable);
+                throw new IOException("write-behind", cause);
+            }
+        }
+        boolean inline;
+        try {
+            inline = writeSnapshot(checkpoint, releasable);
+        } catch (IOException e) {
+            pendingFrees.addAll(releasable);
+            throw e;
+        } finally {
+            snapshotPages = null;
+        }
+        // released before the checkpoint is recorded: a scan after it finds no old record beside the new
+        // one of a key which is not replayed. Before it, the snapshot already has the pages free and the
+        // operations which freed them are replayed.
+        releasePages(releasable);
+        pageStore.flush();
+        redoLog.checkpoint(checkpoint);
+        if (!inline) {
+            // the log before the checkpoint is not replayed any more, no inline value depends on the snapshot
+            inlineMarkerFile().delete();
+        }
+        truncateTail();
+        redoLog.prepareStandby();
+    }
+
+    /**
+     * Cut the free pages at the end of the data files off. The page ids are given up and their regions
+     * retired by one checkpoint, which runs on the thread that released the pages, and the file is
+     * truncated by the next one once the readers are drained: a lock-free reader may still hold a page id
+     * of a moved record until then.
+     * The snapshot keeps the old last page ids until the next checkpoint, pages above the file are free anyway.
+     */
+    private void truncateTail() throws IOException, InterruptedException {
+        if (tailRetired) {
+            tailRetired = false;
+            // checkpoints may run back to back, a reader which entered before the retirement may be in the tail
+            epochBarrier.advance();
+            long bytes = pageStore.truncateRetired();
+            if (bytes > 0) {
+                truncatedBytes.add(bytes);
+                logger.info("compaction cut " + bytes + " bytes off the data files");
+            }
+        }
+        if (!truncateRequested) {
+            return;
+        }
+        truncateRequested = false;
+        for (int pageClass = 0; pageClass < pageStore.getClassCount(); pageClass++) {
+            final int regionClass = pageClass;
+            final int[] regionCount = new int[1];
+            context.truncatePageIds(pageClass, pageStore.getRegionPageCount(pageClass), new PageIdAllocator.Truncation() {
+                @Override
+                public void before(int limit) {
+                    // before the ids are new again, so that a write to them maps the regions again
+                    regionCount[0] = pageStore.retire(regionClass, limit);
+                    tailRetired = true;
+                }
+
+                @Override
+                public void cancelled(int limit) {
+                    pageStore.restore(regionClass, regionCount[0]);
+                }
+            });
+        }
+    }
+
+    /**
+     * Ask the rolling task for a checkpoint, even if the log is below rollingThreshold
+     */
+    private void requestCheckpoint() {
+        checkpointRequested = true;
+        try {
+            rollingLock.lock();
+            rollingGreen.signal();
+        } finally {
+            rollingLock.unlock();
+        }
+    }
+
+    /**
+     * Move the records on the highest page ids of every class with compactionFreeRatio of its ids free to
+     * the lowest free ids, then ask for a checkpoint which releases their old pages and gives up the free
+     * tail, see truncateTail
+     */
+    private void compact() throws IOException, PageFaultException {
+        int moved = 0;
+        boolean releasing = false;
+        // of every class, freed pages are only free in the allocator after the next checkpoint
+        long pending = freedPages.sum() - freedPagesAtRoll;
+        for (int pageClass = 0; pageClass < pageStore.getClassCount() && !closing; pageClass++) {
+            int next = context.getNextNewPageId(pageClass);
+            int free = context.sweepPageIds(pageClass);
+            double threshold = next * config.getCompactionFreeRatio();
+            if (next == 0 || free < threshold) {
+                releasing |= next > 0 && free + pending >= threshold;
+                continue;
+            }
+            truncateRequested = true;
+            // every live record fits below it
+            moved += compact(pageClass, next - free);
+        }
+        if (moved > 0) {
+            logger.info("compaction moved " + moved + " records");
+        }
+        if (moved > 0 || tailRetired || releasing) {
+            requestCheckpoint();
+        }
+    }
+
+    /**
+     * @return the count of records moved below the bound
+     */
+    private int compact(final int pageClass, final int bound) throws IOException, PageFaultException {
+        final int classCount = pageStore.getClassCount();
+        int moved = 0;
+        if (offHeapIndexes != null) {
+            // only the first page is known here, and the pages of a record are ascending
+            final int[] firstPageIds = new int[MAX_COMPACTION_CANDIDATES];
+            final int[] count = new int[1];
+            offHeapIndexes.forEach(new OffHeapIndex.Visitor() {
+                @Override
+                public void visit(long hash, int firstPageId) {
+                    if (count[0] < firstPageIds.length && PageStore.classOf(firstPageId, classCount) == pageClass
+                            && PageStore.localIdOf(firstPageId, classCount) >= bound) {
+                        firstPageIds[count[0]++] = firstPageId;
+                    }
+                }
+            });
+            for (int i = 0; i < count[0] && !closing; i++) {
+                int pages = relocateOffHeap(firstPageIds[i], pageClass, bound);
+                if (pages < 0) {
+                    break;
+                }
+                if (pages > 0) {
+                    moved++;
+                    pause(pages);
+                }
+            }
+        } else if (longIndexes != null) {
+            final long[] candidates = new long[MAX_COMPACTION_CANDIDATES];
+            final int[] count = new int[1];
+            longIndexes.forEach(new LongIndex.Visitor<Record>() {
+                @Override
+                public void visit(long key, Record record) {
+                    if (count[0] < candidates.length && isAbove(record.getPageIds(), pageClass, bound)) {
+                        candidates[count[0]++] = key;
+                    }
+                }
+            });
+            for (int i = 0; i < count[0] && !closing; i++) {
+                int pages = relocate(null, candidates[i], pageClass, bound);
+                if (pages < 0) {
+                    break;
+                }
+                if (pages > 0) {
+                    moved++;
+                    pause(pages);
+                }
+            }
+        } else {
+            final List<K> candidates = new ArrayList<K>();
+            indexes.forEach(new Index.Visitor<K, Record>() {
+                @Override
+                public void visit(K key, Record record) {
+                    if (candidates.size() < MAX_COMPACTION_CANDIDATES && isAbove(record.getPageIds(), pageClass, bound)) {
+                        candidates.add(key);
+                    }
+                }
+            });
+            for (int i = 0; i < candidates.size() && !closing; i++) {
+                int pages = relocate(candidates.get(i), 0, pageClass, bound);
+                if (pages < 0) {
+                    break;
+                }
+                if (pages > 0) {
+                    moved++;
+                    pause(pages);
+                }
+            }
+        }
+        return moved;
+    }
+
+    private boolean isAbove(int[] pageIds, int pageClass, int bound) {
+        int classCount = pageStore.getClassCount();
+        if (pageIds == null || PageStore.classOf(pageIds[0], classCount) != pageClass) {
+            return false;
+        }
+        for (int pageId : pageIds) {
+            if (PageStore.localIdOf(pageId, classCount) >= bound) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Keep the compaction under compactionPagesPerSecond, outside of any key lock
+     */
+    private void pause(int pages) {
+        long pagesPerSecond = config.getCompactionPagesPerSecond();
+        if (pagesPerSecond > 0) {
+            LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1) * pages / pagesPerSecond);
+        }
+    }
+
+    private int relocate(K key, long longKey, int pageClass, int bound) throws IOException, PageFaultException {
+        try {
+            keys.lock(key, longKey);
+            Record old = keys.get(key, longKey);
+            if (old == null || (writeBehind && isDirty(keys.box(key, longKey)))) {
+                return 0;
+            }
+            byte[] keyBytes = context.getKeyBytesCache();
+            return relocate(old, keyBytes, keys.encode(key, longKey, keyBytes), 0, pageClass, bound);
+        } finally {
+            keys.unlock(key, longKey);
+        }
+    }
+
+    private int relocateOffHeap(int firstPageId, int pageClass, int bound) throws IOException, PageFaultException {
+        Pair<Object, Record> key2record;
+        int ticket = epochBarrier.enter();
+        try {
+            key2record = Record.restoreRecord(context, pageStore, firstPageId);
+        } catch (PageFaultException e) {
+            return 0;
+        } finally {
+            epochBarrier.exit(ticket);
+        }
+        if (key2record == null) {
+            return 0;
+        }
+        Object key = key2record.first;
+        byte[] keyBytes = context.getKeyBytesCache();
+        int keyLength = encodeKey(context, key, keyBytes);
+        long hash = OffHeapIndex.hash(keyBytes, keyLength);
+        try {
+            context.lock(key);
+            // the entry may have changed since it was visited
+            Record old = findOffHeap(context, key, hash);
+            if (old == null || old.getPageIds()[0] != firstPageId || isDirty(key)) {
+                return 0;
+            }
+            return relocate(old, keyBytes, keyLength, hash, pageClass, bound);
+        } finally {
+            context.unlock(key);
+        }
+    }
+
+    /**
+     * Move the record below the bound like a put of its value, the caller holds the exclusive key lock.
+     * The move is logged, a replay of it writes the value wherever the allocator of the replay says.
+     * The caller skips a key with a buffered value: its pages are older than its last logged value, and
+     * logging them would replay over it. A later compaction moves it once it is materialized
+     * @param hash the hash of the key with the off-heap index
+     * @return the count of pages moved, 0 if the record stays, -1 if there is no room below the bound
+     */
+    private int relocate(Record old, byte[] keyBytes, int keyLength, long hash, int pageClass, int bound)
+            throws IOException, PageFaultException {
+        int[] oldPageIds = old.getPageIds();
+        if (!isAbove(oldPageIds, pageClass, bound)) {
+            return 0;
+        }
+        int[] pageIds = context.borrowLowPageIds(pageClass, oldPageIds.length, bound);
+        if (pageIds == null) {
+            return -1;
+        }
+        int ticket = epochBarrier.enter();
+        try {
+            byte[] valueBytes = null;
+            try {
+                valueBytes = old.getValueLocked(context, pageStore);
+                if (valueBytes != null) {
+                    log(Record.OP.UPDATE, keyBytes, keyLength, valueBytes);
+                }
+            } catch (IOException e) {
+                context.returnPageIds(pageIds);
+                throw e;
+            } catch (PageFaultException e) {
+                context.returnPageIds(pageIds);
+                throw e;
+            }
+            if (valueBytes == null) {
+                context.returnPageIds(pageIds);
+                return 0;
+            }
+            Record record = Record.moveRecord(context, pageStore, pageIds, keyBytes, keyLength, valueBytes);
+            recordSnapshotPages(pageIds);
+            if (offHeapIndexes != null) {
+                offHeapIndexes.replace(hash, oldPageIds[0], pageIds[0]);
+                freePages(oldPageIds);
+            } else {
+                swapPages(old, record);
+            }
+            relocatedRecords.increment();
+            return pageIds.length;
+        } finally {
+            epochBarrier.exit(ticket);
+        }
+    }
+
+    /**
+     * The steps of an operation which depend on the index of the keys, so put, get, remove, materialize
+     * and relocate have one body for object keys and primitive keys. An operation on a primitive key
+     * passes it as longKey, key is then the boxed key or null until a cache needs it, see box. An
+     * operation on an object key passes 0 as longKey. The off-heap index is handled by the callers,
+     * its entries are hashes rather than keys.
+     */
+    private abstract class KeyAdapter {
+        abstract long toLong(K key);
+
+        /**
+         * @return the boxed key, for the caches and the write-behind buffer
+         */
+        abstract K box(K key, long longKey);
+
+        abstract void lock(K key, long longKey);
+
+        abstract void unlock(K key, long longKey);
+
+        abstract int encode(K key, long longKey, byte[] keyBytes);
+
+        abstract Record get(K key, long longKey);
+
+        abstract void put(K key, long longKey, Record record);
+
+        abstract Record putIfAbsent(K key, long longKey, Record record);
+
+        abstract Record remove(K key, long longKey);
+
+        abstract byte[] getValue(Record record, K key, long longKey) throws IOException, PageFaultException;
+    }
+
+    private final class ObjectKeys extends KeyAdapter {
+        long toLong(K key) {
+            return 0;
+        }
+
+        K box(K key, long longKey) {
+            return key;
+        }
+
+        void lock(K key, long longKey) {
+            context.lock(key);
+        }
+
+        void unlock(K key, long longKey) {
+            context.unlock(key);
+        }
+
+        int encode(K key, long longKey, byte[] keyBytes) {
+            return encodeKey(context, key, keyBytes);
+        }
+
+        Record get(K key, long longKey) {
+            return indexes.get(key);
+        }
+
+        void put(K key, long longKey, Record record) {
+            indexes.put(key, record);
+        }
+
+        Record putIfAbsent(K key, long longKey, Record record) {
+            return indexes.putIfAbsent(key, record);
+        }
+
+        Record remove(K key, long longKey) {
+            return indexes.remove(key);
+        }
+
+        byte[] getValue(Record record, K key, long longKey) throws IOException, PageFaultException {
+            return record.getValue(context, pageStore, key);
+        }
+    }
+
+    /**
+     * Keys of the integral key types in the hash index, never boxed on their way to the key lock, the
+     * redo log and the index
+     */
+    private final class LongKeys extends KeyAdapter {
+        long toLong(K key) {
+            return DB.this.toLong(key);
+        }
+
+        K box(K key, long longKey) {
+            return key != null ? key : boxKey(longKey);
+        }
+
+        void lock(K key, long longKey) {
+            context.lock(longKey);
+        }
+
+        void unlock(K key, long longKey) {
+            context.unlock(longKey);
+        }
+
+        int encode(K key, long longKey, byte[] keyBytes) {
+            return encodeKey(context, longKey, keyBytes);
+        }
+
+        Record get(K key, long longKey) {
+            return longIndexes.get(longKey);
+        }
+
+        void put(K key, long longKey, Record record) {
+            longIndexes.put(longKey, record);
+        }
+
+        Record putIfAbsent(K key, long longKey, Record record) {
+            return longIndexes.putIfAbsent(longKey, record);
+        }
+
+        Record remove(K key, long longKey) {
+            return longIndexes.remove(longKey);
+        }
+
+        byte[] getValue(Record record, K key, long longKey) throws IOException, PageFaultException {
+            return record.getValue(context, pageStore, longKey);
+        }
+    }
+
+    private void doRoll() {
+        while (true) {
+            try {
+                rollingLock.lock();
+                try {
+                    while (logBytes.get() <= rollingThreshold && !closing && !checkpointRequested) {
+                        rollingGreen.await();
+                    }
+                } finally {
+                    rollingLock.unlock();
+                }
+                if (closing) {
+                    return;
+                }
+                checkpointRequested = false;
+                // bytes logged during the checkpoint belong to the new segment and stay counted
+                long rolledBytes = logBytes.get();
+                checkpoint();
+                logBytes.addAndGet(-rolledBytes);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Throwable cause) {
+                logger.error("rolling", cause);
+            }
+        }
+    }
+
+    class MappedRecordReader extends Thread {
+        CountDownLatch taskWaiter;
+        Context context;
+        AtomicBitSet[] pageIds;
+        int[] maxPageIds;
         int index;
         int mode;
 
         MappedRecordReader(CountDownLatch taskWaiter,
-                           Context context, AtomicBitSet pageIds,
+                           Context context, AtomicBitSet[] pageIds,
                            int[] maxPageIds, int index, int mode) {
             super(MappedRecordReader.class.getSimpleName());
             this.taskWaiter = taskWaiter;
@@ -384,6 +2154,72 @@ public class DB<K, V> implements InitializingBean {
         }
     }
 
+    /**
+     * Runs the compaction every compactionIntervalMillis until the db is closing
+     */
+    class CompactionTask implements Runnable {
+        @Override
+        public void run() {
+            long intervalNanos = TimeUnit.MILLISECONDS.toNanos(config.getCompactionIntervalMillis());
+            while (!closing) {
+                LockSupport.parkNanos(intervalNanos);
+                if (closing) {
+                    return;
+                }
+                try {
+                    compact();
+                } catch (Throwable cause) {
+                    logger.error("compaction", cause);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the buffered values to their pages every writeBehindIntervalMillis, or sooner once the buffer
+     * is half full, until the db is closing. The last checkpoint writes what is left.
+     */
+    class WriteBehindTask implements Runnable {
+        @Override
+        public void run() {
+            long intervalNanos = TimeUnit.MILLISECONDS.toNanos(config.getWriteBehindIntervalMillis());
+            while (!closing) {
+                LockSupport.parkNanos(intervalNanos);
+                for (K key : dirtyValues.keySet()) {
+                    if (closing) {
+                        return;
+                    }
+                    try {
+                        materialize(key);
+                    } catch (Throwable cause) {
+                        logger.error("write-behind", cause);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the hot-key manifest every hotKeyManifestIntervalMillis until the db is closing
+     */
+    class HotKeyManifestTask implements Runnable {
+        @Override
+        public void run() {
+            long intervalNanos = TimeUnit.MILLISECONDS.toNanos(config.getHotKeyManifestIntervalMillis());
+            while (!closing) {
+                LockSupport.parkNanos(intervalNanos);
+                if (closing) {
+                    return;
+                }
+                try {
+                    writeHotKeyManifest();
+                } catch (Throwable cause) {
+                    logger.error("hot-key manifest", cause);
+                }
+            }
+        }
+    }
+
     class RollingTask implements Runnable {
         @Override
         public void run() {
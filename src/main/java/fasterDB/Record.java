@@ -1,6 +1,6 @@
 package fasterDB;
 
-import fasterDB.store.MappedStorage;
+import fasterDB.store.PageStore;
 import fasterDB.util.ByteUtil;
 import fasterDB.vo.PageFaultException;
 import fasterDB.vo.Pair;
@@ -27,10 +27,10 @@ public class Record {
     protected enum OP {
         GET(0), UPDATE(1), DEL(2);
 
-        byte[] code;
+        final byte code;
 
         OP(int code) {
-            this.code = new byte[] {(byte) code};
+            this.code = (byte) code;
         }
 
         static OP codeOf(int code) {
@@ -52,134 +52,117 @@ public class Record {
     private static final int OTHER_PAGE_DATA_INDEX = 4;
 
     private static final int MAX_PAGE_COUNT_PER_RECORD = (1 << 16) - 1;
-    private static final int MAX_KEY_LENGTH = (1 << 8) - 1;
+    static final int MAX_KEY_LENGTH = (1 << 8) - 1;
     private static final int MAX_VALUE_LENGTH = Integer.MAX_VALUE;
 
     private static final byte IS_FIRST_PAGE_MASK = (byte) 0x80;
     private static final byte IS_NOT_FIRST_PAGE_MASK = (byte) 0x7f;
     private static final int NEXT_PAGE_ID_MASK = 0x7fffffff;
 
-    private static final int DEL_MASK = 0x80000000;
-    private static final int UPDATE_MASK = 0x40000000;
-    private static final int REF_MASK = 0x3fffffff;
+    private static final int PAGE_COST = 32;        // bytes a page is worth beside its size, see pageClass
+    private static final int OPTIMISTIC_READ_RETRIES = 8;
+    private static final byte[] RETRY_LOCKED = new byte[0];
 
-    private int[] pageIds;
-    private int flag;
+    /**
+     * Seqlock of the record, odd while a writer is swapping pageIds.
+     * Writers are already serialized by the exclusive key lock.
+     */
+    private volatile int version;
+    private volatile int[] pageIds;
+    private volatile byte[] inlineValue;    // a small value kept here instead of pages, never changed once set
 
     private Record(int[] pageIds) {
         this.pageIds = pageIds;
     }
 
-    public synchronized void lock(OP op) throws InterruptedException {
-        switch (op) {
-            case GET:
-                for (;;) {
-                    if ((flag & UPDATE_MASK) == UPDATE_MASK
-                            || (flag & DEL_MASK) == DEL_MASK) {
-                        wait();
-                    } else {
-                        flag++;
-                        return;
-                    }
-                }
-            case UPDATE:
-                for (;;) {
-                    if ((flag & REF_MASK) != 0
-                            || (flag & DEL_MASK) == DEL_MASK) {
-                        wait();
-                    } else {
-                        flag |= UPDATE_MASK;
-                        return;
-                    }
-                }
-            case DEL:
-                for (;;) {
-                    if ((flag & REF_MASK) != 0
-                            || (flag & UPDATE_MASK) == UPDATE_MASK) {
-                        wait();
-                    } else {
-                        flag |= DEL_MASK;
-                        return;
-                    }
-                }
+    /**
+     * Record of a value which has no pages, it is only written to the redo log and the snapshot
+     * @param valueBytes
+     * @return
+     */
+    public static final Record inlineRecord(byte[] valueBytes) {
+        if (valueBytes == null || valueBytes.length == 0) {
+            throw new IllegalArgumentException("param valueBytes should not be empty");
         }
+        Record record = new Record(null);
+        record.inlineValue = valueBytes;
+        return record;
     }
 
-    public synchronized void unlock(OP op) {
-        switch (op) {
-            case GET:
-                flag--;
-                break;
-            case UPDATE:
-                flag |= UPDATE_MASK;
-                break;
-            case DEL:
-                flag |= DEL_MASK;
-                break;
+    /**
+     * Rebuild the record of pages known to hold it, e.g. from a snapshot
+     * @param pageIds
+     * @return
+     */
+    public static final Record loadRecord(int[] pageIds) {
+        if (pageIds == null || pageIds.length == 0) {
+            throw new IllegalArgumentException("param pageIds should not be empty");
         }
-        notifyAll();
+        return new Record(pageIds);
     }
 
-    public static final Pair<Object, Record> restoreRecord(Context context, MappedStorage mappedStorage, int pageId) throws PageFaultException, IOException {
-        byte[] page = context.borrowPageCache();
-        int pageSize = context.getConfig().getPageSize();
-        try {
-            int pageCount = 1;
-            int[] pageIds = null;
-            int keyLength = 0;
-            byte[] keyBytes = null;
-            int leftKeyBytes = 0;
-            int currentPageId = pageId;
-
-            for (int pageIndex = 0; pageIndex < pageCount; pageIndex++) {
-                boolean valid = mappedStorage.getPage(pageId, page);
-                if (!valid) {
-                    return null;
-                }
-                boolean isFirstPage = (page[IS_FIRST_PAGE_INDEX] & IS_FIRST_PAGE_MASK) == IS_FIRST_PAGE_MASK;
-                if ((pageIndex == 0 && !isFirstPage)
-                        || (pageIndex != 0 && isFirstPage)) {
+    public static final Pair<Object, Record> restoreRecord(Context context, PageStore pageStore, int pageId) throws PageFaultException, IOException {
+        int classCount = pageStore.getClassCount();
+        int pageClass = PageStore.classOf(pageId, classCount);
+        int pageSize = pageStore.getPageSize(pageClass);
+        byte[] page = context.getRecordCache(pageSize);
+        int pageCount = 1;
+        int[] pageIds = null;
+        int keyLength = 0;
+        byte[] keyBytes = null;
+        int leftKeyBytes = 0;
+        int currentPageId = pageId;
+
+        for (int pageIndex = 0; pageIndex < pageCount; pageIndex++) {
+            boolean valid = pageStore.getPage(currentPageId, page, 0);
+            if (!valid) {
+                return null;
+            }
+            boolean isFirstPage = (page[IS_FIRST_PAGE_INDEX] & IS_FIRST_PAGE_MASK) == IS_FIRST_PAGE_MASK;
+            if ((pageIndex == 0 && !isFirstPage)
+                    || (pageIndex != 0 && isFirstPage)) {
+                return null;
+            }
+            if (isFirstPage) {
+                pageCount = ByteUtil.getUnsignedShortBigEndian(page, PAGE_COUNT_INDEX);
+                if (pageCount <= 0) {
                     return null;
                 }
-                if (isFirstPage) {
-                    pageCount = ByteUtil.getUnsignedShortBigEndian(page, PAGE_COUNT_INDEX);
-                    if (pageCount <= 0) {
-                        return null;
-                    }
-                    pageIds = new int[pageCount];
-                    keyLength = ByteUtil.getUnsignedByte(page, KEY_LENGTH_INDEX);
-                    keyBytes = getKeyBytes(context, keyLength);
-                    leftKeyBytes = keyLength;
-                }
+                pageIds = new int[pageCount];
+                keyLength = ByteUtil.getUnsignedByte(page, KEY_LENGTH_INDEX);
+                keyBytes = getKeyBytes(context, keyLength);
+                leftKeyBytes = keyLength;
+            }
 
-                pageIds[pageIndex] = currentPageId;
+            pageIds[pageIndex] = currentPageId;
 
-                if (leftKeyBytes > 0) {
-                    int dataIndex = pageIndex == 0 ? FIRST_PAGE_DATA_INDEX : OTHER_PAGE_DATA_INDEX;
-                    int canStoreKey = Math.min(leftKeyBytes, pageSize - dataIndex);
-                    if (canStoreKey > 0) {
-                        System.arraycopy(page, dataIndex, keyBytes, keyLength - leftKeyBytes, canStoreKey);
-                        leftKeyBytes -= canStoreKey;
-                    }
+            if (leftKeyBytes > 0) {
+                int dataIndex = pageIndex == 0 ? FIRST_PAGE_DATA_INDEX : OTHER_PAGE_DATA_INDEX;
+                int canStoreKey = Math.min(leftKeyBytes, pageSize - dataIndex);
+                if (canStoreKey > 0) {
+                    System.arraycopy(page, dataIndex, keyBytes, keyLength - leftKeyBytes, canStoreKey);
+                    leftKeyBytes -= canStoreKey;
                 }
+            }
 
-                int nextPageId = (int) (ByteUtil.getUnsignedIntBigEndian(page, NEXT_PAGE_ID_INDEX) & NEXT_PAGE_ID_MASK);
-                if (nextPageId == currentPageId) {
-                    break;
+            int nextPageId = (int) (ByteUtil.getUnsignedIntBigEndian(page, NEXT_PAGE_ID_INDEX) & NEXT_PAGE_ID_MASK);
+            if (nextPageId == currentPageId) {
+                if (pageIndex != pageCount - 1) {
+                    return null;
                 }
-
-                pageIndex++;
-                currentPageId = nextPageId;
+                break;
             }
-            Pair<Object, Record> pair = new Pair<Object, Record>();
-            pair.first = getKey(context, keyBytes, 0, keyLength);
-            pair.second = new Record(pageIds);
-            return pair;
-        } finally {
-            if (page != null) {
-                context.returnPageCache(page);
+
+            // a record never spans page classes, a torn chain may point anywhere
+            if (PageStore.classOf(nextPageId, classCount) != pageClass) {
+                return null;
             }
+            currentPageId = nextPageId;
         }
+        Pair<Object, Record> pair = new Pair<Object, Record>();
+        pair.first = getKey(context, keyBytes, 0, keyLength);
+        pair.second = new Record(pageIds);
+        return pair;
     }
 
     private static byte[] getKeyBytes(Context context, int keyLength) {
@@ -198,156 +181,386 @@ public class Record {
         throw new IllegalArgumentException("key 's type is invalid");
     }
 
-    public static final Record buildRecord(Context context, MappedStorage mappedStorage, byte[] keyBytes, byte[] valueBytes) throws Throwable {
-        if (keyBytes == null || keyBytes.length == 0
+    public static final Record buildRecord(Context context, PageStore pageStore, byte[] keyBytes, int keyLength, byte[] valueBytes) throws Throwable {
+        if (keyBytes == null || keyLength <= 0 || keyLength > keyBytes.length
                 || valueBytes == null || valueBytes.length == 0) {
             throw new IllegalArgumentException("key and value should not be empty");
         }
-        int pageSize = context.getConfig().getPageSize();
-        if (pageSize < FIRST_PAGE_DATA_INDEX) {
-            throw new RuntimeException("pageSize should >= " + FIRST_PAGE_DATA_INDEX);
-        }
-        if (keyBytes.length > MAX_KEY_LENGTH) {
+        if (keyLength > MAX_KEY_LENGTH) {
             throw new IllegalArgumentException("key 's length should <= " + MAX_KEY_LENGTH);
         }
         if (valueBytes.length > MAX_VALUE_LENGTH) {
             throw new IllegalArgumentException("key 's length should <= " + MAX_VALUE_LENGTH);
         }
-        int pageCount = pageCount(keyBytes.length, valueBytes.length, pageSize);
-        if (pageCount > MAX_PAGE_COUNT_PER_RECORD) {
-            throw new IllegalArgumentException("key and value is too large");
+        if (valueBytes.length <= context.getConfig().getInlineValueThreshold()) {
+            // the caller may reuse its array
+            return inlineRecord(valueBytes.clone());
         }
-        int leftKeyBytes = keyBytes.length;
-        int leftValueBytes = valueBytes.length;
-        int[] pageIds = context.borrowPageIds(pageCount);
+        int pageClass = pageClass(pageStore, keyLength, valueBytes.length);
+        int pageSize = pageStore.getPageSize(pageClass);
+        int pageCount = pageCount(keyLength, valueBytes.length, pageSize);
+        int[] pageIds = context.borrowPageIds(pageClass, pageCount);
         Arrays.sort(pageIds);
-        byte[] page = context.borrowPageCache();
         try {
-            for (int pageIndex = 0; pageIndex < pageCount; pageIndex++) {
-                int nextPageId = pageIndex == pageCount - 1 ? pageIds[pageIndex] : pageIds[pageIndex + 1];
-                ByteUtil.getUnsignedBytesBigEndian(nextPageId, page, NEXT_PAGE_ID_INDEX);
-                if (pageIndex == 0) {
-                    page[IS_FIRST_PAGE_INDEX] |= IS_FIRST_PAGE_MASK;
-                    ByteUtil.getUnsignedBytesBigEndian((short) pageCount, page, PAGE_COUNT_INDEX);
-                    ByteUtil.getUnsignedByte((byte) keyBytes.length, page, KEY_LENGTH_INDEX);
-                    ByteUtil.getBytesBigEndian(valueBytes.length, page, VALUE_LENGTH_INDEX);
-
-                    int canStoreKeyBytes = Math.min(pageSize - FIRST_PAGE_DATA_INDEX, leftKeyBytes);
-                    if (canStoreKeyBytes > 0) {
-                        System.arraycopy(keyBytes, 0, page, FIRST_PAGE_DATA_INDEX, canStoreKeyBytes);
-                        leftKeyBytes -= canStoreKeyBytes;
-                        int canStoreValueBytes = Math.min(pageSize - FIRST_PAGE_DATA_INDEX - canStoreKeyBytes, leftValueBytes);
-                        if (canStoreValueBytes > 0) {
-                            System.arraycopy(valueBytes, 0, page, FIRST_PAGE_DATA_INDEX + canStoreKeyBytes, canStoreValueBytes);
-                            leftValueBytes -= canStoreValueBytes;
-                        }
-                    }
-                } else {
-                    page[IS_FIRST_PAGE_INDEX] &= IS_NOT_FIRST_PAGE_MASK;
-                    int canStoreKeyBytes = Math.min(pageSize - OTHER_PAGE_DATA_INDEX, leftKeyBytes);
-                    if (canStoreKeyBytes > 0) {
-                        System.arraycopy(keyBytes, keyBytes.length - leftKeyBytes, page, OTHER_PAGE_DATA_INDEX, canStoreKeyBytes);
-                        leftKeyBytes -= canStoreKeyBytes;
-                    }
-                    int canStoreValueBytes = Math.min(pageSize - OTHER_PAGE_DATA_INDEX - canStoreKeyBytes, leftValueBytes);
-                    if (canStoreValueBytes > 0) {
-                        System.arraycopy(valueBytes, valueBytes.length - leftValueBytes, page, OTHER_PAGE_DATA_INDEX + canStoreKeyBytes, canStoreValueBytes);
-                        leftValueBytes -= canStoreValueBytes;
-                    }
-                }
-                mappedStorage.setPage(pageIds[pageIndex], page, false);
-            }
+            writePages(context, pageStore, pageIds, pageSize, keyBytes, keyLength, valueBytes);
         } catch (Throwable cause) {
             context.returnPageIds(pageIds);
             throw cause;
-        } finally {
-            context.returnPageCache(page);
         }
         return new Record(pageIds);
     }
 
-    private static int pageCount(int keyBytes, int valueBytes, int pageSize) {
-        int totalSize = FIRST_PAGE_DATA_INDEX + keyBytes + valueBytes;
-        int pageCount = 1;
-        totalSize -= pageSize;
-        for (;;) {
-            if (totalSize <= 0) {
-                break;
+    /**
+     * Overwrite the pages of the record with the value if it needs exactly as many pages of their class.
+     * The chain, the key and the page states stay as they are, only the value length and the value change.
+     * The caller should hold the exclusive key lock, and the value should be logged durably before: a page
+     * torn by a crash is only repaired by the replay
+     * @param context
+     * @param pageStore
+     * @param keyBytes
+     * @param keyLength
+     * @param valueBytes
+     * @return false if the value does not fit the pages or would be inline, nothing is written then
+     */
+    public boolean rewrite(Context context, PageStore pageStore, byte[] keyBytes, int keyLength, byte[] valueBytes) throws IOException {
+        int[] pageIds = this.pageIds;
+        if (pageIds == null || valueBytes == null || valueBytes.length == 0
+                || valueBytes.length <= context.getConfig().getInlineValueThreshold()) {
+            return false;
+        }
+        int pageSize = pageStore.getPageSize(PageStore.classOf(pageIds[0], pageStore.getClassCount()));
+        if (pageCount(keyLength, valueBytes.length, pageSize) != pageIds.length) {
+            return false;
+        }
+        version++;
+        try {
+            writePages(context, pageStore, pageIds, pageSize, keyBytes, keyLength, valueBytes);
+        } finally {
+            version++;
+        }
+        return true;
+    }
+
+    /**
+     * Write the record again on other pages of its class, for the compaction. The caller should hold
+     * the exclusive key lock
+     * @param context
+     * @param pageStore
+     * @param pageIds as many pages of the class of the record as it has, returned to the context if the write fails
+     * @param keyBytes
+     * @param keyLength
+     * @param valueBytes
+     * @return the record on the new pages
+     */
+    public static final Record moveRecord(Context context, PageStore pageStore, int[] pageIds,
+                                          byte[] keyBytes, int keyLength, byte[] valueBytes) throws IOException {
+        int pageSize = pageStore.getPageSize(PageStore.classOf(pageIds[0], pageStore.getClassCount()));
+        try {
+            if (pageCount(keyLength, valueBytes.length, pageSize) != pageIds.length) {
+                throw new IllegalArgumentException("param pageIds should fit the record");
             }
-            pageCount++;
-            totalSize -= pageSize - OTHER_PAGE_DATA_INDEX;
+            writePages(context, pageStore, pageIds, pageSize, keyBytes, keyLength, valueBytes);
+        } catch (IOException e) {
+            context.returnPageIds(pageIds);
+            throw e;
+        } catch (RuntimeException e) {
+            context.returnPageIds(pageIds);
+            throw e;
         }
-        return pageCount;
+        return new Record(pageIds);
     }
 
-    public byte[] getValue(Context context, MappedStorage mappedStorage) throws InterruptedException, IOException {
+    private static void writePages(Context context, PageStore pageStore, int[] pageIds, int pageSize,
+                                   byte[] keyBytes, int keyLength, byte[] valueBytes) throws IOException {
         int pageCount = pageIds.length;
-        byte[][] pageSegments = new byte[pageCount][];
-        try {
-            try {
-                lock(Record.OP.GET);
-                for (int i = 0; i < pageCount; i++) {
-                    int pageId = pageIds[i];
-                    pageSegments[i] = context.borrowPageCache();
-                    boolean valid = mappedStorage.getPage(pageId, pageSegments[i]);
-                    if (!valid) {
-                        return null;
+        int leftKeyBytes = keyLength;
+        int leftValueBytes = valueBytes.length;
+        byte[] pages = context.getRecordCache(pageCount * pageSize);
+        for (int pageIndex = 0; pageIndex < pageCount; pageIndex++) {
+            int base = pageIndex * pageSize;
+            int nextPageId = pageIndex == pageCount - 1 ? pageIds[pageIndex] : pageIds[pageIndex + 1];
+            ByteUtil.getUnsignedBytesBigEndian(nextPageId, pages, base + NEXT_PAGE_ID_INDEX);
+            if (pageIndex == 0) {
+                pages[IS_FIRST_PAGE_INDEX] |= IS_FIRST_PAGE_MASK;
+                ByteUtil.getUnsignedBytesBigEndian((short) pageCount, pages, PAGE_COUNT_INDEX);
+                ByteUtil.getUnsignedByte((byte) keyLength, pages, KEY_LENGTH_INDEX);
+                ByteUtil.getBytesBigEndian(valueBytes.length, pages, VALUE_LENGTH_INDEX);
+
+                int canStoreKeyBytes = Math.min(pageSize - FIRST_PAGE_DATA_INDEX, leftKeyBytes);
+                if (canStoreKeyBytes > 0) {
+                    System.arraycopy(keyBytes, 0, pages, FIRST_PAGE_DATA_INDEX, canStoreKeyBytes);
+                    leftKeyBytes -= canStoreKeyBytes;
+                    int canStoreValueBytes = Math.min(pageSize - FIRST_PAGE_DATA_INDEX - canStoreKeyBytes, leftValueBytes);
+                    if (canStoreValueBytes > 0) {
+                        System.arraycopy(valueBytes, 0, pages, FIRST_PAGE_DATA_INDEX + canStoreKeyBytes, canStoreValueBytes);
+                        leftValueBytes -= canStoreValueBytes;
                     }
                 }
-            } catch (PageFaultException e) {
-                return null;
-            } finally {
-                unlock(Record.OP.GET);
-            }
-            int keyLength = ByteUtil.getUnsignedByte(pageSegments[0], KEY_LENGTH_INDEX);
-            int valueLength = ByteUtil.getIntBigEndian(pageSegments[0], VALUE_LENGTH_INDEX);
-            byte[] valueBytes = new byte[valueLength];
-            int pageSize = context.getConfig().getPageSize();
-            int leftKeyBytes = keyLength;
-            int leftValueBytes = valueLength;
-            for (int pageIndex = 0; pageIndex < pageCount; pageIndex++) {
-                byte[] pageSegment = pageSegments[pageIndex];
-                int dataIndex = pageIndex == 0 ? FIRST_PAGE_DATA_INDEX : OTHER_PAGE_DATA_INDEX;
-                int canStoreKeyBytes = Math.min(pageSize - dataIndex, leftKeyBytes);
-                int canStoreValueBytes = Math.min(pageSize - dataIndex - canStoreKeyBytes, leftValueBytes);
+            } else {
+                pages[base + IS_FIRST_PAGE_INDEX] &= IS_NOT_FIRST_PAGE_MASK;
+                int canStoreKeyBytes = Math.min(pageSize - OTHER_PAGE_DATA_INDEX, leftKeyBytes);
+                if (canStoreKeyBytes > 0) {
+                    System.arraycopy(keyBytes, keyLength - leftKeyBytes, pages, base + OTHER_PAGE_DATA_INDEX, canStoreKeyBytes);
+                    leftKeyBytes -= canStoreKeyBytes;
+                }
+                int canStoreValueBytes = Math.min(pageSize - OTHER_PAGE_DATA_INDEX - canStoreKeyBytes, leftValueBytes);
                 if (canStoreValueBytes > 0) {
-                    System.arraycopy(pageSegment, dataIndex + canStoreKeyBytes, valueBytes, valueLength - leftValueBytes, canStoreValueBytes);
+                    System.arraycopy(valueBytes, valueBytes.length - leftValueBytes, pages, base + OTHER_PAGE_DATA_INDEX + canStoreKeyBytes, canStoreValueBytes);
+                    leftValueBytes -= canStoreValueBytes;
                 }
-                leftKeyBytes -= canStoreKeyBytes;
-                leftValueBytes -= canStoreValueBytes;
             }
+            pageStore.setPage(pageIds[pageIndex], pages, base, pageSize, false);
+        }
+    }
+
+    private static int pageCount(int keyBytes, int valueBytes, int pageSize) {
+        long totalSize = (long) FIRST_PAGE_DATA_INDEX + keyBytes + valueBytes;
+        if (totalSize <= pageSize) {
+            return 1;
+        }
+        long otherPageSize = pageSize - OTHER_PAGE_DATA_INDEX;
+        long pageCount = 1 + (totalSize - pageSize + otherPageSize - 1) / otherPageSize;
+        return (int) Math.min(pageCount, Integer.MAX_VALUE);
+    }
+
+    /**
+     * The class of the lowest cost, the cost of a record is the space of its pages plus PAGE_COST
+     * for every page, as each page is one more latch, copy and hop of the chain. Ties go to the larger pages.
+     * @return the page class of the record
+     */
+    private static int pageClass(PageStore pageStore, int keyLength, int valueLength) {
+        int classCount = pageStore.getClassCount();
+        int bestClass = -1;
+        long bestCost = Long.MAX_VALUE;
+        for (int pageClass = 0; pageClass < classCount; pageClass++) {
+            int pageSize = pageStore.getPageSize(pageClass);
+            if (pageSize < FIRST_PAGE_DATA_INDEX) {
+                continue;
+            }
+            int pageCount = pageCount(keyLength, valueLength, pageSize);
+            if (pageCount > MAX_PAGE_COUNT_PER_RECORD) {
+                continue;
+            }
+            // the page and its metadata byte
+            long cost = (long) pageCount * (pageSize + 1 + PAGE_COST);
+            if (cost <= bestCost) {
+                bestClass = pageClass;
+                bestCost = cost;
+            }
+        }
+        if (bestClass < 0) {
+            if (pageStore.getPageSize(classCount - 1) < FIRST_PAGE_DATA_INDEX) {
+                throw new RuntimeException("pageSize should >= " + FIRST_PAGE_DATA_INDEX);
+            }
+            throw new IllegalArgumentException("key and value is too large");
+        }
+        return bestClass;
+    }
+
+    /**
+     * Read the value without any lock, pages are copied optimistically and the copy is
+     * only accepted if the version did not change meanwhile. A page can be recycled by a
+     * writer only after the version was bumped, so a copy of a reused page never passes.
+     * After some failed attempts the key is locked in shared mode which holds writers off.
+     *
+     * @param context
+     * @param pageStore
+     * @param key
+     * @return null if the record has been removed
+     */
+    public byte[] getValue(Context context, PageStore pageStore, Object key) throws IOException, PageFaultException {
+        byte[] valueBytes = getValueOptimistically(context, pageStore);
+        if (valueBytes != RETRY_LOCKED) {
+            return valueBytes;
+        }
+        try {
+            context.lockShared(key);
+            return getValueLocked(context, pageStore);
+        } finally {
+            context.unlockShared(key);
+        }
+    }
+
+    /**
+     * Same as getValue, for keys locked through their primitive value
+     */
+    public byte[] getValue(Context context, PageStore pageStore, long key) throws IOException, PageFaultException {
+        byte[] valueBytes = getValueOptimistically(context, pageStore);
+        if (valueBytes != RETRY_LOCKED) {
             return valueBytes;
+        }
+        try {
+            context.lockShared(key);
+            return getValueLocked(context, pageStore);
         } finally {
-            for (byte[] page : pageSegments) {
-                if (page != null) {
-                    context.returnPageCache(page);
+            context.unlockShared(key);
+        }
+    }
+
+    /**
+     * @return RETRY_LOCKED if every attempt raced with a writer
+     */
+    private byte[] getValueOptimistically(Context context, PageStore pageStore) throws IOException, PageFaultException {
+        for (int retry = 0; retry < OPTIMISTIC_READ_RETRIES; retry++) {
+            int version = this.version;
+            if ((version & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            byte[] inlineValue = this.inlineValue;
+            if (inlineValue != null) {
+                return inlineValue.clone();
+            }
+            int[] pageIds = this.pageIds;
+            if (pageIds == null) {
+                // may have been read across a swap to an inline value
+                if (version == this.version) {
+                    return null;
                 }
+                continue;
+            }
+            byte[] valueBytes;
+            try {
+                valueBytes = readValue(context, pageStore, pageIds);
+            } catch (PageFaultException e) {
+                valueBytes = null;
+            }
+            // every page copy is fenced by the page latch, so this read happens after the copies
+            if (version == this.version) {
+                if (valueBytes == null) {
+                    throw new PageFaultException("key 's page is missed");
+                }
+                return valueBytes;
             }
         }
+        return RETRY_LOCKED;
     }
 
+    /**
+     * Read the value without retries, the caller should hold the key lock
+     * @return null if the record has been removed
+     */
+    public byte[] getValueLocked(Context context, PageStore pageStore) throws IOException, PageFaultException {
+        byte[] inlineValue = this.inlineValue;
+        if (inlineValue != null) {
+            return inlineValue.clone();
+        }
+        int[] pageIds = this.pageIds;
+        if (pageIds == null) {
+            return null;
+        }
+        byte[] valueBytes = readValue(context, pageStore, pageIds);
+        if (valueBytes == null) {
+            throw new PageFaultException("key 's page is missed");
+        }
+        return valueBytes;
+    }
+
+    /**
+     * Pages of a record with adjacent ids are copied as one run
+     * @return null if one of the pages is invalid or the pages are inconsistent
+     */
+    private static byte[] readValue(Context context, PageStore pageStore, int[] pageIds) throws IOException, PageFaultException {
+        int pageCount = pageIds.length;
+        int pageSize = pageStore.getPageSize(PageStore.classOf(pageIds[0], pageStore.getClassCount()));
+        byte[] pages = context.getRecordCache(pageCount * pageSize);
+        if (isRun(pageIds)) {
+            if (!pageStore.getPages(pageIds[0], pageCount, pages)) {
+                return null;
+            }
+        } else {
+            for (int i = 0; i < pageCount; i++) {
+                if (!pageStore.getPage(pageIds[i], pages, i * pageSize)) {
+                    return null;
+                }
+            }
+        }
+        int keyLength = ByteUtil.getUnsignedByte(pages, KEY_LENGTH_INDEX);
+        int valueLength = ByteUtil.getIntBigEndian(pages, VALUE_LENGTH_INDEX);
+        if (valueLength < 0 || pageCount(keyLength, valueLength, pageSize) != pageCount) {
+            return null;
+        }
+        byte[] valueBytes = new byte[valueLength];
+        int leftKeyBytes = keyLength;
+        int leftValueBytes = valueLength;
+        for (int pageIndex = 0; pageIndex < pageCount; pageIndex++) {
+            int dataIndex = pageIndex * pageSize + (pageIndex == 0 ? FIRST_PAGE_DATA_INDEX : OTHER_PAGE_DATA_INDEX);
+            int dataLength = pageIndex == 0 ? pageSize - FIRST_PAGE_DATA_INDEX : pageSize - OTHER_PAGE_DATA_INDEX;
+            int canStoreKeyBytes = Math.min(dataLength, leftKeyBytes);
+            int canStoreValueBytes = Math.min(dataLength - canStoreKeyBytes, leftValueBytes);
+            if (canStoreValueBytes > 0) {
+                System.arraycopy(pages, dataIndex + canStoreKeyBytes, valueBytes, valueLength - leftValueBytes, canStoreValueBytes);
+            }
+            leftKeyBytes -= canStoreKeyBytes;
+            leftValueBytes -= canStoreValueBytes;
+        }
+        return valueBytes;
+    }
+
+    private static boolean isRun(int[] pageIds) {
+        for (int i = 1; i < pageIds.length; i++) {
+            if (pageIds[i] != pageIds[i - 1] + 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return null if the record has pages or has been removed
+     */
+    public byte[] getInlineValue() {
+        return inlineValue;
+    }
+
+    /**
+     * @return null if the value is inline or the record has been removed
+     */
     public int[] getPageIds() {
         return pageIds;
     }
 
+    /**
+     * Swap the pages of the record, the caller should hold the exclusive key lock
+     * @param pageIds
+     * @return the old pageIds, they are safe to recycle once this returns
+     */
     public int[] setPageIds(int[] pageIds) {
+        version++;
         int[] old = this.pageIds;
         this.pageIds = pageIds;
-        flag = 0;
+        this.inlineValue = null;
+        version++;
+        return old;
+    }
+
+    /**
+     * Take the pages or the inline value of record, the caller should hold the exclusive key lock
+     * @param record
+     * @return the old pageIds, they are safe to recycle once this returns
+     */
+    public int[] replace(Record record) {
+        version++;
+        int[] old = this.pageIds;
+        this.pageIds = record.pageIds;
+        this.inlineValue = record.inlineValue;
+        version++;
         return old;
     }
 
     public int[] removePageIds() {
-        pageIds = null;
-        flag = 0;
-        return pageIds;
+        return setPageIds(null);
     }
 
     public static Object getKey(Context context, byte[] bytes, int from, int to) {
         switch (context.getConfig().getKeyType()) {
             case STRING:
-                byte[] bs = from <= 0 ? bytes : Arrays.copyOfRange(bytes, from, to);
-                return new String(bs, StandardCharsets.UTF_8);
+                // bytes may be a reused buffer longer than the key
+                return new String(bytes, from, to - from, StandardCharsets.UTF_8);
             case SHORT:
                 return ByteUtil.getShortBigEndian(bytes, from);
             case INT:
@@ -0,0 +1,144 @@
+package fasterDB.cache;
+
+/**
+ * Count-min sketch of how often keys were accessed lately, the TinyLFU history
+ *
+ * Counters are 4 bits, 16 to a long, a long for every expected key, and a key has one counter in each of
+ * 4 longs. Once the increments reach the sample size every counter is halved, so the counts fade and follow
+ * a changing working set.
+ *
+ * The first access of a key only sets its 2 bits in the doorkeeper, a bloom filter of 32 bits for every
+ * expected key, and counts as 1. Keys read once, like the keys of a scan, then neither wear out the counters
+ * nor speed up the halving which would erase the counts of the working set. The doorkeeper is cleared when
+ * the counters are halved, or sooner once a quarter of its bits may be set.
+ *
+ * The tables are written without locks: a lost increment only lowers a count, which the sketch allows anyway.
+ */
+final class FrequencySketch {
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_FREQUENCY = 15;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size;
+    private final long[] doorkeeper;
+    private final int doorkeeperCapacity;   // insertions before it is cleared
+    private int doorkeeperSize;
+
+    /**
+     * @param expectedKeys how many keys are expected to be cached, the table and the sample grow with it
+     */
+    FrequencySketch(long expectedKeys) {
+        int keys = (int) Math.max(64, Math.min(expectedKeys, 1 << 24));
+        int length = Integer.highestOneBit(keys);
+        if (length < keys) {
+            length <<= 1;
+        }
+        table = new long[length];
+        tableMask = length - 1;
+        sampleSize = 10 * keys;
+        doorkeeper = new long[Math.max(1, length / 2)];
+        doorkeeperCapacity = doorkeeper.length * 64 / 8;
+    }
+
+    /**
+     * @return the estimated count of the key, at most 15
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_FREQUENCY;
+        for (int i = 0; i < 4; i++) {
+            long word = table[indexOf(hash, i)];
+            frequency = Math.min(frequency, (int) ((word >>> offsetOf(hash, i)) & 0xf));
+        }
+        return frequency < MAX_FREQUENCY && inDoorkeeper(hash) ? frequency + 1 : frequency;
+    }
+
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        if (enterDoorkeeper(hash)) {
+            return;
+        }
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int offset = offsetOf(hash, i);
+            long word = table[index];
+            if (((word >>> offset) & 0xf) < MAX_FREQUENCY) {
+                table[index] = word + (1L << offset);
+                added = true;
+            }
+        }
+        if (added && ++size >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Halve every counter
+     */
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = size >>> 1;
+        clearDoorkeeper();
+    }
+
+    private boolean inDoorkeeper(int hash) {
+        int bit1 = hash & (doorkeeper.length * 64 - 1);
+        int bit2 = rehash(hash) & (doorkeeper.length * 64 - 1);
+        return (doorkeeper[bit1 >>> 6] & (1L << bit1)) != 0 && (doorkeeper[bit2 >>> 6] & (1L << bit2)) != 0;
+    }
+
+    /**
+     * @return true if the key was not in the doorkeeper and is now
+     */
+    private boolean enterDoorkeeper(int hash) {
+        if (inDoorkeeper(hash)) {
+            return false;
+        }
+        int bit1 = hash & (doorkeeper.length * 64 - 1);
+        int bit2 = rehash(hash) & (doorkeeper.length * 64 - 1);
+        doorkeeper[bit1 >>> 6] |= 1L << bit1;
+        doorkeeper[bit2 >>> 6] |= 1L << bit2;
+        if (++doorkeeperSize >= doorkeeperCapacity) {
+            clearDoorkeeper();
+        }
+        return true;
+    }
+
+    private void clearDoorkeeper() {
+        for (int i = 0; i < doorkeeper.length; i++) {
+            doorkeeper[i] = 0;
+        }
+        doorkeeperSize = 0;
+    }
+
+    private static int rehash(int hash) {
+        hash *= 0x31848bab;
+        hash ^= hash >>> 14;
+        return hash;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    private static int offsetOf(int hash, int i) {
+        return ((hash >>> (i << 3)) & 0xf) << 2;
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 17;
+        h *= 0xed5ad4bb;
+        h ^= h >>> 11;
+        h *= 0xac4c1b51;
+        h ^= h >>> 15;
+        return h;
+    }
+}
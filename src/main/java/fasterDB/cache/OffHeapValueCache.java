@@ -0,0 +1,317 @@
+package fasterDB.cache;
+
+import fasterDB.index.OffHeapIndex;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Cache of encoded values kept out of the Java heap
+ *
+ * The memory is split into segments selected by the high bits of the hash of the encoded key. A segment
+ * owns a ring of slabs, direct buffers allocated on first use, and appends entries to the slab at the
+ * head of the ring. When the head is full the next slab is reclaimed with the clock algorithm: entries
+ * read since the slab was last reclaimed are moved to its start and lose their referenced flag, the others
+ * are evicted, and the head moves on to it. Entries are found through an OffHeapIndex from the hash to the
+ * position of the entry in the segment, so neither the keys nor the entries are Java objects.
+ *
+ * | hash 8 bytes | valueLength 4 bytes | keyLength 2 bytes | live 1 byte | referenced 1 byte | key | value |
+ *
+ * Entries are padded to 8 bytes. A value larger than a slab is not cached.
+ */
+public class OffHeapValueCache {
+
+    private static final int HEADER_SIZE = 16;
+    private static final int VALUE_LENGTH_INDEX = 8;
+    private static final int KEY_LENGTH_INDEX = 12;
+    private static final int LIVE_INDEX = 14;
+    private static final int REFERENCED_INDEX = 15;
+    private static final int MAX_SLAB_SIZE = 1 << 20;
+    private static final int MIN_SLAB_SIZE = 1 << 12;
+    private static final long MAX_SEGMENT_BYTES = 1 << 30;      // positions in a segment are int
+    private static final int MIN_SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final int segmentBits;
+    private final int slabSize;
+    private final int slabBits;
+    private final ThreadLocal<int[]> candidatesCache = new ThreadLocal<int[]>() {
+        protected int[] initialValue() {
+            return new int[4];
+        }
+    };
+
+    /**
+     * @param maxBytes the direct memory of the slabs, allocated as they are first used
+     */
+    public OffHeapValueCache(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("param maxBytes should > 0");
+        }
+        long minCount = Math.max(MIN_SEGMENTS, (maxBytes + MAX_SEGMENT_BYTES - 1) / MAX_SEGMENT_BYTES);
+        int count = Integer.highestOneBit((int) Math.min(minCount, 1 << 16));
+        if (count < minCount) {
+            count <<= 1;
+        }
+        long segmentBytes = maxBytes / count;
+        // at least 4 slabs a segment, so a reclaimed slab is a small part of it
+        int slabSize = (int) Math.max(MIN_SLAB_SIZE, Math.min(MAX_SLAB_SIZE, Long.highestOneBit(segmentBytes / 4)));
+        int slabCount = (int) Math.max(2, segmentBytes / slabSize);
+        this.slabSize = slabSize;
+        this.slabBits = Integer.numberOfTrailingZeros(slabSize);
+        this.segmentBits = Integer.numberOfTrailingZeros(count);
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(slabCount);
+        }
+    }
+
+    /**
+     * @param keyBytes
+     * @param keyLength
+     * @return a copy of the value, null if the key is not cached
+     */
+    public byte[] get(byte[] keyBytes, int keyLength) {
+        long hash = OffHeapIndex.hash(keyBytes, keyLength);
+        Segment segment = segmentFor(hash);
+        long stamp = segment.lock.readLock();
+        try {
+            int position = segment.find(hash, keyBytes, keyLength, candidates());
+            if (position < 0) {
+                return null;
+            }
+            ByteBuffer slab = segment.slabs[position >>> slabBits];
+            int offset = position & (slabSize - 1);
+            // racing readers all write 1, writers hold the write lock
+            slab.put(offset + REFERENCED_INDEX, (byte) 1);
+            byte[] value = new byte[slab.getInt(offset + VALUE_LENGTH_INDEX)];
+            ByteBuffer src = slab.duplicate();
+            src.position(offset + HEADER_SIZE + keyLength);
+            src.get(value);
+            return value;
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Cache the value, replacing the one cached for the key
+     * @return false if the value is too large to be cached
+     */
+    public boolean put(byte[] keyBytes, int keyLength, byte[] valueBytes) {
+        int size = entrySize(keyLength, valueBytes.length);
+        if (size > slabSize) {
+            return false;
+        }
+        long hash = OffHeapIndex.hash(keyBytes, keyLength);
+        Segment segment = segmentFor(hash);
+        int[] candidates = candidates();
+        long stamp = segment.lock.writeLock();
+        try {
+            segment.remove(hash, keyBytes, keyLength, candidates);
+            int position = segment.allocate(size);
+            if (position < 0) {
+                return false;
+            }
+            ByteBuffer slab = segment.slabs[position >>> slabBits];
+            int offset = position & (slabSize - 1);
+            slab.putLong(offset, hash);
+            slab.putInt(offset + VALUE_LENGTH_INDEX, valueBytes.length);
+            slab.putShort(offset + KEY_LENGTH_INDEX, (short) keyLength);
+            slab.put(offset + LIVE_INDEX, (byte) 1);
+            slab.put(offset + REFERENCED_INDEX, (byte) 0);
+            ByteBuffer dst = slab.duplicate();
+            dst.position(offset + HEADER_SIZE);
+            dst.put(keyBytes, 0, keyLength);
+            dst.put(valueBytes);
+            segment.index.put(hash, position);
+            segment.liveBytes += size;
+            return true;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    public void remove(byte[] keyBytes, int keyLength) {
+        long hash = OffHeapIndex.hash(keyBytes, keyLength);
+        Segment segment = segmentFor(hash);
+        int[] candidates = candidates();
+        // most removals come with writes of keys which are not cached here, the index alone tells
+        if (segment.index.get(hash, candidates) == 0) {
+            return;
+        }
+        long stamp = segment.lock.writeLock();
+        try {
+            segment.remove(hash, keyBytes, keyLength, candidates);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return how many entries the clock evicted
+     */
+    public long getEvictionCount() {
+        long count = 0;
+        for (Segment segment : segments) {
+            count += segment.evictions.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @return the size of the live entries, headers and padding included
+     */
+    public long getLiveBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.liveBytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the direct memory of the slabs allocated so far
+     */
+    public long getAllocatedBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += (long) segment.allocatedSlabs * slabSize;
+        }
+        return bytes;
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[(int) (hash >>> (64 - segmentBits))];
+    }
+
+    private int[] candidates() {
+        return candidatesCache.get();
+    }
+
+    private static int entrySize(int keyLength, int valueLength) {
+        long size = (long) HEADER_SIZE + keyLength + valueLength;
+        return (int) Math.min((size + 7) & ~7L, Integer.MAX_VALUE);
+    }
+
+    private final class Segment {
+        final StampedLock lock = new StampedLock();
+        final OffHeapIndex index = new OffHeapIndex(1);
+        final ByteBuffer[] slabs;
+        final int[] limits;             // end of the entries of every slab
+        final LongAdder evictions = new LongAdder();
+        volatile long liveBytes;        // written under the write lock
+        volatile int allocatedSlabs;
+        int head;
+        int position;                   // in the head slab
+
+        Segment(int slabCount) {
+            slabs = new ByteBuffer[slabCount];
+            limits = new int[slabCount];
+        }
+
+        /**
+         * Called with a lock held
+         * @return the position of the entry of the key, -1 if there is none
+         */
+        int find(long hash, byte[] keyBytes, int keyLength, int[] candidates) {
+            int count = index.get(hash, candidates);
+            if (count > candidates.length) {
+                candidates = new int[count];
+                count = Math.min(index.get(hash, candidates), count);
+            }
+            for (int i = 0; i < count; i++) {
+                ByteBuffer slab = slabs[candidates[i] >>> slabBits];
+                int offset = candidates[i] & (slabSize - 1);
+                if (slab.getShort(offset + KEY_LENGTH_INDEX) == keyLength && sameKey(slab, offset, keyBytes, keyLength)) {
+                    return candidates[i];
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Called with the write lock held
+         */
+        void remove(long hash, byte[] keyBytes, int keyLength, int[] candidates) {
+            int position = find(hash, keyBytes, keyLength, candidates);
+            if (position < 0) {
+                return;
+            }
+            ByteBuffer slab = slabs[position >>> slabBits];
+            int offset = position & (slabSize - 1);
+            slab.put(offset + LIVE_INDEX, (byte) 0);
+            index.remove(hash, position);
+            liveBytes -= entrySize(keyLength, slab.getInt(offset + VALUE_LENGTH_INDEX));
+        }
+
+        /**
+         * Called with the write lock held. Every pass over the ring clears the referenced flags, so the
+         * second one frees any slab
+         * @return the position of size bytes at the head, -1 if a slab cannot hold them
+         */
+        int allocate(int size) {
+            for (int n = 0; n <= slabs.length * 2; n++) {
+                if (slabs[head] == null) {
+                    slabs[head] = ByteBuffer.allocateDirect(slabSize);
+                    allocatedSlabs = allocatedSlabs + 1;
+                    position = 0;
+                }
+                if (position + size <= slabSize) {
+                    int allocated = (head << slabBits) | position;
+                    position += size;
+                    limits[head] = position;
+                    return allocated;
+                }
+                head = (head + 1) % slabs.length;
+                position = slabs[head] == null ? 0 : reclaim(head);
+            }
+            return -1;
+        }
+
+        /**
+         * Keep the referenced entries of the slab at its start and evict the others
+         * @return the end of the kept entries
+         */
+        private int reclaim(int slabId) {
+            ByteBuffer slab = slabs[slabId];
+            int limit = limits[slabId];
+            int read = 0;
+            int write = 0;
+            while (read < limit) {
+                int size = entrySize(slab.getShort(read + KEY_LENGTH_INDEX), slab.getInt(read + VALUE_LENGTH_INDEX));
+                if (slab.get(read + LIVE_INDEX) != 0) {
+                    long hash = slab.getLong(read);
+                    if (slab.get(read + REFERENCED_INDEX) != 0) {
+                        slab.put(read + REFERENCED_INDEX, (byte) 0);
+                        if (write != read) {
+                            // write < read, copying forward never reads what it has overwritten
+                            for (int i = 0; i < size; i += 8) {
+                                slab.putLong(write + i, slab.getLong(read + i));
+                            }
+                            index.replace(hash, (slabId << slabBits) | read, (slabId << slabBits) | write);
+                        }
+                        write += size;
+                    } else {
+                        index.remove(hash, (slabId << slabBits) | read);
+                        liveBytes -= size;
+                        evictions.increment();
+                    }
+                }
+                read += size;
+            }
+            limits[slabId] = write;
+            return write;
+        }
+
+        private boolean sameKey(ByteBuffer slab, int offset, byte[] keyBytes, int keyLength) {
+            for (int i = 0; i < keyLength; i++) {
+                if (slab.get(offset + HEADER_SIZE + i) != keyBytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package fasterDB.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of the values read and written, bounded by their encoded size instead of their count
+ *
+ * Every entry weighs the length of the encoded value plus ENTRY_OVERHEAD, the length is passed in by
+ * the caller which has the encoded value at hand anyway, so a value is never encoded just to be weighed.
+ * Lookups through get are counted as hits or misses, peek is not counted.
+ *
+ * An optional second tier keeps encoded values in an OffHeapValueCache. Entries evicted for room are
+ * encoded and demoted into it, and a miss of the heap looks it up before the caller reads the pages.
+ * Values come and go between the tiers without the key lock, so every entry remembers the generation of
+ * its key stripe when it was put: write and invalidate bump it first and drop the encoded copy, a demotion
+ * or a promotion which finds the generation changed undoes itself.
+ *
+ * With admission on, a value read back is only put once the heap is full if its key was read more often
+ * lately than the keys evicted, by the counts of a FrequencySketch (TinyLFU). Guava does not tell the
+ * next victim, so the candidate is compared with a moving average of the counts of the recent victims.
+ * A scan reads most keys once and leaves the working set in place. Written values are always put.
+ */
+public class ValueCache<K, V> {
+    private static final int ENTRY_OVERHEAD = 64;      // bytes an entry costs beside its value: key, entry, references
+    private static final int GENERATION_STRIPES = 1 << 16;      // shared by keys, a write to one fails the demotions of the others
+    private static final int EXPECTED_ENTRY_SIZE = 128;         // sizes the sketch
+    private static final int VICTIM_FREQUENCY_SCALE = 16;       // fixed point of the moving average
+
+    private final Cache<K, Entry<V>> cache;
+    private final LongAdder weightedBytes = new LongAdder();
+    private final OffHeapValueCache offHeap;          // null without a second tier
+    private final Serializer<K, V> serializer;
+    private final AtomicIntegerArray generations;
+    private final ThreadLocal<byte[]> keyBytesCache;
+    private final LongAdder offHeapHits = new LongAdder();
+    private final LongAdder offHeapMisses = new LongAdder();
+    private final LongAdder demotions = new LongAdder();
+    private final long maxBytes;
+    private final FrequencySketch sketch;             // null without admission
+    private volatile int victimFrequency;             // scaled by VICTIM_FREQUENCY_SCALE, updated racily
+    private final LongAdder admissions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * @param maxBytes the total weight of the entries
+     */
+    public ValueCache(long maxBytes) {
+        this(maxBytes, false, 0, 0, null);
+    }
+
+    /**
+     * @param maxBytes the total weight of the entries on the heap
+     * @param admission whether values read back are filtered by the frequency of their keys once the heap is full
+     * @param offHeapBytes the direct memory of the second tier, 0 for none
+     * @param maxKeyLength the longest encoded key
+     * @param serializer encodes the keys and values of the second tier
+     */
+    public ValueCache(long maxBytes, boolean admission, long offHeapBytes, final int maxKeyLength,
+                      Serializer<K, V> serializer) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("param maxBytes should > 0");
+        }
+        if (offHeapBytes < 0) {
+            throw new IllegalArgumentException("param offHeapBytes should >= 0");
+        }
+        if (offHeapBytes > 0 && serializer == null) {
+            throw new NullPointerException("param serializer should not be null");
+        }
+        if (offHeapBytes > 0) {
+            this.offHeap = new OffHeapValueCache(offHeapBytes);
+            this.serializer = serializer;
+            this.generations = new AtomicIntegerArray(GENERATION_STRIPES);
+            this.keyBytesCache = new ThreadLocal<byte[]>() {
+                protected byte[] initialValue() {
+                    return new byte[maxKeyLength];
+                }
+            };
+        } else {
+            this.offHeap = null;
+            this.serializer = null;
+            this.generations = null;
+            this.keyBytesCache = null;
+        }
+        this.maxBytes = maxBytes;
+        this.sketch = admission ? new FrequencySketch(maxBytes / EXPECTED_ENTRY_SIZE) : null;
+        cache = CacheBuilder.newBuilder().maximumWeight(maxBytes).recordStats()
+                .weigher(new Weigher<K, Entry<V>>() {
+                    @Override
+                    public int weigh(K key, Entry<V> entry) {
+                        return entry.weight;
+                    }
+                })
+                .removalListener(new RemovalListener<K, Entry<V>>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<K, Entry<V>> rn) {
+                        Entry<V> entry = rn.getValue();
+                        if (entry != null) {
+                            weightedBytes.add(-entry.weight);
+                            if (sketch != null && rn.getCause() == RemovalCause.SIZE) {
+                                recordVictim(rn.getKey());
+                            }
+                            if (offHeap != null && rn.getCause() == RemovalCause.SIZE) {
+                                demote(rn.getKey(), entry);
+                            }
+                        }
+                    }
+                }).build();
+    }
+
+    /**
+     * A miss of the heap looks up the second tier, a value found there is promoted back to the heap
+     * @param key
+     * @return null if the key is not cached, counted as a hit or a miss of the heap
+     */
+    public V get(K key) {
+        if (sketch != null) {
+            sketch.increment(key);
+        }
+        Entry<V> entry = cache.getIfPresent(key);
+        if (entry != null) {
+            return entry.value;
+        }
+        if (offHeap == null) {
+            return null;
+        }
+        int generation = generation(key);
+        byte[] keyBytes = keyBytesCache.get();
+        byte[] valueBytes = offHeap.get(keyBytes, serializer.encodeKey(key, keyBytes));
+        if (valueBytes == null) {
+            offHeapMisses.increment();
+            return null;
+        }
+        offHeapHits.increment();
+        V value = serializer.decodeValue(valueBytes);
+        if (value != null && admit(key, valueBytes.length)) {
+            put(key, value, valueBytes.length, generation);
+            // written or invalidated meanwhile, the copy may be stale
+            if (generation(key) != generation) {
+                cache.invalidate(key);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Same as get, without counting it, e.g. to compare a value about to be written
+     */
+    public V peek(K key) {
+        Entry<V> entry = cache.asMap().get(key);
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * Cache a value read back from the pages
+     * @param key
+     * @param value
+     * @param encodedLength the length of the value encoded by the codec
+     */
+    public void put(K key, V value, int encodedLength) {
+        if (admit(key, encodedLength)) {
+            put(key, value, encodedLength, offHeap == null ? 0 : generation(key));
+        }
+    }
+
+    /**
+     * Cache a value just written, an older copy in the second tier is dropped
+     * @param key
+     * @param value
+     * @param encodedLength the length of the value encoded by the codec
+     */
+    public void write(K key, V value, int encodedLength) {
+        if (offHeap == null) {
+            put(key, value, encodedLength, 0);
+            return;
+        }
+        int generation = bumpGeneration(key);
+        removeOffHeap(key);
+        put(key, value, encodedLength, generation);
+    }
+
+    public void invalidate(K key) {
+        if (offHeap != null) {
+            bumpGeneration(key);
+            removeOffHeap(key);
+        }
+        cache.invalidate(key);
+    }
+
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    public double getHitRate() {
+        return cache.stats().hitRate();
+    }
+
+    /**
+     * @return how many entries were evicted for room, not counting the ones replaced or invalidated
+     */
+    public long getEvictionCount() {
+        return cache.stats().evictionCount();
+    }
+
+    /**
+     * @return the total weight of the entries, removals are counted once they are notified
+     */
+    public long getWeightedBytes() {
+        return weightedBytes.sum();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public long getOffHeapHitCount() {
+        return offHeapHits.sum();
+    }
+
+    public long getOffHeapMissCount() {
+        return offHeapMisses.sum();
+    }
+
+    /**
+     * @return how many values evicted from the heap were written to the second tier
+     */
+    public long getDemotionCount() {
+        return demotions.sum();
+    }
+
+    public long getOffHeapEvictionCount() {
+        return offHeap == null ? 0 : offHeap.getEvictionCount();
+    }
+
+    /**
+     * @return the size of the values in the second tier, their keys and headers included
+     */
+    public long getOffHeapBytes() {
+        return offHeap == null ? 0 : offHeap.getLiveBytes();
+    }
+
+    /**
+     * Keys cached on the heap, the most read lately first when admission is on, else in no order
+     * @param limit
+     */
+    public List<K> hottestKeys(int limit) {
+        List<K> keys = new ArrayList<K>();
+        if (sketch == null) {
+            for (K key : cache.asMap().keySet()) {
+                if (keys.size() >= limit) {
+                    break;
+                }
+                keys.add(key);
+            }
+            return keys;
+        }
+        // bucketed by the counts of the sketch, which are at most 15
+        List<List<K>> byFrequency = new ArrayList<List<K>>();
+        for (int i = 0; i < 16; i++) {
+            byFrequency.add(new ArrayList<K>());
+        }
+        for (K key : cache.asMap().keySet()) {
+            byFrequency.get(sketch.frequency(key)).add(key);
+        }
+        for (int i = byFrequency.size() - 1; i >= 0 && keys.size() < limit; i--) {
+            List<K> bucket = byFrequency.get(i);
+            keys.addAll(bucket.subList(0, Math.min(bucket.size(), limit - keys.size())));
+        }
+        return keys;
+    }
+
+    /**
+     * @return how many values read back were put once the heap was full
+     */
+    public long getAdmissionCount() {
+        return admissions.sum();
+    }
+
+    /**
+     * @return how many values read back were not put, their keys being read less often than the victims
+     */
+    public long getRejectionCount() {
+        return rejections.sum();
+    }
+
+    /**
+     * Encodes the keys and values of the second tier
+     */
+    public interface Serializer<K, V> {
+        /**
+         * @return the length of the key encoded into dst
+         */
+        int encodeKey(K key, byte[] dst);
+
+        byte[] encodeValue(V value);
+
+        V decodeValue(byte[] bytes);
+    }
+
+    private void put(K key, V value, int encodedLength, int generation) {
+        int weight = (int) Math.min((long) encodedLength + ENTRY_OVERHEAD, Integer.MAX_VALUE);
+        weightedBytes.add(weight);
+        cache.put(key, new Entry<V>(value, weight, generation));
+    }
+
+    /**
+     * TinyLFU, ties go to the victim so a scan of keys read once does not replace keys read once before
+     */
+    private boolean admit(K key, int encodedLength) {
+        if (sketch == null || weightedBytes.sum() + encodedLength + ENTRY_OVERHEAD <= maxBytes) {
+            return true;
+        }
+        // a key read for the first time lately never replaces another, even one whose count faded to 0
+        if (sketch.frequency(key) * VICTIM_FREQUENCY_SCALE > Math.max(victimFrequency, VICTIM_FREQUENCY_SCALE)) {
+            admissions.increment();
+            return true;
+        }
+        rejections.increment();
+        return false;
+    }
+
+    private void recordVictim(K key) {
+        int frequency = sketch.frequency(key) * VICTIM_FREQUENCY_SCALE;
+        victimFrequency = victimFrequency + ((frequency - victimFrequency) >> 3);
+    }
+
+    /**
+     * Runs in the thread which caused the eviction, after the entry left the heap
+     */
+    private void demote(K key, Entry<V> entry) {
+        if (generation(key) != entry.generation) {
+            return;
+        }
+        byte[] keyBytes = keyBytesCache.get();
+        int keyLength = serializer.encodeKey(key, keyBytes);
+        if (!offHeap.put(keyBytes, keyLength, serializer.encodeValue(entry.value))) {
+            return;
+        }
+        demotions.increment();
+        // a writer bumped the generation before dropping the copy, it may have dropped it before the put
+        if (generation(key) != entry.generation) {
+            offHeap.remove(keyBytes, keyLength);
+        }
+    }
+
+    private void removeOffHeap(K key) {
+        byte[] keyBytes = keyBytesCache.get();
+        offHeap.remove(keyBytes, serializer.encodeKey(key, keyBytes));
+    }
+
+    private int generation(K key) {
+        return generations.get(stripe(key));
+    }
+
+    private int bumpGeneration(K key) {
+        return generations.incrementAndGet(stripe(key));
+    }
+
+    private static int stripe(Object key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h & (GENERATION_STRIPES - 1);
+    }
+
+    private static final class Entry<V> {
+        final V value;
+        final int weight;
+        final int generation;       // of the key stripe when the entry was put
+
+        Entry(V value, int weight, int generation) {
+            this.value = value;
+            this.weight = weight;
+            this.generation = generation;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package fasterDB.index;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Index on a hash table with open addressing, lookups are O(1) and usually touch one cache line
+ *
+ * The table is split into segments by the high bits of the hash, every segment is a linear probing
+ * table in one Object[] with the key at 2 * slot and the value at 2 * slot + 1, so an entry costs two
+ * references and no node. Segments resize on their own under their write lock, lookups read
+ * optimistically and only take the read lock when a writer got in the way. Removal shifts the
+ * following entries back instead of leaving tombstones.
+ */
+public class HashIndex<K, V> implements Index<K, V> {
+
+    private static final int MIN_SEGMENT_CAPACITY = 16;
+    private static final int MAX_SEGMENT_CAPACITY = 1 << 29;
+
+    private final Segment[] segments;
+    private final int segmentBits;
+
+    /**
+     * @param segmentCount rounded up to a power of two
+     */
+    public HashIndex(int segmentCount) {
+        if (segmentCount <= 0 || segmentCount > (1 << 16)) {
+            throw new IllegalArgumentException("param segmentCount should > 0 and <= 65536");
+        }
+        int count = Integer.highestOneBit(segmentCount);
+        if (count < segmentCount) {
+            count <<= 1;
+        }
+        segmentBits = Integer.numberOfTrailingZeros(count);
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(MIN_SEGMENT_CAPACITY);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(K key) {
+        int h = hash(key);
+        return (V) segmentFor(h).get(key, h);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V put(K key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value should not be null");
+        }
+        int h = hash(key);
+        return (V) segmentFor(h).put(key, value, h, false);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V putIfAbsent(K key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value should not be null");
+        }
+        int h = hash(key);
+        return (V) segmentFor(h).put(key, value, h, true);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V remove(K key) {
+        int h = hash(key);
+        return (V) segmentFor(h).remove(key, h);
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    @Override
+    public void forEach(Visitor<K, V> visitor) {
+        for (Segment segment : segments) {
+            segment.forEach(visitor);
+        }
+    }
+
+    private Segment segmentFor(int h) {
+        return segments[segmentBits == 0 ? 0 : h >>> (32 - segmentBits)];
+    }
+
+    static int hash(Object key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Segment {
+        final StampedLock lock = new StampedLock();
+        volatile Object[] table;
+        volatile int size;          // written under the write lock
+
+        Segment(int capacity) {
+            table = new Object[capacity << 1];
+        }
+
+        Object get(Object key, int h) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp != 0) {
+                Object value = find(table, key, h);
+                if (lock.validate(stamp)) {
+                    return value;
+                }
+            }
+            stamp = lock.readLock();
+            try {
+                return find(table, key, h);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * May run concurrently with a writer, the probe is bounded and the caller validates
+         */
+        private static Object find(Object[] table, Object key, int h) {
+            int mask = (table.length >>> 1) - 1;
+            int slot = h & mask;
+            for (int n = 0; n <= mask; n++) {
+                Object k = table[slot << 1];
+                if (k == null) {
+                    return null;
+                }
+                if (k == key || k.equals(key)) {
+                    return table[(slot << 1) + 1];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        Object put(Object key, Object value, int h, boolean onlyIfAbsent) {
+            long stamp = lock.writeLock();
+            try {
+                Object[] table = this.table;
+                int mask = (table.length >>> 1) - 1;
+                int slot = h & mask;
+                for (;;) {
+                    Object k = table[slot << 1];
+                    if (k == null) {
+                        break;
+                    }
+                    if (k == key || k.equals(key)) {
+                        Object old = table[(slot << 1) + 1];
+                        if (!onlyIfAbsent) {
+                            table[(slot << 1) + 1] = value;
+                        }
+                        return old;
+                    }
+                    slot = (slot + 1) & mask;
+                }
+                if (size + 1 > threshold(mask + 1)) {
+                    table = resize(table);
+                    mask = (table.length >>> 1) - 1;
+                    slot = h & mask;
+                    while (table[slot << 1] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                }
+                table[(slot << 1) + 1] = value;
+                table[slot << 1] = key;
+                size = size + 1;
+                return null;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        Object remove(Object key, int h) {
+            long stamp = lock.writeLock();
+            try {
+                Object[] table = this.table;
+                int mask = (table.length >>> 1) - 1;
+                int slot = h & mask;
+                for (;;) {
+                    Object k = table[slot << 1];
+                    if (k == null) {
+                        return null;
+                    }
+                    if (k == key || k.equals(key)) {
+                        break;
+                    }
+                    slot = (slot + 1) & mask;
+                }
+                Object old = table[(slot << 1) + 1];
+                // backward shift: move back every following entry whose home slot is not in (slot, next]
+                int hole = slot;
+                int next = slot;
+                for (;;) {
+                    next = (next + 1) & mask;
+                    Object k = table[next << 1];
+                    if (k == null) {
+                        break;
+                    }
+                    int home = hash(k) & mask;
+                    boolean stays = hole <= next ? (home > hole && home <= next) : (home > hole || home <= next);
+                    if (!stays) {
+                        table[hole << 1] = k;
+                        table[(hole << 1) + 1] = table[(next << 1) + 1];
+                        hole = next;
+                    }
+                }
+                table[hole << 1] = null;
+                table[(hole << 1) + 1] = null;
+                size = size - 1;
+                return old;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        <K, V> void forEach(Visitor<K, V> visitor) {
+            long stamp = lock.readLock();
+            try {
+                Object[] table = this.table;
+                for (int i = 0; i < table.length; i += 2) {
+                    if (table[i] != null) {
+                        visitor.visit((K) table[i], (V) table[i + 1]);
+                    }
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        private Object[] resize(Object[] old) {
+            int capacity = old.length >>> 1;
+            if (capacity >= MAX_SEGMENT_CAPACITY) {
+                throw new IllegalStateException("index segment is full");
+            }
+            Object[] table = new Object[old.length << 1];
+            int mask = capacity * 2 - 1;
+            for (int i = 0; i < old.length; i += 2) {
+                Object k = old[i];
+                if (k != null) {
+                    int slot = hash(k) & mask;
+                    while (table[slot << 1] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    table[slot << 1] = k;
+                    table[(slot << 1) + 1] = old[i + 1];
+                }
+            }
+            this.table = table;
+            return table;
+        }
+
+        private static int threshold(int capacity) {
+            return capacity - (capacity >>> 2);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package fasterDB.index;
+
+/**
+ * Primary index from key to record
+ *
+ * Implementations are thread safe, null keys and values are not allowed.
+ */
+public interface Index<K, V> {
+
+    V get(K key);
+
+    /**
+     * @return the previous value, null if there was none
+     */
+    V put(K key, V value);
+
+    /**
+     * @return the current value if present, null if value was put
+     */
+    V putIfAbsent(K key, V value);
+
+    /**
+     * @return the removed value, null if there was none
+     */
+    V remove(K key);
+
+    boolean containsKey(K key);
+
+    int size();
+
+    /**
+     * Visit every entry, entries put or removed concurrently may or may not be visited
+     */
+    void forEach(Visitor<K, V> visitor);
+
+    interface Visitor<K, V> {
+        void visit(K key, V value);
+    }
+}
@@ -0,0 +1,281 @@
+package fasterDB.index;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * HashIndex for primitive keys
+ *
+ * Same layout as HashIndex, but the keys live in a long[] beside the value array, so an entry
+ * costs 8 bytes of key and one reference instead of a boxed key and a map node. A null value
+ * marks a free slot, which leaves the whole key range usable.
+ */
+public class LongHashIndex<V> implements LongIndex<V> {
+
+    private static final int MIN_SEGMENT_CAPACITY = 16;
+    private static final int MAX_SEGMENT_CAPACITY = 1 << 30;
+
+    private final Segment[] segments;
+    private final int segmentBits;
+
+    /**
+     * @param segmentCount rounded up to a power of two
+     */
+    public LongHashIndex(int segmentCount) {
+        if (segmentCount <= 0 || segmentCount > (1 << 16)) {
+            throw new IllegalArgumentException("param segmentCount should > 0 and <= 65536");
+        }
+        int count = Integer.highestOneBit(segmentCount);
+        if (count < segmentCount) {
+            count <<= 1;
+        }
+        segmentBits = Integer.numberOfTrailingZeros(count);
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(MIN_SEGMENT_CAPACITY);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int h = hash(key);
+        return (V) segmentFor(h).get(key, h);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value should not be null");
+        }
+        int h = hash(key);
+        return (V) segmentFor(h).put(key, value, h, false);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V putIfAbsent(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value should not be null");
+        }
+        int h = hash(key);
+        return (V) segmentFor(h).put(key, value, h, true);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int h = hash(key);
+        return (V) segmentFor(h).remove(key, h);
+    }
+
+    @Override
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    @Override
+    public void forEach(Visitor<V> visitor) {
+        for (Segment segment : segments) {
+            segment.forEach(visitor);
+        }
+    }
+
+    private Segment segmentFor(int h) {
+        return segments[segmentBits == 0 ? 0 : h >>> (32 - segmentBits)];
+    }
+
+    static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Keys and values are replaced together on resize, readers never see arrays of different sizes
+     */
+    private static final class Table {
+        final long[] keys;
+        final Object[] values;
+
+        Table(int capacity) {
+            keys = new long[capacity];
+            values = new Object[capacity];
+        }
+    }
+
+    private static final class Segment {
+        final StampedLock lock = new StampedLock();
+        volatile Table table;
+        volatile int size;          // written under the write lock
+
+        Segment(int capacity) {
+            table = new Table(capacity);
+        }
+
+        Object get(long key, int h) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp != 0) {
+                Object value = find(table, key, h);
+                if (lock.validate(stamp)) {
+                    return value;
+                }
+            }
+            stamp = lock.readLock();
+            try {
+                return find(table, key, h);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * May run concurrently with a writer, the probe is bounded and the caller validates
+         */
+        private static Object find(Table table, long key, int h) {
+            long[] keys = table.keys;
+            Object[] values = table.values;
+            int mask = keys.length - 1;
+            int slot = h & mask;
+            for (int n = 0; n <= mask; n++) {
+                Object value = values[slot];
+                if (value == null) {
+                    return null;
+                }
+                if (keys[slot] == key) {
+                    return value;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        Object put(long key, Object value, int h, boolean onlyIfAbsent) {
+            long stamp = lock.writeLock();
+            try {
+                Table table = this.table;
+                int mask = table.keys.length - 1;
+                int slot = h & mask;
+                for (;;) {
+                    Object old = table.values[slot];
+                    if (old == null) {
+                        break;
+                    }
+                    if (table.keys[slot] == key) {
+                        if (!onlyIfAbsent) {
+                            table.values[slot] = value;
+                        }
+                        return old;
+                    }
+                    slot = (slot + 1) & mask;
+                }
+                if (size + 1 > threshold(mask + 1)) {
+                    table = resize(table);
+                    mask = table.keys.length - 1;
+                    slot = h & mask;
+                    while (table.values[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                }
+                table.keys[slot] = key;
+                table.values[slot] = value;
+                size = size + 1;
+                return null;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        Object remove(long key, int h) {
+            long stamp = lock.writeLock();
+            try {
+                Table table = this.table;
+                long[] keys = table.keys;
+                Object[] values = table.values;
+                int mask = keys.length - 1;
+                int slot = h & mask;
+                for (;;) {
+                    if (values[slot] == null) {
+                        return null;
+                    }
+                    if (keys[slot] == key) {
+                        break;
+                    }
+                    slot = (slot + 1) & mask;
+                }
+                Object old = values[slot];
+                // backward shift: move back every following entry whose home slot is not in (slot, next]
+                int hole = slot;
+                int next = slot;
+                for (;;) {
+                    next = (next + 1) & mask;
+                    if (values[next] == null) {
+                        break;
+                    }
+                    int home = hash(keys[next]) & mask;
+                    boolean stays = hole <= next ? (home > hole && home <= next) : (home > hole || home <= next);
+                    if (!stays) {
+                        keys[hole] = keys[next];
+                        values[hole] = values[next];
+                        hole = next;
+                    }
+                }
+                keys[hole] = 0;
+                values[hole] = null;
+                size = size - 1;
+                return old;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        <V> void forEach(Visitor<V> visitor) {
+            long stamp = lock.readLock();
+            try {
+                Table table = this.table;
+                for (int i = 0; i < table.keys.length; i++) {
+                    if (table.values[i] != null) {
+                        visitor.visit(table.keys[i], (V) table.values[i]);
+                    }
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        private Table resize(Table old) {
+            int capacity = old.keys.length;
+            if (capacity >= MAX_SEGMENT_CAPACITY) {
+                throw new IllegalStateException("index segment is full");
+            }
+            Table table = new Table(capacity << 1);
+            int mask = (capacity << 1) - 1;
+            for (int i = 0; i < capacity; i++) {
+                Object value = old.values[i];
+                if (value != null) {
+                    int slot = hash(old.keys[i]) & mask;
+                    while (table.values[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    table.keys[slot] = old.keys[i];
+                    table.values[slot] = value;
+                }
+            }
+            this.table = table;
+            return table;
+        }
+
+        private static int threshold(int capacity) {
+            return capacity - (capacity >>> 2);
+        }
+    }
+}
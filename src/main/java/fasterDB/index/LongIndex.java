@@ -0,0 +1,40 @@
+package fasterDB.index;
+
+/**
+ * Primary index from a primitive key to record, used for the integral key types so that
+ * keys are never boxed
+ *
+ * Implementations are thread safe, null values are not allowed.
+ */
+public interface LongIndex<V> {
+
+    V get(long key);
+
+    /**
+     * @return the previous value, null if there was none
+     */
+    V put(long key, V value);
+
+    /**
+     * @return the current value if present, null if value was put
+     */
+    V putIfAbsent(long key, V value);
+
+    /**
+     * @return the removed value, null if there was none
+     */
+    V remove(long key);
+
+    boolean containsKey(long key);
+
+    int size();
+
+    /**
+     * Visit every entry, entries put or removed concurrently may or may not be visited
+     */
+    void forEach(Visitor<V> visitor);
+
+    interface Visitor<V> {
+        void visit(long key, V value);
+    }
+}
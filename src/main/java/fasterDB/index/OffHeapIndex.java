@@ -0,0 +1,374 @@
+package fasterDB.index;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Primary index kept out of the Java heap
+ *
+ * A slot is 12 bytes of direct memory, the 64-bit hash of the encoded key and the id of the first page
+ * of the record. Neither the key nor the page list is kept, the caller reads them from the first page,
+ * so the heap used by the index does not grow with the keys. Different keys may share a hash, lookups
+ * return every candidate page and the caller compares the keys.
+ *
+ * The layout is the same as HashIndex: segments selected by the high bits of the hash, linear probing
+ * inside a segment, optimistic reads and backward shift deletion. Every segment also keeps striped
+ * versions which writers bump around any change of a slot, readers use them as the record version.
+ *
+ * | hash 8 bytes | firstPageId + 1 4 bytes |    0 marks a free slot
+ */
+public class OffHeapIndex {
+
+    private static final int SLOT_SIZE = 12;
+    private static final int PAGE_ID_INDEX = 8;
+    private static final int MIN_SEGMENT_CAPACITY = 16;
+    private static final int MAX_SEGMENT_CAPACITY = 1 << 27;
+    private static final int VERSION_STRIPES = 256;     // per segment
+
+    private final Segment[] segments;
+    private final int segmentBits;
+
+    /**
+     * @param segmentCount rounded up to a power of two
+     */
+    public OffHeapIndex(int segmentCount) {
+        if (segmentCount <= 0 || segmentCount > (1 << 16)) {
+            throw new IllegalArgumentException("param segmentCount should > 0 and <= 65536");
+        }
+        int count = Integer.highestOneBit(segmentCount);
+        if (count < segmentCount) {
+            count <<= 1;
+        }
+        segmentBits = Integer.numberOfTrailingZeros(count);
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(MIN_SEGMENT_CAPACITY);
+        }
+    }
+
+    /**
+     * Hash of an encoded key
+     * @param keyBytes
+     * @param keyLength
+     * @return
+     */
+    public static long hash(byte[] keyBytes, int keyLength) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < keyLength; i++) {
+            h ^= keyBytes[i] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Copy the first page ids of every entry with the hash into dst
+     * @param hash
+     * @param dst
+     * @return the count of entries, may be greater than dst.length
+     */
+    public int get(long hash, int[] dst) {
+        return segmentFor(hash).get(hash, dst);
+    }
+
+    /**
+     * Add an entry, the caller makes sure the key is not indexed yet
+     */
+    public void put(long hash, int firstPageId) {
+        checkPageId(firstPageId);
+        segmentFor(hash).put(hash, firstPageId);
+    }
+
+    /**
+     * @return false if there is no such entry
+     */
+    public boolean replace(long hash, int oldFirstPageId, int newFirstPageId) {
+        checkPageId(newFirstPageId);
+        return segmentFor(hash).replace(hash, oldFirstPageId, newFirstPageId);
+    }
+
+    /**
+     * @return false if there is no such entry
+     */
+    public boolean remove(long hash, int firstPageId) {
+        return segmentFor(hash).remove(hash, firstPageId);
+    }
+
+    /**
+     * Bracket a change of the pages of an entry which keeps its first page id, readers see the version
+     * odd until endUpdate. The segment stays write locked meanwhile, as the stripe may be shared with
+     * other hashes. The caller should hold the exclusive key lock and not touch the index before endUpdate
+     * @return the stamp to pass to endUpdate
+     */
+    public long beginUpdate(long hash) {
+        Segment segment = segmentFor(hash);
+        long stamp = segment.lock.writeLock();
+        segment.beginWrite(hash);
+        return stamp;
+    }
+
+    public void endUpdate(long hash, long stamp) {
+        Segment segment = segmentFor(hash);
+        segment.endWrite(hash);
+        segment.lock.unlockWrite(stamp);
+    }
+
+    /**
+     * Version of the entries with the hash, odd while one of them is being changed
+     */
+    public int version(long hash) {
+        return segmentFor(hash).versions.get(versionStripe(hash));
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    /**
+     * @return the direct memory used by the slots
+     */
+    public long getMemoryBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.table.capacity();
+        }
+        return bytes;
+    }
+
+    /**
+     * Visit every entry, entries changed concurrently may or may not be visited
+     */
+    public void forEach(Visitor visitor) {
+        for (Segment segment : segments) {
+            segment.forEach(visitor);
+        }
+    }
+
+    public interface Visitor {
+        void visit(long hash, int firstPageId);
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[segmentBits == 0 ? 0 : (int) (hash >>> (64 - segmentBits))];
+    }
+
+    private static int versionStripe(long hash) {
+        return ((int) (hash >>> 32)) & (VERSION_STRIPES - 1);
+    }
+
+    private static int home(long hash, int mask) {
+        return ((int) hash) & mask;
+    }
+
+    private static void checkPageId(int pageId) {
+        if (pageId < 0 || pageId == Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("param firstPageId should >= 0 and < " + Integer.MAX_VALUE);
+        }
+    }
+
+    private static final class Segment {
+        final StampedLock lock = new StampedLock();
+        volatile ByteBuffer table;
+        volatile int size;          // written under the write lock
+        final AtomicIntegerArray versions = new AtomicIntegerArray(VERSION_STRIPES);
+
+        Segment(int capacity) {
+            table = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+        }
+
+        int get(long hash, int[] dst) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp != 0) {
+                int count = find(table, hash, dst);
+                if (lock.validate(stamp)) {
+                    return count;
+                }
+            }
+            stamp = lock.readLock();
+            try {
+                return find(table, hash, dst);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * May run concurrently with a writer, the probe is bounded and the caller validates
+         */
+        private static int find(ByteBuffer table, long hash, int[] dst) {
+            int capacity = table.capacity() / SLOT_SIZE;
+            int mask = capacity - 1;
+            int slot = home(hash, mask);
+            int count = 0;
+            for (int n = 0; n < capacity; n++) {
+                int offset = slot * SLOT_SIZE;
+                int pageId = table.getInt(offset + PAGE_ID_INDEX) - 1;
+                if (pageId < 0) {
+                    break;
+                }
+                if (table.getLong(offset) == hash) {
+                    if (count < dst.length) {
+                        dst[count] = pageId;
+                    }
+                    count++;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return count;
+        }
+
+        void put(long hash, int firstPageId) {
+            long stamp = lock.writeLock();
+            try {
+                int capacity = table.capacity() / SLOT_SIZE;
+                if (size + 1 > capacity - (capacity >>> 2)) {
+                    resize();
+                }
+                ByteBuffer table = this.table;
+                int mask = table.capacity() / SLOT_SIZE - 1;
+                int slot = home(hash, mask);
+                while (table.getInt(slot * SLOT_SIZE + PAGE_ID_INDEX) != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                beginWrite(hash);
+                table.putLong(slot * SLOT_SIZE, hash);
+                table.putInt(slot * SLOT_SIZE + PAGE_ID_INDEX, firstPageId + 1);
+                endWrite(hash);
+                size = size + 1;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        boolean replace(long hash, int oldFirstPageId, int newFirstPageId) {
+            long stamp = lock.writeLock();
+            try {
+                int slot = slotOf(hash, oldFirstPageId);
+                if (slot < 0) {
+                    return false;
+                }
+                beginWrite(hash);
+                table.putInt(slot * SLOT_SIZE + PAGE_ID_INDEX, newFirstPageId + 1);
+                endWrite(hash);
+                return true;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        boolean remove(long hash, int firstPageId) {
+            long stamp = lock.writeLock();
+            try {
+                int slot = slotOf(hash, firstPageId);
+                if (slot < 0) {
+                    return false;
+                }
+                ByteBuffer table = this.table;
+                int mask = table.capacity() / SLOT_SIZE - 1;
+                beginWrite(hash);
+                // backward shift: move back every following entry whose home slot is not in (slot, next]
+                int hole = slot;
+                int next = slot;
+                for (;;) {
+                    next = (next + 1) & mask;
+                    int pageIdPlusOne = table.getInt(next * SLOT_SIZE + PAGE_ID_INDEX);
+                    if (pageIdPlusOne == 0) {
+                        break;
+                    }
+                    long h = table.getLong(next * SLOT_SIZE);
+                    int home = home(h, mask);
+                    boolean stays = hole <= next ? (home > hole && home <= next) : (home > hole || home <= next);
+                    if (!stays) {
+                        table.putLong(hole * SLOT_SIZE, h);
+                        table.putInt(hole * SLOT_SIZE + PAGE_ID_INDEX, pageIdPlusOne);
+                        hole = next;
+                    }
+                }
+                table.putLong(hole * SLOT_SIZE, 0);
+                table.putInt(hole * SLOT_SIZE + PAGE_ID_INDEX, 0);
+                endWrite(hash);
+                size = size - 1;
+                return true;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        void forEach(Visitor visitor) {
+            long stamp = lock.readLock();
+            try {
+                ByteBuffer table = this.table;
+                int capacity = table.capacity() / SLOT_SIZE;
+                for (int slot = 0; slot < capacity; slot++) {
+                    int pageId = table.getInt(slot * SLOT_SIZE + PAGE_ID_INDEX) - 1;
+                    if (pageId >= 0) {
+                        visitor.visit(table.getLong(slot * SLOT_SIZE), pageId);
+                    }
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * Called with the write lock held
+         */
+        private int slotOf(long hash, int firstPageId) {
+            ByteBuffer table = this.table;
+            int mask = table.capacity() / SLOT_SIZE - 1;
+            int slot = home(hash, mask);
+            for (;;) {
+                int pageIdPlusOne = table.getInt(slot * SLOT_SIZE + PAGE_ID_INDEX);
+                if (pageIdPlusOne == 0) {
+                    return -1;
+                }
+                if (pageIdPlusOne == firstPageId + 1 && table.getLong(slot * SLOT_SIZE) == hash) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        /**
+         * Moving entries does not change them, so readers of other hashes need no new version
+         */
+        private void resize() {
+            ByteBuffer old = this.table;
+            int capacity = old.capacity() / SLOT_SIZE;
+            if (capacity >= MAX_SEGMENT_CAPACITY) {
+                throw new IllegalStateException("index segment is full");
+            }
+            ByteBuffer table = ByteBuffer.allocateDirect(capacity * 2 * SLOT_SIZE);
+            int mask = capacity * 2 - 1;
+            for (int i = 0; i < capacity; i++) {
+                int pageIdPlusOne = old.getInt(i * SLOT_SIZE + PAGE_ID_INDEX);
+                if (pageIdPlusOne != 0) {
+                    long h = old.getLong(i * SLOT_SIZE);
+                    int slot = home(h, mask);
+                    while (table.getInt(slot * SLOT_SIZE + PAGE_ID_INDEX) != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    table.putLong(slot * SLOT_SIZE, h);
+                    table.putInt(slot * SLOT_SIZE + PAGE_ID_INDEX, pageIdPlusOne);
+                }
+            }
+            this.table = table;
+        }
+
+        private void beginWrite(long hash) {
+            versions.incrementAndGet(versionStripe(hash));
+        }
+
+        private void endWrite(long hash) {
+            versions.incrementAndGet(versionStripe(hash));
+        }
+    }
+}
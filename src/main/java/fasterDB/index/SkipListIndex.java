@@ -0,0 +1,49 @@
+package fasterDB.index;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Index kept in key order, lookups are O(log n)
+ */
+public class SkipListIndex<K, V> implements Index<K, V> {
+
+    private final ConcurrentSkipListMap<K, V> map = new ConcurrentSkipListMap<K, V>();
+
+    @Override
+    public V get(K key) {
+        return map.get(key);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        return map.put(key, value);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return map.putIfAbsent(key, value);
+    }
+
+    @Override
+    public V remove(K key) {
+        return map.remove(key);
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return map.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public void forEach(Visitor<K, V> visitor) {
+        for (Map.Entry<K, V> entry : map.entrySet()) {
+            visitor.visit(entry.getKey(), entry.getValue());
+        }
+    }
+}
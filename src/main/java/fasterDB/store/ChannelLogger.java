@@ -0,0 +1,162 @@
+package fasterDB.store;
+
+import fasterDB.util.ByteUtil;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Redo log appended through FileChannel.write, the file grows with every append
+ */
+public class ChannelLogger implements Logger {
+
+    private static final int BLOCK_SIZE = 4 * 1024;
+    private final FileChannel fileChannel;
+    private final RandomAccessFile rac;
+    private final File file;
+
+    public ChannelLogger(File parentPath, String filename) throws IOException {
+        if (parentPath == null || filename == null) {
+            throw new NullPointerException("parentPath and filename should not be null");
+        }
+        file = new File(parentPath, filename);
+        if (!file.exists()) {
+            file.createNewFile();
+        }
+        if (file.isDirectory()) {
+            throw new IllegalArgumentException("filename[" + file.getName() + "] should be an ordinary file");
+        }
+        rac = new RandomAccessFile(file, "rw");
+        fileChannel = rac.getChannel();
+    }
+
+    public ChannelLogger(File file) throws IOException {
+        if (file == null) {
+            throw new NullPointerException("file should not be null");
+        }
+        if (!file.exists()) {
+            file.createNewFile();
+        }
+        if (file.isDirectory()) {
+            throw new IllegalArgumentException("filename[" + file.getName() + "] should be an ordinary file");
+        }
+        this.file = file;
+        rac = new RandomAccessFile(file, "rw");
+        fileChannel = rac.getChannel();
+    }
+
+    @Override
+    public int log(ByteBuffer buffer) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += fileChannel.write(buffer);
+        }
+        return written;
+    }
+
+    @Override
+    public long log(ByteBuffer[] buffers, int length) throws IOException {
+        long written = 0;
+        int offset = 0;
+        while (offset < length) {
+            written += fileChannel.write(buffers, offset, length - offset);
+            while (offset < length && !buffers[offset].hasRemaining()) {
+                offset++;
+            }
+        }
+        return written;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        fileChannel.force(false);
+    }
+
+    @Override
+    public synchronized void redo(Reader reader, long offset) throws IOException {
+        if (reader == null) {
+            throw new NullPointerException("reader should not be null");
+        }
+        fileChannel.position(offset);
+        ByteBuffer cache = ByteBuffer.allocate(BLOCK_SIZE);
+        cache.limit(0);
+        for (int length = readFromCache(cache); length != 0; length = readFromCache(cache)) {
+            if (length < 0) {
+                // the range of a failed append to a mapped segment
+                if (!skipFromCache(cache, -length)) {
+                    break;
+                }
+                continue;
+            }
+            byte[] body = readFromCache(cache, length);
+            if (body == null) {
+                break;
+            }
+            reader.read(body);
+        }
+    }
+
+    @Override
+    public long position() throws IOException {
+        return fileChannel.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        fileChannel.close();
+        rac.close();
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        close();
+        file.delete();
+    }
+
+    private int readFromCache(ByteBuffer cache) throws IOException {
+        byte[] intBytes = readFromCache(cache, 4);
+        return intBytes == null ? 0 : ByteUtil.getIntBigEndian(intBytes, 0);
+    }
+
+    private byte[] readFromCache(ByteBuffer cache, int bytes) throws IOException {
+        byte[] result = new byte[bytes];
+        int index = 0;
+        while (index < bytes) {
+            int remaining = cache.remaining();
+            if (remaining > 0) {
+                int copyBytes = Math.min(remaining, bytes - index);
+                cache.get(result, index, copyBytes);
+                index += copyBytes;
+            } else if (!fillCache(cache)) {
+                return null;
+            }
+        }
+        return result;
+    }
+
+    private boolean skipFromCache(ByteBuffer cache, int bytes) throws IOException {
+        while (bytes > 0) {
+            int remaining = cache.remaining();
+            if (remaining > 0) {
+                int skipBytes = Math.min(remaining, bytes);
+                cache.position(cache.position() + skipBytes);
+                bytes -= skipBytes;
+            } else if (!fillCache(cache)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean fillCache(ByteBuffer cache) throws IOException {
+        cache.clear();
+        int i = fileChannel.read(cache);
+        if (i <= 0) {
+            return false;
+        }
+        cache.flip();
+        return true;
+    }
+}
@@ -0,0 +1,103 @@
+package fasterDB.store;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * Checkpoint record of the redo log.
+ *
+ * Every log record whose lsn is less than lsn has its pages durable in the data file, and every
+ * record whose lsn is greater or equal is located at or after offset of segment segmentId.
+ *
+ * | magic 4 bytes | lsn 8 bytes | segmentId 8 bytes | offset 8 bytes | crc32 8 bytes |
+ */
+public class Checkpoint {
+
+    private static final int MAGIC = 0x46444243;
+    private static final String FILENAME = "checkpoint";
+    private static final String TMP_FILENAME = "checkpoint.tmp";
+
+    public final long lsn;
+    public final long segmentId;
+    public final long offset;
+
+    public Checkpoint(long lsn, long segmentId, long offset) {
+        this.lsn = lsn;
+        this.segmentId = segmentId;
+        this.offset = offset;
+    }
+
+    /**
+     * @param dir
+     * @return null if there is no checkpoint or it is corrupt
+     */
+    public static Checkpoint read(File dir) {
+        File file = new File(dir, FILENAME);
+        if (!file.isFile()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            int magic = in.readInt();
+            long lsn = in.readLong();
+            long segmentId = in.readLong();
+            long offset = in.readLong();
+            long crc = in.readLong();
+            if (magic != MAGIC || crc != crc(lsn, segmentId, offset)) {
+                return null;
+            }
+            return new Checkpoint(lsn, segmentId, offset);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace the checkpoint of dir atomically
+     * @param dir
+     * @throws IOException
+     */
+    public void write(File dir) throws IOException {
+        File tmp = new File(dir, TMP_FILENAME);
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(MAGIC);
+            out.writeLong(lsn);
+            out.writeLong(segmentId);
+            out.writeLong(offset);
+            out.writeLong(crc(lsn, segmentId, offset));
+            out.flush();
+            fos.getChannel().force(true);
+        } finally {
+            fos.close();
+        }
+        Files.move(tmp.toPath(), new File(dir, FILENAME).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static long crc(long lsn, long segmentId, long offset) {
+        CRC32 crc32 = new CRC32();
+        for (long l : new long[] {lsn, segmentId, offset}) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                crc32.update((int) (l >>> shift));
+            }
+        }
+        return crc32.getValue();
+    }
+}
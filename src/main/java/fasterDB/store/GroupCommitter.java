@@ -0,0 +1,167 @@
+package fasterDB.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Group commit for the redo log.
+ *
+ * Callers enqueue their encoded records and wait, the first waiter which finds no leader becomes
+ * the leader, takes up to maxBatchSize records, writes them with one gathering write and one force
+ * and then releases every waiter of the batch. Records enqueued while a leader is forcing form the
+ * next batch, so the batch size grows with the concurrency and the fsync rate stops capping throughput.
+ */
+public class GroupCommitter {
+
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final Writer writer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition committed = lock.newCondition();
+    private final Condition batchFull = lock.newCondition();
+    private final ArrayDeque<Ticket> pending = new ArrayDeque<Ticket>();
+    private final Ticket[] batchTickets;       // only touched by the leader
+    private final ByteBuffer[] batchBuffers;   // only touched by the leader
+    private final ThreadLocal<Ticket> tickets = new ThreadLocal<Ticket>() {
+        protected Ticket initialValue() {
+            return new Ticket();
+        }
+    };
+    private boolean leading;
+
+    /**
+     * Metrics
+     */
+    private final LongAdder commitCount = new LongAdder();
+    private final LongAdder recordCount = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+
+    public GroupCommitter(int maxBatchSize, long maxWaitMicros, Writer writer) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("param maxBatchSize should > 0");
+        }
+        if (writer == null) {
+            throw new NullPointerException("writer should not be null");
+        }
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, maxWaitMicros));
+        this.writer = writer;
+        this.batchTickets = new Ticket[maxBatchSize];
+        this.batchBuffers = new ByteBuffer[maxBatchSize];
+    }
+
+    /**
+     * Return after the buffer has been written and forced together with its batch
+     * @param buffer
+     * @throws IOException if the batch of the buffer failed
+     */
+    public void commit(ByteBuffer buffer) throws IOException {
+        long start = System.nanoTime();
+        Ticket ticket = tickets.get();
+        ticket.buffer = buffer;
+        ticket.done = false;
+        ticket.error = null;
+        lock.lock();
+        try {
+            pending.add(ticket);
+            if (pending.size() >= maxBatchSize) {
+                batchFull.signal();
+            }
+            while (!ticket.done) {
+                if (leading) {
+                    committed.awaitUninterruptibly();
+                } else {
+                    lead();
+                }
+            }
+        } finally {
+            lock.unlock();
+            ticket.buffer = null;
+        }
+        latencyNanos.add(System.nanoTime() - start);
+        if (ticket.error != null) {
+            IOException error = ticket.error;
+            ticket.error = null;
+            throw new IOException("group commit fail", error);
+        }
+    }
+
+    /**
+     * Called with the lock held, the lock is released while writing
+     */
+    private void lead() {
+        leading = true;
+        long waitNanos = maxWaitNanos;
+        while (waitNanos > 0 && pending.size() < maxBatchSize) {
+            try {
+                waitNanos = batchFull.awaitNanos(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        int size = Math.min(pending.size(), maxBatchSize);
+        for (int i = 0; i < size; i++) {
+            batchTickets[i] = pending.poll();
+            batchBuffers[i] = batchTickets[i].buffer;
+        }
+        IOException error = null;
+        lock.unlock();
+        try {
+            writer.write(batchBuffers, size);
+        } catch (IOException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            error = new IOException(e);
+        } finally {
+            lock.lock();
+        }
+        for (int i = 0; i < size; i++) {
+            batchTickets[i].error = error;
+            batchTickets[i].done = true;
+            batchTickets[i] = null;
+            batchBuffers[i] = null;
+        }
+        commitCount.increment();
+        recordCount.add(size);
+        leading = false;
+        committed.signalAll();
+    }
+
+    public long getCommitCount() {
+        return commitCount.sum();
+    }
+
+    public long getRecordCount() {
+        return recordCount.sum();
+    }
+
+    public double getAverageBatchSize() {
+        long commits = commitCount.sum();
+        return commits == 0 ? 0 : (double) recordCount.sum() / commits;
+    }
+
+    public long getAverageLatencyNanos() {
+        long records = recordCount.sum();
+        return records == 0 ? 0 : latencyNanos.sum() / records;
+    }
+
+    private static class Ticket {
+        ByteBuffer buffer;
+        boolean done;           // guarded by lock
+        IOException error;
+    }
+
+    public interface Writer {
+        /**
+         * Write and force buffers[0, length)
+         */
+        void write(ByteBuffer[] buffers, int length) throws IOException;
+    }
+}
@@ -0,0 +1,110 @@
+package fasterDB.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Encoded keys of the hottest cached values, hottest first, and the hit rate of the cache when they
+ * were taken. Written periodically, so a restart can load the values before the traffic asks for them.
+ *
+ * | magic 4 bytes | hitRate 8 bytes | count 4 bytes | keyLength 1 byte | key | ... | crc32 8 bytes |
+ */
+public class HotKeyManifest {
+
+    private static final int MAGIC = 0x46444248;
+    private static final int MAX_KEY_LENGTH = (1 << 8) - 1;
+
+    public final double hitRate;
+    public final List<byte[]> keys;
+
+    public HotKeyManifest(double hitRate, List<byte[]> keys) {
+        this.hitRate = hitRate;
+        this.keys = keys;
+    }
+
+    /**
+     * @param file
+     * @return null if there is no manifest or it is corrupt
+     */
+    public static HotKeyManifest read(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        CheckedInputStream checked = null;
+        try {
+            checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            double hitRate = in.readDouble();
+            int count = in.readInt();
+            if (count < 0 || count > file.length()) {
+                return null;
+            }
+            List<byte[]> keys = new ArrayList<byte[]>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] key = new byte[in.readUnsignedByte()];
+                in.readFully(key);
+                keys.add(key);
+            }
+            long crc = checked.getChecksum().getValue();
+            if (in.readLong() != crc) {
+                return null;
+            }
+            return new HotKeyManifest(hitRate, keys);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (checked != null) {
+                try {
+                    checked.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace the manifest atomically
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fos), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeDouble(hitRate);
+            out.writeInt(keys.size());
+            for (byte[] key : keys) {
+                if (key.length > MAX_KEY_LENGTH) {
+                    throw new IllegalArgumentException("key 's length should <= " + MAX_KEY_LENGTH);
+                }
+                out.writeByte(key.length);
+                out.write(key);
+            }
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            fos.getChannel().force(true);
+        } finally {
+            fos.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -1,22 +1,56 @@
 package fasterDB.store;
 
+import fasterDB.util.EpochBarrier;
 import fasterDB.vo.Config;
-import fasterDB.util.ByteUtil;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Redo log made of numbered segments
+ *
+ * Structure of a record
+ *
+ * | totalSize 4 bytes |  lsn 8 bytes  |  op 1 byte  | keyLength 1 byte |    key    |   value    |
+ *
+ * totalSize does not include itself, the body handed to readers starts at lsn.
+ *
+ * Appenders never wait for a roll: the next segment is prepared ahead as a standby, roll() swaps it in
+ * with one volatile write and then waits, off the append path, for the appenders which may still
+ * hold the old segment.
+ */
 public class LoggerWrapper {
 
+    public static final int LSN_INDEX = 0;          // in the body
+    public static final int OP_INDEX = 8;
+    public static final int KEY_LENGTH_INDEX = 9;
+    public static final int KEY_INDEX = 10;
+
+    private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+    private static final int MAX_CACHED_BUFFER_SIZE = 1024 * 1024;
+
     private final File baseDir;
     private final String suffix;
-    private final ReentrantReadWriteLock.ReadLock logLock;
-    private final ReentrantReadWriteLock.WriteLock rollingLock;
+    private final boolean mapped;
+    private final int segmentSize;
+    private final Checkpoint lastCheckpoint;     // the checkpoint found at startup, may be null
+    private final long firstSegmentId;           // segments before it belong to the previous run
+    private long nextSegmentId;                  // guarded by this
+    private final TreeMap<Long, Logger> segments = new TreeMap<Long, Logger>();  // open segments, guarded by this
+    private final AtomicLong nextLsn = new AtomicLong(0);
+    private final EpochBarrier appenders = new EpochBarrier();
+    private final GroupCommitter groupCommitter;
+    private final ThreadLocal<ByteBuffer> bufferCache = new ThreadLocal<ByteBuffer>() {
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+        }
+    };
 
     private volatile Logger logger;
+    private Logger standby;                      // the next segment, guarded by this
 
     public LoggerWrapper(Config config) throws IOException {
         String basePath = config.getRedoLogPath();
@@ -32,86 +66,299 @@ public class LoggerWrapper {
             throw new IllegalArgumentException("basePath[" + basePath + "] should be an directory file");
         }
         this.suffix = suffix;
-        logger = buildLogger();
-        ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-        logLock = lock.readLock();
-        rollingLock = lock.writeLock();
+        this.mapped = config.isMappedRedoLog();
+        this.segmentSize = (int) Math.min(config.getRollingThreshold(), MappedLogger.MAX_CAPACITY);
+        this.lastCheckpoint = Checkpoint.read(baseDir);
+        long maxSegmentId = lastCheckpoint == null ? 0 : lastCheckpoint.segmentId;
+        for (File historyLog : historyLogs()) {
+            maxSegmentId = Math.max(maxSegmentId, segmentId(historyLog));
+        }
+        firstSegmentId = maxSegmentId + 1;
+        nextSegmentId = firstSegmentId;
+        nextLsn.set(lastCheckpoint == null ? 0 : lastCheckpoint.lsn);
+        logger = buildLogger(segmentSize);
+        prepareStandby();
+        groupCommitter = new GroupCommitter(config.getGroupCommitMaxBatchSize(), config.getGroupCommitMaxWaitMicros(),
+                new GroupCommitter.Writer() {
+                    @Override
+                    public void write(ByteBuffer[] buffers, int length) throws IOException {
+                        int ticket = appenders.enter();
+                        try {
+                            long size = 0;
+                            for (int i = 0; i < length; i++) {
+                                stampLsn(buffers[i]);
+                                size += buffers[i].remaining();
+                            }
+                            for (;;) {
+                                Logger logger = LoggerWrapper.this.logger;
+                                if (logger.log(buffers, length) >= 0) {
+                                    logger.flush();
+                                    return;
+                                }
+                                nextSegment(logger, size);
+                            }
+                        } finally {
+                            appenders.exit(ticket);
+                        }
+                    }
+                });
     }
 
-    public void redo(Logger.Reader reader) throws IOException {
+    /**
+     * Replay the segments of the previous run, starting from the checkpoint found at startup.
+     * Segments are not deleted here, the next checkpoint deletes them.
+     * @param reader
+     * @throws IOException
+     */
+    public void redo(final Logger.Reader reader) throws IOException {
         if (reader == null) {
             throw new NullPointerException("reader should not be null");
         }
-        File[] historyLogs = baseDir.listFiles(new FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String name) {
-                return name.endsWith(suffix);
+        final long fromLsn = lastCheckpoint == null ? 0 : lastCheckpoint.lsn;
+        long fromSegmentId = lastCheckpoint == null ? 0 : lastCheckpoint.segmentId;
+        List<File> historyLogs = new ArrayList<File>();
+        for (File historyLog : historyLogs()) {
+            long segmentId = segmentId(historyLog);
+            if (segmentId >= fromSegmentId && segmentId < firstSegmentId) {
+                historyLogs.add(historyLog);
             }
-        });
-        if (historyLogs.length == 0) {
-            return;
         }
-        Arrays.sort(historyLogs, new Comparator<File>() {
+        Collections.sort(historyLogs, new Comparator<File>() {
             @Override
             public int compare(File f1, File f2) {
-                String f1name = f1.getName();
-                String f2name = f2.getName();
-                return Long.valueOf(f1name).compareTo(Long.valueOf(f2name));
+                return Long.valueOf(segmentId(f1)).compareTo(segmentId(f2));
             }
         });
-        int index = 0;
-        Logger[] loggers = new Logger[historyLogs.length];
+        final long[] maxLsn = new long[] {fromLsn - 1};
+        Logger.Reader lsnFilter = new Logger.Reader() {
+            @Override
+            public void read(byte[] bytes) {
+                long lsn = ByteBuffer.wrap(bytes).getLong(LSN_INDEX);
+                if (lsn >= fromLsn) {
+                    maxLsn[0] = Math.max(maxLsn[0], lsn);
+                    reader.read(bytes);
+                }
+            }
+        };
         for (File historyLog : historyLogs) {
-            loggers[index++] = new Logger(historyLog);
-        }
-        for (Logger logger : loggers) {
-            logger.redo(reader);
-            logger.destroy();
+            Logger logger = new ChannelLogger(historyLog);
+            try {
+                long offset = segmentId(historyLog) == fromSegmentId ? lastCheckpoint.offset : 0;
+                logger.redo(lsnFilter, offset);
+            } finally {
+                logger.close();
+            }
         }
+        nextLsn.set(Math.max(nextLsn.get(), maxLsn[0] + 1));
     }
 
-    public int log(boolean flush, byte[]... byteArrays) throws IOException {
-        if (byteArrays == null || byteArrays.length == 0) {
-            throw new NullPointerException("byteArrays should not be null");
-        }
-        int totalSize = 0;
-        for (byte[] byteArray : byteArrays) {
-            totalSize += byteArray.length;
+    /**
+     * Append a record, the record is encoded into a per-thread direct buffer, so nothing is allocated
+     * and the channel does not copy it into a temporary direct buffer either
+     * @param flush
+     * @param op
+     * @param keyBytes
+     * @param keyLength
+     * @param valueBytes null if the op has no value
+     * @return the bytes appended
+     * @throws IOException
+     */
+    public int log(boolean flush, byte op, byte[] keyBytes, int keyLength, byte[] valueBytes) throws IOException {
+        if (keyBytes == null) {
+            throw new NullPointerException("keyBytes should not be null");
         }
-        ByteBuffer buffer = ByteBuffer
-                .allocate(totalSize + 4)
-                .put(ByteUtil.getBytesBigEndian(totalSize));
-        for (byte[] byteArray : byteArrays) {
-            buffer.put(byteArray);
+        int totalSize = KEY_INDEX + keyLength + (valueBytes == null ? 0 : valueBytes.length);
+        ByteBuffer buffer = borrowBuffer(totalSize + 4);
+        buffer.putInt(totalSize).putLong(0).put(op).put((byte) keyLength).put(keyBytes, 0, keyLength);
+        if (valueBytes != null) {
+            buffer.put(valueBytes);
         }
         buffer.flip();
+        if (flush) {
+            groupCommitter.commit(buffer);
+            return totalSize + 4;
+        }
+        int ticket = appenders.enter();
         try {
-            logLock.lock();
-            Logger logger = this.logger;
-            logger.log(buffer);
-            if (flush) {
-                logger.flush();
+            stampLsn(buffer);
+            for (;;) {
+                Logger logger = this.logger;
+                if (logger.log(buffer) >= 0) {
+                    break;
+                }
+                nextSegment(logger, buffer.remaining());
             }
         } finally {
-            logLock.unlock();
+            appenders.exit(ticket);
         }
         return totalSize + 4;
     }
 
-    public void roll() throws IOException {
-        try {
-            rollingLock.lock();
-            Logger old = logger;
-            logger = buildLogger();
-            if (old != null) {
+    /**
+     * Lsns are assigned inside the appenders epoch, so once roll() drained it every record of the
+     * segments before the roll has a smaller lsn than the lsn it returns
+     */
+    private void stampLsn(ByteBuffer buffer) {
+        buffer.putLong(buffer.position() + 4 + LSN_INDEX, nextLsn.getAndIncrement());
+    }
+
+    private ByteBuffer borrowBuffer(int size) {
+        if (size > MAX_CACHED_BUFFER_SIZE) {
+            return ByteBuffer.allocate(size);
+        }
+        ByteBuffer buffer = bufferCache.get();
+        if (buffer.capacity() < size) {
+            int capacity = Integer.highestOneBit(size - 1) << 1;
+            buffer = ByteBuffer.allocateDirect(Math.min(capacity, MAX_CACHED_BUFFER_SIZE));
+            bufferCache.set(buffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Switch appenders to the standby segment, old segments are kept until a checkpoint at the
+     * returned position is written. Records of the new segment may have a smaller lsn than the
+     * returned one, they were logged before it and so are covered by the checkpoint.
+     * @return the position of the first record of the new segment
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public Checkpoint roll() throws IOException, InterruptedException {
+        long segmentId;
+        synchronized (this) {
+            if (standby == null) {
+                prepareStandby();
+            }
+            segmentId = segments.lastKey();
+            logger = standby;
+            standby = null;
+        }
+        appenders.advance();
+        return new Checkpoint(nextLsn.get(), segmentId, 0);
+    }
+
+    /**
+     * Build the next segment ahead of time, so the next roll is only a swap.
+     * Called by the rolling thread after a checkpoint.
+     * @throws IOException
+     */
+    public synchronized void prepareStandby() throws IOException {
+        if (standby == null) {
+            standby = buildLogger(segmentSize);
+        }
+    }
+
+    /**
+     * Persist the checkpoint and delete every segment before it, the caller must have made the
+     * pages of every record before checkpoint.lsn durable
+     * @param checkpoint
+     * @throws IOException
+     */
+    public void checkpoint(Checkpoint checkpoint) throws IOException {
+        checkpoint.write(baseDir);
+        synchronized (this) {
+            SortedMap<Long, Logger> olds = segments.headMap(checkpoint.segmentId);
+            for (Logger old : olds.values()) {
                 old.destroy();
             }
-        } finally {
-            rollingLock.unlock();
+            olds.clear();
+        }
+        for (File historyLog : historyLogs()) {
+            if (segmentId(historyLog) < Math.min(checkpoint.segmentId, firstSegmentId)) {
+                historyLog.delete();
+            }
         }
     }
 
-    private Logger buildLogger() throws IOException {
-        return new Logger(baseDir, String.valueOf(System.currentTimeMillis()) + "." + suffix);
+    /**
+     * Force every open segment, records appended before the call are durable when it returns
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        List<Logger> loggers;
+        synchronized (this) {
+            loggers = new ArrayList<Logger>(segments.values());
+        }
+        for (Logger logger : loggers) {
+            logger.flush();
+        }
+    }
+
+    /**
+     * Close every open segment, nothing is deleted
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        for (Logger logger : segments.values()) {
+            logger.close();
+        }
+    }
+
+    /**
+     * @return the checkpoint found at startup, null if there was none
+     */
+    public Checkpoint getLastCheckpoint() {
+        return lastCheckpoint;
+    }
+
+    public GroupCommitter getGroupCommitter() {
+        return groupCommitter;
+    }
+
+    /**
+     * Switch appenders from the full segment to a new one, the full segment is deleted by the next checkpoint
+     * @param full
+     * @param size the size of the record which did not fit
+     * @throws IOException
+     */
+    private synchronized void nextSegment(Logger full, long size) throws IOException {
+        if (logger != full) {
+            return;
+        }
+        if (size > MappedLogger.MAX_CAPACITY) {
+            throw new IOException("redo record is too large: " + size);
+        }
+        // the standby has the greatest segment id, so take it even if the record does not fit
+        if (standby != null) {
+            logger = standby;
+            standby = null;
+            return;
+        }
+        logger = buildLogger((int) Math.max(segmentSize, size));
+    }
+
+    private synchronized Logger buildLogger(int capacity) throws IOException {
+        long segmentId = nextSegmentId++;
+        String filename = String.valueOf(segmentId) + "." + suffix;
+        Logger logger = mapped ? new MappedLogger(baseDir, filename, capacity) : new ChannelLogger(baseDir, filename);
+        segments.put(segmentId, logger);
+        return logger;
+    }
+
+    private File[] historyLogs() {
+        File[] historyLogs = baseDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith("." + suffix) && segmentId(name) >= 0;
+            }
+        });
+        return historyLogs == null ? new File[0] : historyLogs;
+    }
+
+    private long segmentId(File file) {
+        return segmentId(file.getName());
+    }
+
+    /**
+     * @param name
+     * @return -1 if the name is not a segment name
+     */
+    private long segmentId(String name) {
+        try {
+            return Long.parseLong(name.substring(0, name.length() - suffix.length() - 1));
+        } catch (RuntimeException e) {
+            return -1;
+        }
     }
 }
@@ -0,0 +1,259 @@
+package fasterDB.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Redo log segment which is preallocated to a fixed size and appended through memory mapped windows.
+ *
+ * Appenders reserve their range with a CAS on the tail and copy in parallel, then publish in
+ * reservation order so that the published prefix never contains a hole. The file never grows,
+ * so an append costs no syscall and no file metadata update, and flush only forces the windows
+ * between the last flushed offset and the published offset.
+ *
+ * Unused space is zero, a zero record size marks the end of the segment. An appender which fails
+ * after its reservation still publishes it, with a negative size which tells replay to skip the
+ * range, so the appenders reserved after it do not wait forever.
+ */
+public class MappedLogger implements Logger {
+
+    private static final int WINDOW_SIZE_SHIFT = 22;
+    private static final int WINDOW_SIZE = 1 << WINDOW_SIZE_SHIFT;
+    private static final int WINDOW_OFFSET_MASK = WINDOW_SIZE - 1;
+    public static final int MAX_CAPACITY = 1 << 30;
+
+    private final File file;
+    private final RandomAccessFile rac;
+    private final FileChannel fileChannel;
+    private final MappedByteBuffer[] windows;
+    private final int capacity;
+    private final AtomicInteger tail = new AtomicInteger(0);        // end of the reserved bytes
+    private final AtomicInteger published = new AtomicInteger(0);   // end of the copied prefix
+    private final ThreadLocal<ByteBuffer[]> windowViews;            // per-thread positions on the windows
+    private int flushed;                                            // guarded by this
+
+    public MappedLogger(File parentPath, String filename, int capacity) throws IOException {
+        if (parentPath == null || filename == null) {
+            throw new NullPointerException("parentPath and filename should not be null");
+        }
+        if (capacity <= 0 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("capacity should > 0 and <= " + MAX_CAPACITY);
+        }
+        file = new File(parentPath, filename);
+        if (file.exists()) {
+            throw new IllegalArgumentException("filename[" + file.getName() + "] should not exist");
+        }
+        this.capacity = (capacity + WINDOW_OFFSET_MASK) & ~WINDOW_OFFSET_MASK;
+        rac = new RandomAccessFile(file, "rw");
+        rac.setLength(this.capacity);
+        fileChannel = rac.getChannel();
+        final int windowCount = this.capacity >>> WINDOW_SIZE_SHIFT;
+        windows = new MappedByteBuffer[windowCount];
+        for (int i = 0; i < windowCount; i++) {
+            windows[i] = fileChannel.map(FileChannel.MapMode.READ_WRITE, ((long) i) << WINDOW_SIZE_SHIFT, WINDOW_SIZE);
+        }
+        windowViews = new ThreadLocal<ByteBuffer[]>() {
+            protected ByteBuffer[] initialValue() {
+                return new ByteBuffer[windowCount];
+            }
+        };
+    }
+
+    @Override
+    public int log(ByteBuffer buffer) throws IOException {
+        int size = buffer.remaining();
+        if (size < 4) {
+            throw new IllegalArgumentException("a record should have 4 bytes of size at least");
+        }
+        int offset = reserve(size);
+        if (offset < 0) {
+            return -1;
+        }
+        boolean copied = false;
+        try {
+            copy(buffer, offset);
+            copied = true;
+        } finally {
+            publish(offset, size, copied);
+        }
+        return size;
+    }
+
+    @Override
+    public long log(ByteBuffer[] buffers, int length) throws IOException {
+        long total = 0;
+        for (int i = 0; i < length; i++) {
+            total += buffers[i].remaining();
+        }
+        if (total > capacity) {
+            return -1;
+        }
+        int size = (int) total;
+        if (size < 4) {
+            throw new IllegalArgumentException("a record should have 4 bytes of size at least");
+        }
+        int offset = reserve(size);
+        if (offset < 0) {
+            return -1;
+        }
+        boolean copied = false;
+        try {
+            int position = offset;
+            for (int i = 0; i < length; i++) {
+                int remaining = buffers[i].remaining();
+                copy(buffers[i], position);
+                position += remaining;
+            }
+            copied = true;
+        } finally {
+            publish(offset, size, copied);
+        }
+        return size;
+    }
+
+    /**
+     * Force the windows written since the last flush
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        int end = published.get();
+        if (end <= flushed) {
+            return;
+        }
+        int last = (end - 1) >>> WINDOW_SIZE_SHIFT;
+        for (int window = flushed >>> WINDOW_SIZE_SHIFT; window <= last; window++) {
+            windows[window].force();
+        }
+        flushed = end;
+    }
+
+    @Override
+    public synchronized void redo(Reader reader, long from) throws IOException {
+        if (reader == null) {
+            throw new NullPointerException("reader should not be null");
+        }
+        ByteBuffer header = ByteBuffer.allocate(4);
+        int end = published.get();
+        for (int offset = (int) from; offset + 4 <= end; ) {
+            header.clear();
+            read(offset, header);
+            int size = header.getInt(0);
+            if (size < 0 && offset + 4 - (long) size <= end) {
+                offset += 4 - size;     // the range of a failed append
+                continue;
+            }
+            if (size <= 0 || offset + 4 + size > end) {
+                break;
+            }
+            byte[] body = new byte[size];
+            read(offset + 4, ByteBuffer.wrap(body));
+            reader.read(body);
+            offset += 4 + size;
+        }
+    }
+
+    @Override
+    public long position() {
+        return tail.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        fileChannel.close();
+        rac.close();
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        close();
+        file.delete();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private int reserve(int size) {
+        for (;;) {
+            int offset = tail.get();
+            if (size > capacity - offset) {
+                return -1;
+            }
+            if (tail.compareAndSet(offset, offset + size)) {
+                return offset;
+            }
+        }
+    }
+
+    /**
+     * Wait for the appenders reserved before offset, then publish [offset, offset + size)
+     * @param copied false if the appender failed, the range is then marked to be skipped
+     */
+    private void publish(int offset, int size, boolean copied) {
+        try {
+            if (!copied) {
+                markSkipped(offset, size);
+            }
+        } finally {
+            while (published.get() != offset) {
+                Thread.yield();
+            }
+            published.set(offset + size);
+        }
+    }
+
+    /**
+     * Write the negated size of the range at its start, a byte at a time straight into the windows, as
+     * the header may span two of them. Nothing here allocates or goes through the views of the thread.
+     */
+    private void markSkipped(int offset, int size) {
+        int header = -(size - 4);
+        for (int i = 0; i < 4; i++) {
+            int position = offset + i;
+            windows[position >>> WINDOW_SIZE_SHIFT].put(position & WINDOW_OFFSET_MASK, (byte) (header >>> (24 - 8 * i)));
+        }
+    }
+
+    /**
+     * Package-private so a test can make an append fail
+     */
+    void copy(ByteBuffer src, int offset) {
+        ByteBuffer[] views = windowViews.get();
+        int limit = src.limit();
+        try {
+            while (src.hasRemaining()) {
+                int window = offset >>> WINDOW_SIZE_SHIFT;
+                int windowOffset = offset & WINDOW_OFFSET_MASK;
+                int length = Math.min(src.remaining(), WINDOW_SIZE - windowOffset);
+                ByteBuffer view = views[window];
+                if (view == null) {
+                    view = views[window] = windows[window].duplicate();
+                }
+                view.clear().position(windowOffset);
+                src.limit(src.position() + length);
+                view.put(src);
+                src.limit(limit);
+                offset += length;
+            }
+        } finally {
+            src.limit(limit);
+        }
+    }
+
+    private void read(int offset, ByteBuffer dst) {
+        while (dst.hasRemaining()) {
+            int window = offset >>> WINDOW_SIZE_SHIFT;
+            int windowOffset = offset & WINDOW_OFFSET_MASK;
+            int length = Math.min(dst.remaining(), WINDOW_SIZE - windowOffset);
+            ByteBuffer view = windows[window].duplicate();
+            view.position(windowOffset).limit(windowOffset + length);
+            dst.put(view);
+            offset += length;
+        }
+    }
+}
@@ -3,20 +3,24 @@ package fasterDB.store;
 import fasterDB.vo.Config;
 import fasterDB.vo.InitializingBean;
 import fasterDB.vo.PageFaultException;
+import fasterDB.util.AtomicBitSet;
 import fasterDB.util.FileSystemUtil;
+import fasterDB.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
-import java.nio.channels.OverlappingFileLockException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Created by zn on 15/4/18.
  */
 public class MappedStorage implements InitializingBean {
+    private static final Logger logger = LoggerFactory.getLogger(MappedStorage.class);
 
     /**
      * Metadata
@@ -32,6 +36,13 @@ public class MappedStorage implements InitializingBean {
     private final String file;
     private final boolean delIfExist;
 
+    /**
+     * Page latch
+     */
+    private final int latchStripes;
+    private final boolean crossProcessLatch;
+    private PageLatch latch;
+
     /**
      * Page size
      */
@@ -51,12 +62,13 @@ public class MappedStorage implements InitializingBean {
     private final int pageCountInRegionShift;
 
     /**
-     * Invalid regions
+     * Mapped regions, replaced by a copy when one is added or cut off, so readers take no lock.
+     * Regions above maxRegion are retired and still readable until they are cut off
      */
-    private List<MappedByteBuffer> regions;
+    private volatile MappedByteBuffer[] regions;
 
     /**
-     * Max region index in regions list
+     * Max region index in use
      */
     private volatile long maxRegion;
 
@@ -65,6 +77,29 @@ public class MappedStorage implements InitializingBean {
      */
     private FileChannel fileChannel;
 
+    /**
+     * Dirty tracking, a chunk is a fixed range of the file which is marked after any page of it
+     * is written and forced on its own through a mapping of just that range, unmapped right after
+     */
+    private static final int chunkSizeShift = 26;
+    private static final int chunkSize = 1 << chunkSizeShift;
+    private static final int CHUNK_LOCK_STRIPES = 64;
+    private final AtomicBitSet dirtyChunks = new AtomicBitSet(1024);
+    private final Object[] chunkLocks = new Object[CHUNK_LOCK_STRIPES];
+    private final LongAdder forcedChunks = new LongAdder();
+
+    /**
+     * Valid pages, so that free space is known without reading every page
+     */
+    private PageBitmap pageBitmap;
+
+    /**
+     * Background flush
+     */
+    private final long backgroundFlushIntervalMillis;
+    private final long backgroundFlushBytesPerSecond;
+    private Thread backgroundFlusher;
+
     /**
      * Create instance
      * @param config
@@ -72,9 +107,20 @@ public class MappedStorage implements InitializingBean {
      * @throws IOException
      */
     public MappedStorage(Config config, boolean delIfExist) {
+        this(config, config.getDataFile(), config.getPageSize(), delIfExist);
+        config.setPageSize(actualPageSize);
+    }
+
+    /**
+     * Create instance of a data file with its own page size, config.pageSize is left as it is
+     * @param config
+     * @param file
+     * @param pageSize rounded up so that the page and its metadata are a power of two
+     * @param delIfExist
+     */
+    public MappedStorage(Config config, String file, int pageSize, boolean delIfExist) {
         String parentPath = config.getDataPath();
-        String file = config.getDataFile();
-        int pageSize = config.getPageSize() + METADATA_SIZE;
+        pageSize += METADATA_SIZE;
         int shift = 31 - Integer.numberOfLeadingZeros(pageSize);
         this.pageSizeShift = (1 << shift) == pageSize ? shift : shift + 1;
         this.pageSize = 1 << pageSizeShift;
@@ -82,25 +128,189 @@ public class MappedStorage implements InitializingBean {
         if (this.pageSize > this.regionSize) {
             throw new IllegalArgumentException("param pageSize should less than " + (this.actualPageSize));
         }
-        config.setPageSize(actualPageSize);
         this.pageCountInRegionShift = this.regionSizeShift - this.pageSizeShift;
         this.parentPath = parentPath;
         this.file = file;
         this.delIfExist = delIfExist;
+        this.latchStripes = config.getPageLatchStripes();
+        this.crossProcessLatch = config.isCrossProcessPageLatch();
+        this.backgroundFlushIntervalMillis = config.getBackgroundFlushIntervalMillis();
+        this.backgroundFlushBytesPerSecond = config.getBackgroundFlushBytesPerSecond();
+        for (int i = 0; i < CHUNK_LOCK_STRIPES; i++) {
+            chunkLocks[i] = new Object();
+        }
     }
 
     @Override
     public void initialize() throws IOException {
         restoreRegions();
+        pageBitmap = new PageBitmap(parentPath, file + ".bitmap", delIfExist);
+        if (!pageBitmap.isRestored()) {
+            rebuildPageBitmap();
+        }
+        latch = new PageLatch(latchStripes, crossProcessLatch ? fileChannel : null);
+        if (backgroundFlushIntervalMillis > 0) {
+            backgroundFlusher = new NamedThreadFactory("FDB", "background-flush").newThread(new BackgroundFlushTask());
+            backgroundFlusher.setDaemon(true);
+            backgroundFlusher.start();
+        }
+    }
+
+    /**
+     * Forces any changes made to this to be written to the storage device,
+     * only the chunks written since they were last forced are touched
+     */
+    public void flush() {
+        for (int chunk = dirtyChunks.nextSetBit(0); chunk >= 0; chunk = dirtyChunks.nextSetBit(chunk + 1)) {
+            forceChunk(chunk);
+        }
+        pageBitmap.force();
+    }
+
+    /**
+     * Stop the background flush and close the file, the caller flushes first
+     * @throws IOException
+     */
+    public void close() throws IOException, InterruptedException {
+        if (backgroundFlusher != null) {
+            backgroundFlusher.interrupt();
+            backgroundFlusher.join();
+        }
+        pageBitmap.close();
+        fileChannel.close();
+    }
+
+    /**
+     * A chunk being forced by another thread is waited for, so a flush never returns before
+     * the writes it has to cover are durable. The dirty bit is cleared before forcing, a page
+     * written meanwhile marks it again and is forced by the next flush.
+     */
+    private void forceChunk(int chunk) {
+        synchronized (chunkLocks[chunk & (CHUNK_LOCK_STRIPES - 1)]) {
+            if (!dirtyChunks.get(chunk)) {
+                return;
+            }
+            dirtyChunks.unSet(chunk);
+            MappedByteBuffer mapping;
+            try {
+                mapping = fileChannel.map(FileChannel.MapMode.READ_WRITE, ((long) chunk) << chunkSizeShift, chunkSize);
+            } catch (IOException e) {
+                dirtyChunks.set(chunk);
+                throw new RuntimeException("map file fail", e);
+            }
+            // only used here under the chunk lock, so a chunk costs no address space between flushes
+            try {
+                mapping.force();
+            } finally {
+                FileSystemUtil.unmap(mapping);
+            }
+            forcedChunks.increment();
+        }
+    }
+
+    /**
+     * Marked after the write, see forceChunk
+     */
+    private void markDirty(int pageId) {
+        int chunk = (int) ((((long) pageId) << pageSizeShift) >>> chunkSizeShift);
+        if (!dirtyChunks.get(chunk)) {
+            dirtyChunks.set(chunk);
+        }
+    }
+
+    public long getForcedChunkCount() {
+        return forcedChunks.sum();
+    }
+
+    /**
+     * @return the page size without the metadata
+     */
+    public int getPageSize() {
+        return actualPageSize;
+    }
+
+    /**
+     * @return the count of pages the mapped regions can hold, pages beyond it were never written
+     */
+    public int getPageCapacity() {
+        long capacity = (maxRegion + 1) << pageCountInRegionShift;
+        return (int) Math.min(capacity, Integer.MAX_VALUE);
     }
 
     /**
-     * Forces any changes made to this to be written to the storage device
+     * @return the count of pages in a region, the unit the file grows and shrinks by
+     */
+    public int getRegionPageCount() {
+        return 1 << pageCountInRegionShift;
+    }
+
+    /**
+     * @return the bytes of the regions in use
+     */
+    public long getFileBytes() {
+        return (maxRegion + 1) << regionSizeShift;
+    }
+
+    /**
+     * Stop using the regions above the first pageCount pages, every page in them should be free.
+     * A write to them maps them again, a read still sees them until truncateRetired cuts them off
+     * @param pageCount
+     * @return the count of regions in use before
+     */
+    public synchronized int retire(int pageCount) {
+        long regionCount = maxRegion + 1;
+        long keep = ((long) pageCount + (1 << pageCountInRegionShift) - 1) >>> pageCountInRegionShift;
+        if (keep < regionCount) {
+            maxRegion = keep - 1;
+        }
+        return (int) regionCount;
+    }
+
+    /**
+     * Use the regions retired since retire returned regionCount again
+     * @param regionCount
+     */
+    public synchronized void restore(int regionCount) {
+        if (regionCount - 1 > maxRegion && regionCount <= regions.length) {
+            maxRegion = regionCount - 1;
+        }
+    }
+
+    /**
+     * Cut the regions retired before off the file, a region used again meanwhile stays. The caller makes
+     * sure that no reader is still copying a page of them. Their mappings are dropped and unmapped once
+     * collected
+     * @return the bytes cut off
+     * @throws IOException
      */
-    public synchronized void flush() {
-        for (MappedByteBuffer region : regions) {
-            region.force();
+    public synchronized long truncateRetired() throws IOException {
+        long keep = maxRegion + 1;
+        if (regions.length <= keep) {
+            return 0;
         }
+        long length = keep << regionSizeShift;
+        long end = ((long) regions.length) << regionSizeShift;
+        for (long chunk = length >>> chunkSizeShift; chunk < end >>> chunkSizeShift; chunk++) {
+            synchronized (chunkLocks[(int) chunk & (CHUNK_LOCK_STRIPES - 1)]) {
+                // a dirty bit left there would map the range again
+                dirtyChunks.unSet((int) chunk);
+            }
+        }
+        regions = Arrays.copyOf(regions, (int) keep);
+        long size = fileChannel.size();
+        if (size <= length) {
+            return 0;
+        }
+        fileChannel.truncate(length);
+        return size - length;
+    }
+
+    /**
+     * @param pageId
+     * @return whether the page is valid, read from the page map instead of the page
+     */
+    public boolean isAllocated(int pageId) {
+        return pageBitmap.get(pageId);
     }
 
     /**
@@ -116,15 +326,14 @@ public class MappedStorage implements InitializingBean {
         try {
             page = getOrCreatePage(pageId, true);
         } catch (PageFaultException e) {}
-        FileLock lock = null;
+        long stamp = latch.lockWrite(pageId);
         try {
-            lock = lock(pageId);
             page.put(STATE_INDEX, VALID);
         } finally {
-            if (lock != null) {
-                lock.release();
-            }
+            latch.unlockWrite(pageId, stamp);
         }
+        pageBitmap.set(pageId);
+        markDirty(pageId);
     }
 
     /**
@@ -136,19 +345,23 @@ public class MappedStorage implements InitializingBean {
         if (pageId < 0) {
             throw new IllegalArgumentException("param pageId should >= 0");
         }
+        if ((pageId >>> pageCountInRegionShift) > maxRegion) {
+            // a page beyond the regions is invalid already, e.g. in a region cut off by the compaction
+            pageBitmap.clear(pageId);
+            return;
+        }
         ByteBuffer page = null;
         try {
             page = getOrCreatePage(pageId, true);
         } catch (PageFaultException e) {}
-        FileLock lock = null;
+        long stamp = latch.lockWrite(pageId);
         try {
-            lock = lock(pageId);
             page.put(STATE_INDEX, INVALID);
         } finally {
-            if (lock != null) {
-                lock.release();
-            }
+            latch.unlockWrite(pageId, stamp);
         }
+        pageBitmap.clear(pageId);
+        markDirty(pageId);
     }
 
     /**
@@ -165,26 +378,108 @@ public class MappedStorage implements InitializingBean {
         if (dst == null || dst.length < actualPageSize) {
             throw new IllegalArgumentException("param dst is null or length < " + actualPageSize);
         }
+        return copyPage(pageId, getOrCreatePage(pageId, false), dst, 0, dst.length);
+    }
 
-        ByteBuffer page = getOrCreatePage(pageId, false);
-        page.position(METADATA_SIZE);
-        FileLock lock = null;
-        try {
-            lock = lock(pageId);
-            page.get(dst, 0, dst.length);
-            byte state = page.get(STATE_INDEX);
-            if (state == VALID) {
-                return true;
-            } else if (state == INVALID) {
+    /**
+     * Copy page content to dst from offset
+     * @param pageId
+     * @param dst
+     * @param offset
+     * @return  true valid false invalid
+     * @throws IOException
+     */
+    public boolean getPage(int pageId, byte[] dst, int offset) throws IOException, PageFaultException {
+        if (pageId < 0) {
+            throw new IllegalArgumentException("param pageId should >= 0");
+        }
+        if (dst == null || offset < 0 || dst.length - offset < actualPageSize) {
+            throw new IllegalArgumentException("param dst is null or length < offset + " + actualPageSize);
+        }
+        return copyPage(pageId, getOrCreatePage(pageId, false), dst, offset, actualPageSize);
+    }
+
+    /**
+     * Copy the content of count adjacent pages to dst, page i from offset i * pageSize.
+     * A run inside one region is copied through a single view of it under optimistic stamps which
+     * are validated once after the whole run, other runs or a failed validation go page by page.
+     * @param firstPageId
+     * @param count
+     * @param dst
+     * @return  true if every page is valid
+     * @throws IOException
+     */
+    public boolean getPages(int firstPageId, int count, byte[] dst) throws IOException, PageFaultException {
+        if (firstPageId < 0 || count <= 0 || firstPageId > Integer.MAX_VALUE - count) {
+            throw new IllegalArgumentException("param firstPageId should >= 0 and count should > 0");
+        }
+        if (dst == null || dst.length / actualPageSize < count) {
+            throw new IllegalArgumentException("param dst is null or length < count * " + actualPageSize);
+        }
+        int lastPageId = firstPageId + count - 1;
+        if ((firstPageId >>> pageCountInRegionShift) == (lastPageId >>> pageCountInRegionShift)) {
+            ByteBuffer run = getOrCreateRun(firstPageId, count, false);
+            long[] stamps = new long[count];
+            boolean valid = true;
+            int i = 0;
+            for (; i < count; i++) {
+                stamps[i] = latch.tryOptimisticRead(firstPageId + i);
+                if (stamps[i] == 0) {
+                    break;
+                }
+                int offset = i << pageSizeShift;
+                run.position(offset + METADATA_SIZE);
+                run.get(dst, i * actualPageSize, actualPageSize);
+                valid &= run.get(offset + STATE_INDEX) == VALID;
+            }
+            if (i == count) {
+                boolean consistent = true;
+                for (i = 0; i < count && consistent; i++) {
+                    consistent = latch.validate(firstPageId + i, stamps[i]);
+                }
+                if (consistent && valid) {
+                    return true;
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (!getPage(firstPageId + i, dst, i * actualPageSize)) {
                 return false;
-            } else {
-                throw new PageFaultException("page not exist");
             }
-        } finally {
-            if (lock != null) {
-                lock.release();
+        }
+        return true;
+    }
+
+    private boolean copyPage(int pageId, ByteBuffer page, byte[] dst, int offset, int length) throws PageFaultException {
+        byte state;
+        long stamp = latch.tryOptimisticRead(pageId);
+        if (stamp != 0) {
+            page.position(METADATA_SIZE);
+            page.get(dst, offset, length);
+            state = page.get(STATE_INDEX);
+            if (latch.validate(pageId, stamp)) {
+                return isValid(state);
             }
         }
+        stamp = latch.lockRead(pageId);
+        try {
+            page.position(METADATA_SIZE);
+            page.get(dst, offset, length);
+            state = page.get(STATE_INDEX);
+        } finally {
+            latch.unlockRead(pageId, stamp);
+        }
+        return isValid(state);
+    }
+
+    private boolean isValid(byte state) throws PageFaultException {
+        if (state == VALID) {
+            return true;
+        } else if (state == INVALID) {
+            return false;
+        } else {
+            throw new PageFaultException("page not exist");
+        }
     }
 
     /**
@@ -195,66 +490,113 @@ public class MappedStorage implements InitializingBean {
      * @throws IOException
      */
     public void setPage(int pageId, byte[] bytes, boolean setInvalidBefore) throws IOException {
+        if (bytes == null || bytes.length == 0) {
+            return;
+        }
+        setPage(pageId, bytes, 0, bytes.length, setInvalidBefore);
+    }
+
+    /**
+     * Copy length bytes from offset to page located by pageId
+     * @param pageId
+     * @param bytes
+     * @param offset
+     * @param length
+     * @param setInvalidBefore whether set the page to invalid before setPage or not
+     * @throws IOException
+     */
+    public void setPage(int pageId, byte[] bytes, int offset, int length, boolean setInvalidBefore) throws IOException {
         if (pageId < 0) {
             throw new IllegalArgumentException("param pageId should >= 0");
         }
-        if (bytes == null || bytes.length == 0) {
+        if (bytes == null || length <= 0) {
             return;
         }
-        if (bytes.length > actualPageSize) {
+        if (length > actualPageSize) {
             throw new IllegalArgumentException("bytes.length should <= " + actualPageSize);
         }
+        if (offset < 0 || offset > bytes.length - length) {
+            throw new IllegalArgumentException("param offset should be in [0, bytes.length - length]");
+        }
 
         ByteBuffer page = null;
         try {
             page = getOrCreatePage(pageId, true);
         } catch (PageFaultException e) {}
         page.position(METADATA_SIZE);
-        FileLock lock = null;
+        long stamp = latch.lockWrite(pageId);
         try {
-            lock = lock(pageId);
             if (setInvalidBefore) {
                 page.put(STATE_INDEX, INVALID);
             }
-            page.put(bytes);
+            page.put(bytes, offset, length);
             page.put(STATE_INDEX, VALID);
         } finally {
-            if (lock != null) {
-                lock.release();
-            }
+            latch.unlockWrite(pageId, stamp);
         }
+        pageBitmap.set(pageId);
+        markDirty(pageId);
     }
 
     private ByteBuffer getOrCreatePage(int pageId, boolean createRegionIfAbsent) throws PageFaultException {
+        return getOrCreateRun(pageId, 1, createRegionIfAbsent);
+    }
+
+    /**
+     * @return a view of count adjacent pages, all of them in the region of pageId
+     */
+    private ByteBuffer getOrCreateRun(int pageId, int count, boolean createRegionIfAbsent) throws PageFaultException {
         int regionId = pageId >>> pageCountInRegionShift;
-        if (regionId > maxRegion) {
-            if (createRegionIfAbsent) {
-                synchronized (this) {
-                    while (regionId > maxRegion) {
-                        long currentRegion = maxRegion + 1;
-                        MappedByteBuffer region = buildRegion(currentRegion);
-                        regions.add(region);
-                        maxRegion = currentRegion;
+        if (regionId > maxRegion && createRegionIfAbsent) {
+            synchronized (this) {
+                while (regionId > maxRegion) {
+                    int currentRegion = (int) maxRegion + 1;
+                    if (currentRegion >= regions.length) {
+                        MappedByteBuffer[] grown = Arrays.copyOf(regions, currentRegion + 1);
+                        grown[currentRegion] = buildRegion(currentRegion);
+                        regions = grown;
                     }
+                    // a region retired but not cut off yet is used again, its mapping is still good
+                    maxRegion = currentRegion;
                 }
-            } else {
-                throw new PageFaultException("page not exist");
             }
         }
+        // published before maxRegion, retired regions are read until they are cut off
+        MappedByteBuffer[] regions = this.regions;
+        if (regionId >= regions.length) {
+            throw new PageFaultException("page not exist");
+        }
         int offsetInRegion = (pageId - (regionId << pageCountInRegionShift)) << pageSizeShift;
-        ByteBuffer region = regions.get(regionId).duplicate();
-        region.position(offsetInRegion).limit(offsetInRegion + pageSize);
+        ByteBuffer region = regions[regionId].duplicate();
+        region.position(offsetInRegion).limit(offsetInRegion + (count << pageSizeShift));
         return region.slice();
     }
 
     private void restoreRegions() throws IOException {
-        regions = new ArrayList<MappedByteBuffer>();
         fileChannel = FileSystemUtil.prepareChannel(parentPath, file, delIfExist, FileSystemUtil.MODE.READ_WRITE);
         long length = fileChannel.size();
-        for (long region = 0; (region << regionSizeShift) < length; region++) {
-            regions.add(buildRegion(region));
+        MappedByteBuffer[] regions = new MappedByteBuffer[(int) ((length + regionSize - 1) >>> regionSizeShift)];
+        for (int region = 0; region < regions.length; region++) {
+            regions[region] = buildRegion(region);
         }
-        maxRegion = regions.size() - 1;
+        this.regions = regions;
+        maxRegion = regions.length - 1;
+    }
+
+    /**
+     * Build the page map of a data file written before it existed, or whose last build was cut short,
+     * from the state byte of every page
+     */
+    private void rebuildPageBitmap() throws IOException {
+        int pageCapacity = getPageCapacity();
+        for (int pageId = 0; pageId < pageCapacity; pageId++) {
+            int regionId = pageId >>> pageCountInRegionShift;
+            int offsetInRegion = (pageId - (regionId << pageCountInRegionShift)) << pageSizeShift;
+            if (regions[regionId].get(offsetInRegion + STATE_INDEX) == VALID) {
+                pageBitmap.set(pageId);
+            }
+        }
+        pageBitmap.markComplete();
     }
 
     private MappedByteBuffer buildRegion(long regionId) {
@@ -265,15 +607,31 @@ public class MappedStorage implements InitializingBean {
         }
     }
 
-    private FileLock lock(long pageId) {
-        for (;;) {
+    /**
+     * Forces the dirty chunks every interval, pausing between chunks so that at most
+     * backgroundFlushBytesPerSecond of chunk ranges are forced per second
+     */
+    class BackgroundFlushTask implements Runnable {
+        @Override
+        public void run() {
+            long pauseNanos = backgroundFlushBytesPerSecond <= 0 ? 0
+                    : TimeUnit.SECONDS.toNanos(1) * chunkSize / backgroundFlushBytesPerSecond;
             try {
-                return fileChannel.lock(pageId, 1, false);
-            } catch (OverlappingFileLockException e) {
-                Thread.yield();
-            } catch (Throwable cause) {
-                throw new RuntimeException("lock file fail", cause);
+                while (true) {
+                    Thread.sleep(backgroundFlushIntervalMillis);
+                    for (int chunk = dirtyChunks.nextSetBit(0); chunk >= 0; chunk = dirtyChunks.nextSetBit(chunk + 1)) {
+                        try {
+                            forceChunk(chunk);
+                        } catch (RuntimeException e) {
+                            logger.error("background flush", e);
+                        }
+                        if (pauseNanos > 0) {
+                            TimeUnit.NANOSECONDS.sleep(pauseNanos);
+                        }
+                    }
+                }
+            } catch (InterruptedException ignore) {
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,158 @@
+package fasterDB.store;
+
+import fasterDB.util.AtomicBitSet;
+import fasterDB.util.FileSystemUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * On-disk map of the valid pages of a MappedStorage, one bit per page, set when the page becomes
+ * valid and cleared when it becomes invalid.
+ *
+ * The file is mapped in chunks which are added as pages are written, it is forced together with
+ * the data file, so after a flush every page state written before the flush is in the map.
+ * Pages written after the last flush may be missing, their operations are replayed from the redo log.
+ *
+ * A map built from the page states is only trusted once markComplete has been called, a map left
+ * by a crash during the build is built again.
+ */
+public class PageBitmap {
+
+    private static final int chunkSizeShift = 20;
+    private static final int chunkSize = 1 << chunkSizeShift;
+    private static final int pageCountInChunkShift = chunkSizeShift + 3;
+    private static final int LOCK_STRIPES = 64;
+
+    private final FileChannel fileChannel;
+    private final File completeMarker;
+    private final boolean restored;             // false if the file did not exist or was not complete
+    private volatile MappedByteBuffer[] chunks; // replaced when a chunk is added, readers take no lock
+    private final AtomicBitSet dirtyChunks = new AtomicBitSet(64);
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    public PageBitmap(String parentPath, String filename, boolean delIfExist) throws IOException {
+        File file = new File(parentPath, filename);
+        this.completeMarker = new File(parentPath, filename + ".complete");
+        this.restored = !delIfExist && file.isFile() && completeMarker.isFile();
+        if (!restored) {
+            // an incomplete map is built again from nothing
+            completeMarker.delete();
+        }
+        this.fileChannel = FileSystemUtil.prepareChannel(parentPath, filename, !restored, FileSystemUtil.MODE.READ_WRITE);
+        long length = fileChannel.size();
+        MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((length + chunkSize - 1) >>> chunkSizeShift)];
+        for (int chunk = 0; chunk < chunks.length; chunk++) {
+            chunks[chunk] = buildChunk(chunk);
+        }
+        this.chunks = chunks;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * @return false if the map was created empty, it then has to be rebuilt from the page states
+     */
+    public boolean isRestored() {
+        return restored;
+    }
+
+    /**
+     * Force the map and record that it is complete, called once a map which was not restored has been built
+     */
+    public void markComplete() throws IOException {
+        force();
+        FileSystemUtil.prepareChannel(completeMarker.getParent(), completeMarker.getName(), false,
+                FileSystemUtil.MODE.READ_WRITE).close();
+    }
+
+    public boolean get(int pageId) {
+        int chunk = pageId >>> pageCountInChunkShift;
+        MappedByteBuffer[] chunks = this.chunks;
+        if (chunk >= chunks.length) {
+            return false;
+        }
+        int bit = pageId & ((1 << pageCountInChunkShift) - 1);
+        return (chunks[chunk].get(bit >>> 3) & (1 << (bit & 7))) != 0;
+    }
+
+    public void set(int pageId) {
+        update(pageId, true);
+    }
+
+    public void clear(int pageId) {
+        update(pageId, false);
+    }
+
+    /**
+     * Pages of a chunk never mapped are all invalid, they are not mapped just to be cleared
+     */
+    private void update(int pageId, boolean valid) {
+        int chunk = pageId >>> pageCountInChunkShift;
+        MappedByteBuffer[] chunks = this.chunks;
+        if (chunk >= chunks.length) {
+            if (!valid) {
+                return;
+            }
+            chunks = ensureChunk(chunk);
+        }
+        int bit = pageId & ((1 << pageCountInChunkShift) - 1);
+        int index = bit >>> 3;
+        int mask = 1 << (bit & 7);
+        MappedByteBuffer buffer = chunks[chunk];
+        synchronized (locks[(pageId >>> 3) & (LOCK_STRIPES - 1)]) {
+            byte old = buffer.get(index);
+            byte value = (byte) (valid ? old | mask : old & ~mask);
+            if (value == old) {
+                return;
+            }
+            buffer.put(index, value);
+        }
+        if (!dirtyChunks.get(chunk)) {
+            dirtyChunks.set(chunk);
+        }
+    }
+
+    /**
+     * Force the chunks changed since the last force
+     */
+    public void force() {
+        MappedByteBuffer[] chunks = this.chunks;      // a chunk is added before it is marked dirty
+        for (int chunk = dirtyChunks.nextSetBit(0); chunk >= 0; chunk = dirtyChunks.nextSetBit(chunk + 1)) {
+            dirtyChunks.unSet(chunk);
+            chunks[chunk].force();
+        }
+    }
+
+    public void close() throws IOException {
+        fileChannel.close();
+    }
+
+    /**
+     * @return the chunks, with the chunk
+     */
+    private synchronized MappedByteBuffer[] ensureChunk(int chunk) {
+        MappedByteBuffer[] chunks = this.chunks;
+        if (chunk >= chunks.length) {
+            int count = chunks.length;
+            chunks = Arrays.copyOf(chunks, chunk + 1);
+            for (int i = count; i <= chunk; i++) {
+                chunks[i] = buildChunk(i);
+            }
+            this.chunks = chunks;
+        }
+        return chunks;
+    }
+
+    private MappedByteBuffer buildChunk(long chunk) {
+        try {
+            return fileChannel.map(FileChannel.MapMode.READ_WRITE, chunk << chunkSizeShift, chunkSize);
+        } catch (IOException e) {
+            throw new RuntimeException("map file fail", e);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package fasterDB.store;
+
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Striped page latches used by MappedStorage.
+ *
+ * Every page is mapped to one of the stripes by its pageId, a stripe is a StampedLock so that
+ * readers can copy a page optimistically and only validate the stamp afterwards.
+ *
+ * In cross process mode a stripe is always taken exclusively and an OS file lock on the page
+ * is taken under it, the file lock is kept in the slot of the stripe until it is released.
+ * Optimistic reads are disabled in this mode because other processes never touch the stamps.
+ */
+public class PageLatch {
+
+    private final StampedLock[] stripes;
+    private final int mask;
+    private final FileChannel fileChannel;      // null in in-process mode
+    private final FileLock[] fileLocks;         // owned by the holder of the stripe
+
+    public PageLatch(int stripeCount, FileChannel fileChannel) {
+        if (stripeCount <= 0) {
+            throw new IllegalArgumentException("param stripeCount should > 0");
+        }
+        int size = Integer.highestOneBit(stripeCount);
+        size = size == stripeCount ? size : size << 1;
+        this.stripes = new StampedLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new StampedLock();
+        }
+        this.mask = size - 1;
+        this.fileChannel = fileChannel;
+        this.fileLocks = fileChannel == null ? null : new FileLock[size];
+    }
+
+    /**
+     * @param pageId
+     * @return 0 if the optimistic read is not available now
+     */
+    public long tryOptimisticRead(int pageId) {
+        if (fileChannel != null) {
+            return 0;
+        }
+        return stripe(pageId).tryOptimisticRead();
+    }
+
+    public boolean validate(int pageId, long stamp) {
+        return stamp != 0 && stripe(pageId).validate(stamp);
+    }
+
+    public long lockRead(int pageId) {
+        if (fileChannel == null) {
+            return stripe(pageId).readLock();
+        }
+        return lockFile(pageId, true);
+    }
+
+    public void unlockRead(int pageId, long stamp) {
+        if (fileChannel == null) {
+            stripe(pageId).unlockRead(stamp);
+        } else {
+            unlockFile(pageId, stamp);
+        }
+    }
+
+    public long lockWrite(int pageId) {
+        if (fileChannel == null) {
+            return stripe(pageId).writeLock();
+        }
+        return lockFile(pageId, false);
+    }
+
+    public void unlockWrite(int pageId, long stamp) {
+        if (fileChannel == null) {
+            stripe(pageId).unlockWrite(stamp);
+        } else {
+            unlockFile(pageId, stamp);
+        }
+    }
+
+    private long lockFile(int pageId, boolean shared) {
+        int index = pageId & mask;
+        long stamp = stripes[index].writeLock();
+        for (;;) {
+            try {
+                fileLocks[index] = fileChannel.lock(pageId, 1, shared);
+                return stamp;
+            } catch (OverlappingFileLockException e) {
+                Thread.yield();
+            } catch (Throwable cause) {
+                stripes[index].unlockWrite(stamp);
+                throw new RuntimeException("lock file fail", cause);
+            }
+        }
+    }
+
+    private void unlockFile(int pageId, long stamp) {
+        int index = pageId & mask;
+        FileLock lock = fileLocks[index];
+        fileLocks[index] = null;
+        try {
+            if (lock != null) {
+                lock.release();
+            }
+        } catch (Throwable cause) {
+            throw new RuntimeException("unlock file fail", cause);
+        } finally {
+            stripes[index].unlockWrite(stamp);
+        }
+    }
+
+    private StampedLock stripe(int pageId) {
+        return stripes[pageId & mask];
+    }
+}
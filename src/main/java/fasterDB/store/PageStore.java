@@ -0,0 +1,209 @@
+package fasterDB.store;
+
+import fasterDB.vo.Config;
+import fasterDB.vo.InitializingBean;
+import fasterDB.vo.PageFaultException;
+
+import java.io.IOException;
+
+/**
+ * Pages of several size classes, every class is a MappedStorage of its own file.
+ *
+ * With one class the page ids are the ids of the data file as they always were. With more
+ * classes the class is kept in the top bits of the page id:
+ *
+ * |     unused     |    pageClass    |      local id      |
+ * | 1 bit (zero)   | 3 bit           | 28 bit             |
+ *
+ * Class 0 is the data file, class n is the data file with suffix ".n". The classes are not
+ * recorded in the files, so they should not change between starts of the same data.
+ */
+public class PageStore implements InitializingBean {
+    public static final int MAX_CLASSES = 8;
+    private static final int CLASS_SHIFT = 28;
+    private static final int LOCAL_ID_MASK = (1 << CLASS_SHIFT) - 1;
+
+    private final MappedStorage[] classes;
+
+    public PageStore(Config config, boolean delIfExist) {
+        int[] sizes = config.getPageSizeClasses();
+        if (sizes == null) {
+            classes = new MappedStorage[] {new MappedStorage(config, delIfExist)};
+            return;
+        }
+        if (sizes.length == 0 || sizes.length > MAX_CLASSES) {
+            throw new IllegalArgumentException("param pageSizeClasses should have 1 to " + MAX_CLASSES + " sizes");
+        }
+        classes = new MappedStorage[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            String file = i == 0 ? config.getDataFile() : config.getDataFile() + "." + i;
+            classes[i] = new MappedStorage(config, file, sizes[i], delIfExist);
+            if (i > 0 && classes[i].getPageSize() <= classes[i - 1].getPageSize()) {
+                throw new IllegalArgumentException("param pageSizeClasses should round to distinct page sizes");
+            }
+        }
+        config.setPageSize(classes[0].getPageSize());
+    }
+
+    /**
+     * @param pageId
+     * @param classCount
+     * @return the class of the page
+     */
+    public static int classOf(int pageId, int classCount) {
+        return classCount == 1 ? 0 : pageId >>> CLASS_SHIFT;
+    }
+
+    /**
+     * @param pageId
+     * @param classCount
+     * @return the id of the page in the file of its class
+     */
+    public static int localIdOf(int pageId, int classCount) {
+        return classCount == 1 ? pageId : pageId & LOCAL_ID_MASK;
+    }
+
+    /**
+     * @param pageClass
+     * @param localId
+     * @param classCount
+     * @return the page id of a local id of the class
+     */
+    public static int pageIdOf(int pageClass, int localId, int classCount) {
+        if (classCount == 1) {
+            return localId;
+        }
+        if (localId > LOCAL_ID_MASK) {
+            throw new IllegalStateException("page ids of class " + pageClass + " are exhausted");
+        }
+        return (pageClass << CLASS_SHIFT) | localId;
+    }
+
+    @Override
+    public void initialize() throws IOException {
+        for (MappedStorage storage : classes) {
+            storage.initialize();
+        }
+    }
+
+    public int getClassCount() {
+        return classes.length;
+    }
+
+    /**
+     * @param pageClass
+     * @return the page size of the class without the metadata
+     */
+    public int getPageSize(int pageClass) {
+        return classes[pageClass].getPageSize();
+    }
+
+    public void flush() {
+        for (MappedStorage storage : classes) {
+            storage.flush();
+        }
+    }
+
+    public void close() throws IOException, InterruptedException {
+        for (MappedStorage storage : classes) {
+            storage.close();
+        }
+    }
+
+    public long getForcedChunkCount() {
+        long count = 0;
+        for (MappedStorage storage : classes) {
+            count += storage.getForcedChunkCount();
+        }
+        return count;
+    }
+
+    /**
+     * @param pageClass
+     * @return the count of local ids the mapped regions of the class can hold
+     */
+    public int getPageCapacity(int pageClass) {
+        return classes[pageClass].getPageCapacity();
+    }
+
+    /**
+     * @param pageClass
+     * @return the count of pages the file of the class grows and shrinks by
+     */
+    public int getRegionPageCount(int pageClass) {
+        return classes[pageClass].getRegionPageCount();
+    }
+
+    /**
+     * @return the bytes of the regions in use, of every class
+     */
+    public long getFileBytes() {
+        long bytes = 0;
+        for (MappedStorage storage : classes) {
+            bytes += storage.getFileBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Stop using the regions of the class above its first pageCount local ids, see MappedStorage.retire
+     * @return the count of regions in use before
+     */
+    public int retire(int pageClass, int pageCount) {
+        return classes[pageClass].retire(pageCount);
+    }
+
+    public void restore(int pageClass, int regionCount) {
+        classes[pageClass].restore(regionCount);
+    }
+
+    /**
+     * Cut the regions retired before off the files
+     * @return the bytes cut off
+     */
+    public long truncateRetired() throws IOException {
+        long bytes = 0;
+        for (MappedStorage storage : classes) {
+            bytes += storage.truncateRetired();
+        }
+        return bytes;
+    }
+
+    public boolean isAllocated(int pageId) {
+        return storageOf(pageId).isAllocated(localIdOf(pageId, classes.length));
+    }
+
+    public void valid(int pageId) throws IOException {
+        storageOf(pageId).valid(localIdOf(pageId, classes.length));
+    }
+
+    public void invalid(int pageId) throws IOException {
+        storageOf(pageId).invalid(localIdOf(pageId, classes.length));
+    }
+
+    public boolean getPage(int pageId, byte[] dst, int offset) throws IOException, PageFaultException {
+        return storageOf(pageId).getPage(localIdOf(pageId, classes.length), dst, offset);
+    }
+
+    /**
+     * @param firstPageId
+     * @param count adjacent pages, all of the class of firstPageId
+     * @param dst
+     * @return true if every page is valid
+     */
+    public boolean getPages(int firstPageId, int count, byte[] dst) throws IOException, PageFaultException {
+        return storageOf(firstPageId).getPages(localIdOf(firstPageId, classes.length), count, dst);
+    }
+
+    public void setPage(int pageId, byte[] bytes, int offset, int length, boolean setInvalidBefore) throws IOException {
+        storageOf(pageId).setPage(localIdOf(pageId, classes.length), bytes, offset, length, setInvalidBefore);
+    }
+
+    private MappedStorage storageOf(int pageId) {
+        int pageClass = classOf(pageId, classes.length);
+        if (pageClass >= classes.length) {
+            throw new IllegalArgumentException("param pageId should be of a configured page class");
+        }
+        return classes[pageClass];
+    }
+}
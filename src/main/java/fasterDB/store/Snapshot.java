@@ -0,0 +1,252 @@
+package fasterDB.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Snapshot of the primary index and the free pages, written at a checkpoint so that a restart
+ * loads it and replays the redo log from lsn instead of scanning every page.
+ *
+ * | magic 4 bytes | lsn 8 bytes | entries | 0 1 byte | classCount 1 byte | lastPageId 4 bytes per page class | freeCount 4 bytes | free page ids | crc32 8 bytes |
+ *
+ * lastPageId is the last local id of the page class, the free page ids are page ids of any class.
+ *
+ * key entry:     | 1 | keyLength 1 byte | key | pageCount 2 bytes | pageIds |
+ * hash entry:    | 2 | hash 8 bytes | firstPageId 4 bytes |
+ * inline entry:  | 3 | keyLength 1 byte | key | valueLength 4 bytes | value |
+ */
+public class Snapshot {
+
+    private static final int MAGIC = 0x46444232;
+    private static final byte END = 0;
+    private static final byte KEY_ENTRY = 1;
+    private static final byte HASH_ENTRY = 2;
+    private static final byte INLINE_ENTRY = 3;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_INLINE_VALUE_LENGTH = 1 << 16;
+
+    public final long lsn;
+    public final int[] lastPageIds;
+    public final int[] freePageIds;
+
+    private Snapshot(long lsn, int[] lastPageIds, int[] freePageIds) {
+        this.lsn = lsn;
+        this.lastPageIds = lastPageIds;
+        this.freePageIds = freePageIds;
+    }
+
+    /**
+     * @param file
+     * @return the lsn of the snapshot, -1 if there is none
+     */
+    public static long readLsn(File file) {
+        if (!file.isFile()) {
+            return -1;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            return in.readInt() == MAGIC ? in.readLong() : -1;
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Stream the entries to reader, the entries are only valid if the snapshot is returned
+     * @param file
+     * @param reader
+     * @return null if there is no snapshot, it is corrupt or reader rejected an entry
+     */
+    public static Snapshot read(File file, Reader reader) {
+        if (!file.isFile()) {
+            return null;
+        }
+        CRC32 crc32 = new CRC32();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new CheckedInputStream(
+                    new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE), crc32));
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            long lsn = in.readLong();
+            byte[] keyBytes = new byte[256];
+            for (;;) {
+                byte type = in.readByte();
+                if (type == END) {
+                    break;
+                } else if (type == KEY_ENTRY) {
+                    int keyLength = in.readUnsignedByte();
+                    in.readFully(keyBytes, 0, keyLength);
+                    int[] pageIds = new int[in.readUnsignedShort()];
+                    for (int i = 0; i < pageIds.length; i++) {
+                        pageIds[i] = in.readInt();
+                    }
+                    reader.readKey(keyBytes, keyLength, pageIds);
+                } else if (type == INLINE_ENTRY) {
+                    int keyLength = in.readUnsignedByte();
+                    in.readFully(keyBytes, 0, keyLength);
+                    int valueLength = in.readInt();
+                    if (valueLength <= 0 || valueLength > MAX_INLINE_VALUE_LENGTH) {
+                        return null;
+                    }
+                    byte[] valueBytes = new byte[valueLength];
+                    in.readFully(valueBytes);
+                    reader.readInline(keyBytes, keyLength, valueBytes);
+                } else if (type == HASH_ENTRY) {
+                    long hash = in.readLong();
+                    reader.readHash(hash, in.readInt());
+                } else {
+                    return null;
+                }
+            }
+            int[] lastPageIds = new int[in.readUnsignedByte()];
+            for (int i = 0; i < lastPageIds.length; i++) {
+                lastPageIds[i] = in.readInt();
+            }
+            int[] freePageIds = new int[in.readInt()];
+            for (int i = 0; i < freePageIds.length; i++) {
+                freePageIds[i] = in.readInt();
+            }
+            long expected = crc32.getValue();
+            if (in.readLong() != expected) {
+                return null;
+            }
+            return new Snapshot(lsn, lastPageIds, freePageIds);
+        } catch (EOFException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Start a snapshot, it replaces file only when committed
+     * @param file
+     * @param lsn
+     * @return
+     * @throws IOException
+     */
+    public static Writer create(File file, long lsn) throws IOException {
+        return new Writer(file, lsn);
+    }
+
+    public interface Reader {
+        /**
+         * @param keyBytes only valid during the call
+         */
+        void readKey(byte[] keyBytes, int keyLength, int[] pageIds);
+
+        /**
+         * @param keyBytes only valid during the call
+         * @param valueBytes owned by the reader
+         */
+        void readInline(byte[] keyBytes, int keyLength, byte[] valueBytes);
+
+        void readHash(long hash, int firstPageId);
+    }
+
+    public static class Writer {
+        private final File file;
+        private final File tmp;
+        private final FileOutputStream fos;
+        private final CRC32 crc32 = new CRC32();
+        private final DataOutputStream out;
+
+        private Writer(File file, long lsn) throws IOException {
+            this.file = file;
+            this.tmp = new File(file.getPath() + ".tmp");
+            this.fos = new FileOutputStream(tmp);
+            this.out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fos, BUFFER_SIZE), crc32));
+            out.writeInt(MAGIC);
+            out.writeLong(lsn);
+        }
+
+        public void writeKey(byte[] keyBytes, int keyLength, int[] pageIds) throws IOException {
+            out.writeByte(KEY_ENTRY);
+            out.writeByte(keyLength);
+            out.write(keyBytes, 0, keyLength);
+            out.writeShort(pageIds.length);
+            for (int pageId : pageIds) {
+                out.writeInt(pageId);
+            }
+        }
+
+        public void writeInline(byte[] keyBytes, int keyLength, byte[] valueBytes) throws IOException {
+            out.writeByte(INLINE_ENTRY);
+            out.writeByte(keyLength);
+            out.write(keyBytes, 0, keyLength);
+            out.writeInt(valueBytes.length);
+            out.write(valueBytes);
+        }
+
+        public void writeHash(long hash, int firstPageId) throws IOException {
+            out.writeByte(HASH_ENTRY);
+            out.writeLong(hash);
+            out.writeInt(firstPageId);
+        }
+
+        /**
+         * Write the trailer, force the file and move it over the previous snapshot
+         * @param lastPageIds the last local id of every page class
+         * @param freePageIds
+         * @throws IOException
+         */
+        public void commit(int[] lastPageIds, int[] freePageIds) throws IOException {
+            try {
+                out.writeByte(END);
+                out.writeByte(lastPageIds.length);
+                for (int lastPageId : lastPageIds) {
+                    out.writeInt(lastPageId);
+                }
+                out.writeInt(freePageIds.length);
+                for (int pageId : freePageIds) {
+                    out.writeInt(pageId);
+                }
+                out.flush();
+                // the crc does not cover itself
+                long crc = crc32.getValue();
+                out.writeLong(crc);
+                out.flush();
+                fos.getChannel().force(true);
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        public void abort() {
+            closeQuietly(out);
+            tmp.delete();
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+}
@@ -193,6 +193,63 @@ public class AtomicBitSet {
         }
     }
 
+    /**
+     * Clear the bit if it is set
+     * @param bitIndex
+     * @return true if this call cleared it
+     */
+    public boolean testAndUnSet(int bitIndex) {
+        if (bitIndex < 0) {
+            throw new IndexOutOfBoundsException("bitIndex < 0: " + bitIndex);
+        }
+        int wordIndex = wordIndex(bitIndex);
+        long offset = byteOffset(wordIndex);
+        try {
+            readWordsLock.lock();
+            long[] words = getWords();
+            if (words.length <= wordIndex) {
+                return false;
+            }
+            for (;;) {
+                long oV = getLong(words, offset);
+                long nV = oV & ~(1L << bitIndex);
+                if (nV == oV) {
+                    return false;
+                }
+                if (compareAndSetLong(words, offset, oV, nV)) {
+                    return true;
+                }
+            }
+        } finally {
+            readWordsLock.unlock();
+        }
+    }
+
+    /**
+     * @param fromIndex
+     * @return the first set bit at or after fromIndex, -1 if there is none
+     */
+    public int nextSetBit(int fromIndex) {
+        if (fromIndex < 0) {
+            throw new IndexOutOfBoundsException("fromIndex < 0: " + fromIndex);
+        }
+        long[] words = getWords();
+        int wordIndex = wordIndex(fromIndex);
+        if (wordIndex >= words.length) {
+            return -1;
+        }
+        long word = getLong(words, byteOffset(wordIndex)) & (-1L << fromIndex);
+        for (;;) {
+            if (word != 0) {
+                return (wordIndex << wordRShift) + Long.numberOfTrailingZeros(word);
+            }
+            if (++wordIndex == words.length) {
+                return -1;
+            }
+            word = getLong(words, byteOffset(wordIndex));
+        }
+    }
+
     /**
      *
      * @param wordIndex
@@ -0,0 +1,56 @@
+package fasterDB.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lets one thread wait for every operation which started before a point in time, without
+ * blocking operations which start after it.
+ *
+ * Operations enter the current epoch and exit it when done, advance() moves to the next
+ * epoch and waits until the previous one is empty. Counters are striped by thread and every
+ * operation exits on the stripe it entered, so a stripe read as 0 after the move is really empty.
+ */
+public class EpochBarrier {
+
+    private static final int STRIPES = 64;
+    private static final int PADDING = 8;   // one counter per cache line
+
+    private final AtomicLongArray counters = new AtomicLongArray(2 * STRIPES * PADDING);
+    private volatile int epoch;
+
+    /**
+     * @return the ticket to pass to exit
+     */
+    public int enter() {
+        int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+        for (;;) {
+            int epoch = this.epoch;
+            int ticket = (((epoch & 1) * STRIPES) + stripe) * PADDING;
+            counters.incrementAndGet(ticket);
+            if (epoch == this.epoch) {
+                return ticket;
+            }
+            counters.decrementAndGet(ticket);
+        }
+    }
+
+    public void exit(int ticket) {
+        counters.decrementAndGet(ticket);
+    }
+
+    /**
+     * Start a new epoch and wait until every operation of the previous one exited,
+     * should only be called by one thread at a time
+     */
+    public void advance() throws InterruptedException {
+        int old = epoch;
+        epoch = old + 1;
+        int base = (old & 1) * STRIPES;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            int ticket = (base + stripe) * PADDING;
+            while (counters.get(ticket) != 0) {
+                Thread.sleep(1);
+            }
+        }
+    }
+}
@@ -3,6 +3,10 @@ package fasterDB.util;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 
 /**
@@ -10,6 +14,25 @@ import java.nio.channels.FileChannel;
  */
 public class FileSystemUtil {
 
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;     // Unsafe.invokeCleaner, since java 9
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+        } catch (Exception e) {
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
     public enum MODE {
         READ("r"), WRITE("w"), READ_WRITE("rw");
         MODE(String mode) {
@@ -76,4 +99,26 @@ public class FileSystemUtil {
             directory.delete();
         }
     }
+
+    /**
+     * Unmap the buffer now instead of when it is collected. The caller makes sure that nothing uses it
+     * any more, an access after the unmap crashes the jvm. Without a way to unmap, it is left to the gc.
+     * @param buffer
+     */
+    public static void unmap(MappedByteBuffer buffer) {
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                return;
+            }
+            // java 8: ((sun.nio.ch.DirectBuffer) buffer).cleaner().clean()
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception ignore) {
+        }
+    }
 }
@@ -1,53 +1,292 @@
 package fasterDB.util;
 
-import fasterDB.util.FileSystemUtil;
-import java.io.IOException;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
-import java.nio.channels.OverlappingFileLockException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Created by zn on 15/5/3.
+ *
+ * In-memory key lock manager. Keys are hashed to a power-of-two table of stripes, and every stripe keeps
+ * the keys locked on it with their holders, so keys which share a stripe never wait for each other. The
+ * stripe's monitor only guards its table, and waiters park on it until the key they want is released.
+ *
+ * Locks are reentrant per key: a thread which holds a key exclusively may lock it again in either mode,
+ * one which holds it shared may lock it shared again, and asking for an exclusive hold of a key held
+ * shared by the same thread throws IllegalStateException rather than waiting for itself. Writers waiting
+ * for a key keep new shared holders of it out.
  */
 public class KeyLocker {
 
-    private FileChannel fileChannel;
-    private ThreadLocal<FileLock> fileLockThreadLocal = new ThreadLocal<FileLock>();
+    private final Stripe[] stripes;
+    private final int mask;
+    private final LongAdder acquired = new LongAdder();     // all acquisitions
+    private final LongAdder contended = new LongAdder();    // acquisitions that had to wait
+    private final ThreadLocal<Holds> holdsCache = new ThreadLocal<Holds>() {
+        protected Holds initialValue() {
+            return new Holds();
+        }
+    };
 
-    public KeyLocker(String lockPath, String lockFile) throws IOException {
-        this.fileChannel = FileSystemUtil.prepareChannel(lockPath, lockFile, true, FileSystemUtil.MODE.READ_WRITE);
+    public KeyLocker(int stripeCount) {
+        if (stripeCount <= 0) {
+            throw new IllegalArgumentException("param stripeCount should > 0");
+        }
+        int size = Integer.highestOneBit(stripeCount);
+        size = size == stripeCount ? size : size << 1;
+        this.stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.mask = size - 1;
     }
 
-    public void lock(Object key) throws IOException {
-        if (key == null) {
-            throw new NullPointerException("key should not be null");
+    /**
+     * Lock the key exclusively
+     * @param key
+     */
+    public void lock(Object key) {
+        acquire(stripe(key), key, 0, true);
+    }
+
+    public void unLock(Object key) {
+        release(stripe(key), key, 0);
+    }
+
+    /**
+     * Lock the key in shared mode, other shared holders are allowed
+     * @param key
+     */
+    public void lockShared(Object key) {
+        acquire(stripe(key), key, 0, false);
+    }
+
+    public void unLockShared(Object key) {
+        release(stripe(key), key, 0);
+    }
+
+    /**
+     * Primitive variants, a key must always be locked through the same variant
+     */
+    public void lock(long key) {
+        acquire(stripe(key), null, key, true);
+    }
+
+    public void unLock(long key) {
+        release(stripe(key), null, key);
+    }
+
+    public void lockShared(long key) {
+        acquire(stripe(key), null, key, false);
+    }
+
+    public void unLockShared(long key) {
+        release(stripe(key), null, key);
+    }
+
+    public long getAcquiredCount() {
+        return acquired.sum();
+    }
+
+    public long getContendedCount() {
+        return contended.sum();
+    }
+
+    /**
+     * @param key null for a primitive key
+     */
+    private void acquire(Stripe stripe, Object key, long longKey, boolean exclusive) {
+        acquired.increment();
+        Holds holds = holdsCache.get();
+        int i = holds.indexOf(key, longKey);
+        if (i >= 0) {
+            if (exclusive && !holds.exclusive[i]) {
+                throw new IllegalStateException("key lock held shared by this thread can not be upgraded");
+            }
+            holds.counts[i]++;
+            return;
         }
-        int hashCode = key.hashCode();
-        FileLock fileLock;
-        for (;;) {
-            try {
-                fileLock = fileChannel.lock(hashCode, 1, false);
-                break;
-            } catch (OverlappingFileLockException e) {
-                Thread.yield();
-            } catch (Throwable cause) {
-                throw new RuntimeException("lock file fail", cause);
+        Entry entry;
+        synchronized (stripe) {
+            entry = stripe.entryOf(key, longKey);
+            if (!entry.free(exclusive)) {
+                contended.increment();
+                entry.waiters++;
+                if (exclusive) {
+                    entry.waitingWriters++;
+                }
+                try {
+                    boolean interrupted = false;
+                    do {
+                        try {
+                            stripe.wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    } while (!entry.free(exclusive));
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                } finally {
+                    entry.waiters--;
+                    if (exclusive) {
+                        entry.waitingWriters--;
+                    }
+                }
+            }
+            if (exclusive) {
+                entry.exclusive = true;
+            } else {
+                entry.sharedCount++;
             }
         }
-        FileLock old = fileLockThreadLocal.get();
-        if (old != null) {
-            old.release();
+        holds.add(key, longKey, entry, exclusive);
+    }
+
+    private void release(Stripe stripe, Object key, long longKey) {
+        Holds holds = holdsCache.get();
+        int i = holds.indexOf(key, longKey);
+        if (i < 0) {
+            throw new IllegalMonitorStateException("key lock is not held by this thread");
+        }
+        if (--holds.counts[i] > 0) {
+            return;
+        }
+        Entry entry = holds.entries[i];
+        boolean exclusive = holds.exclusive[i];
+        holds.remove(i);
+        synchronized (stripe) {
+            if (exclusive) {
+                entry.exclusive = false;
+            } else {
+                entry.sharedCount--;
+            }
+            if (entry.waiters > 0) {
+                stripe.notifyAll();
+            } else if (entry.idle()) {
+                stripe.release(entry);
+            }
         }
-        fileLockThreadLocal.set(fileLock);
     }
 
-    public void unLock(Object key) throws IOException {
+    private Stripe stripe(Object key) {
         if (key == null) {
             throw new NullPointerException("key should not be null");
         }
-        FileLock lock = fileLockThreadLocal.get();
-        if (lock != null) {
-            lock.release();
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & mask];
+    }
+
+    private Stripe stripe(long key) {
+        int h = (int) (key ^ (key >>> 32));
+        h ^= (h >>> 16);
+        return stripes[h & mask];
+    }
+
+    /**
+     * The lock state of one key, kept by the stripe while the key is held or waited for
+     */
+    private static final class Entry {
+        Object key;                 // null for a primitive key
+        long longKey;
+        boolean used;
+        boolean exclusive;
+        int sharedCount;
+        int waiters;
+        int waitingWriters;         // of the waiters
+
+        boolean matches(Object key, long longKey) {
+            return used && (key == null ? this.key == null && this.longKey == longKey : key.equals(this.key));
+        }
+
+        boolean free(boolean forExclusive) {
+            return !exclusive && (forExclusive ? sharedCount == 0 : waitingWriters == 0);
+        }
+
+        boolean idle() {
+            return !exclusive && sharedCount == 0 && waiters == 0;
+        }
+    }
+
+    /**
+     * Entries of the keys locked on the stripe, rarely more than one, so they are scanned. Unused entries
+     * are kept for the next keys, nothing is allocated once a stripe has seen its busiest moment.
+     * Guarded by the monitor of the stripe.
+     */
+    private static final class Stripe {
+        Entry[] entries = new Entry[0];
+
+        Entry entryOf(Object key, long longKey) {
+            Entry unused = null;
+            for (Entry entry : entries) {
+                if (entry.matches(key, longKey)) {
+                    return entry;
+                }
+                if (!entry.used && unused == null) {
+                    unused = entry;
+                }
+            }
+            if (unused == null) {
+                entries = Arrays.copyOf(entries, entries.length + 1);
+                unused = entries[entries.length - 1] = new Entry();
+            }
+            unused.used = true;
+            unused.key = key;
+            unused.longKey = longKey;
+            return unused;
+        }
+
+        void release(Entry entry) {
+            entry.used = false;
+            entry.key = null;
+        }
+    }
+
+    /**
+     * Keys held by a thread, rarely more than one or two, so they are scanned
+     */
+    private static final class Holds {
+        Object[] keys = new Object[4];
+        long[] longKeys = new long[4];
+        Entry[] entries = new Entry[4];
+        int[] counts = new int[4];
+        boolean[] exclusive = new boolean[4];
+        int size;
+
+        int indexOf(Object key, long longKey) {
+            for (int i = 0; i < size; i++) {
+                if (key == null ? keys[i] == null && longKeys[i] == longKey : key.equals(keys[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void add(Object key, long longKey, Entry entry, boolean exclusive) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                longKeys = Arrays.copyOf(longKeys, size * 2);
+                entries = Arrays.copyOf(entries, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+                this.exclusive = Arrays.copyOf(this.exclusive, size * 2);
+            }
+            keys[size] = key;
+            longKeys[size] = longKey;
+            entries[size] = entry;
+            counts[size] = 1;
+            this.exclusive[size] = exclusive;
+            size++;
+        }
+
+        void remove(int i) {
+            size--;
+            keys[i] = keys[size];
+            longKeys[i] = longKeys[size];
+            entries[i] = entries[size];
+            counts[i] = counts[size];
+            exclusive[i] = exclusive[size];
+            keys[size] = null;
+            entries[size] = null;
         }
     }
 }
@@ -1,19 +1,74 @@
 package fasterDB.util;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Created by zn on 15/5/3.
+ *
+ * Every thread borrows from and returns to its own magazine of page ids, so the common case is a
+ * thread-local pop or push. Magazines are refilled and drained in batches:
+ *
+ * ANY      full magazines are exchanged through a lock-free depot, new ids are taken a batch at a time
+ * LOWEST   returned ids go to a free bitmap and a refill claims the lowest free ids of it
+ *
+ * Free pages known at startup are in the free bitmap with both policies.
+ *
+ * Multi-page borrows try to get a run of adjacent ids: from the top of the magazine, where returned
+ * runs and new batches stay adjacent, then from the free bitmap, then as a new extent when no id is free.
  */
 public class PageIdAllocator {
+    private static final int MAX_RUN_CANDIDATES = 64;
+
     private final AtomicInteger newPageIdGenerator;
-    private final LinkedBlockingQueue<Integer> recycle;
+    private final boolean lowestFirst;
+    private final int magazineSize;
+    private final ConcurrentLinkedQueue<int[]> depot = new ConcurrentLinkedQueue<int[]>();   // full magazines
+    private final AtomicBitSet freePages;                   // free ids, claimed with a cas per bit
+    private final AtomicInteger freePageCount = new AtomicInteger(0);
+    private final AtomicInteger freePageHint = new AtomicInteger(0);   // no free id below it, unless returned meanwhile
+    private final ConcurrentLinkedQueue<Magazine> magazines = new ConcurrentLinkedQueue<Magazine>();
+    private final LongAdder multiPageBorrows = new LongAdder();
+    private final LongAdder contiguousBorrows = new LongAdder();
+    private final ThreadLocal<Magazine> magazine = new ThreadLocal<Magazine>() {
+        protected Magazine initialValue() {
+            Magazine magazine = new Magazine(Thread.currentThread(), magazineSize);
+            magazines.add(magazine);
+            return magazine;
+        }
+    };
 
     public PageIdAllocator(int pageIdInitialValue) {
+        this(pageIdInitialValue, null, 64, false);
+    }
+
+    /**
+     * @param pageIdInitialValue
+     * @param freePageBits the free pages below pageIdInitialValue, one bit per page, may be null
+     * @param magazineSize
+     * @param lowestFirst
+     */
+    public PageIdAllocator(int pageIdInitialValue, long[] freePageBits, int magazineSize, boolean lowestFirst) {
+        if (magazineSize <= 0) {
+            throw new IllegalArgumentException("param magazineSize should > 0");
+        }
         this.newPageIdGenerator = new AtomicInteger(pageIdInitialValue);
-        this.recycle = new LinkedBlockingQueue<Integer>();
+        this.magazineSize = magazineSize;
+        this.lowestFirst = lowestFirst;
+        long[] words = freePageBits == null ? new long[1] : freePageBits.clone();
+        int limitWord = pageIdInitialValue >>> 6;
+        for (int i = limitWord; i < words.length; i++) {
+            words[i] &= i == limitWord ? (1L << pageIdInitialValue) - 1 : 0;
+        }
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        this.freePages = new AtomicBitSet(words.length == 0 ? new long[1] : words);
+        this.freePageCount.set(count);
     }
 
     public void returnIds(int[] ints) {
@@ -21,23 +76,429 @@ public class PageIdAllocator {
             return;
         }
         for (int i : ints) {
-            recycle.offer(i);
+            returnId(i);
         }
     }
 
     public void returnId(int i) {
-        recycle.offer(i);
+        if (lowestFirst) {
+            freePages.set(i);
+            freePageCount.incrementAndGet();
+            lowerHint(i);
+            return;
+        }
+        Magazine magazine = this.magazine.get();
+        if (magazine.count == magazine.ids.length) {
+            // published before the magazine is emptied, recycledIds may see the ids twice but never misses them
+            depot.add(magazine.ids.clone());
+            magazine.count = 0;
+        }
+        magazine.push(i);
     }
 
     public int[] borrowIds(int count) {
         if (count <= 0) {
             return null;
         }
+        Magazine magazine = this.magazine.get();
+        if (count > 1) {
+            multiPageBorrows.increment();
+            int[] run = borrowRun(magazine, count);
+            if (run != null) {
+                contiguousBorrows.increment();
+                return run;
+            }
+        }
         int[] ints = new int[count];
-        for (int i = 0; i < count; i--) {
-            Integer old = recycle.poll();
-            ints[i] = old == null ? newPageIdGenerator.getAndIncrement() : old;
+        for (int i = 0; i < count; i++) {
+            if (magazine.count == 0) {
+                refill(magazine);
+            }
+            ints[i] = magazine.pop();
         }
         return ints;
     }
+
+    /**
+     * @return count adjacent ids in ascending order, null if there is no run at hand
+     */
+    private int[] borrowRun(Magazine magazine, int count) {
+        if (magazine.count < count && count <= magazine.ids.length && !lowestFirst && !depot.isEmpty()) {
+            // the leftovers would split the run, they are reused through the free bitmap
+            spill(magazine);
+            refill(magazine);
+        }
+        if (isRunOnTop(magazine, count)) {
+            int[] run = new int[count];
+            for (int i = 0; i < count; i++) {
+                run[i] = magazine.pop();
+            }
+            Arrays.sort(run);
+            return run;
+        }
+        if (freePageCount.get() >= count) {
+            int[] run = claimRun(count);
+            if (run != null) {
+                return run;
+            }
+        }
+        if (magazine.count < count && depot.isEmpty() && freePageCount.get() < count) {
+            // a refill would take new ids anyway
+            int first = newPageIdGenerator.getAndAdd(count);
+            int[] run = new int[count];
+            for (int i = 0; i < count; i++) {
+                run[i] = first + i;
+            }
+            return run;
+        }
+        return null;
+    }
+
+    private static boolean isRunOnTop(Magazine magazine, int count) {
+        int top = magazine.count;
+        if (top < count) {
+            return false;
+        }
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int i = top - count; i < top; i++) {
+            min = Math.min(min, magazine.ids[i]);
+            max = Math.max(max, magazine.ids[i]);
+        }
+        // ids in a magazine are distinct
+        return max - min == count - 1;
+    }
+
+    private void spill(Magazine magazine) {
+        // set before the magazine is emptied, like a magazine going to the depot
+        for (int i = 0; i < magazine.count; i++) {
+            freePages.set(magazine.ids[i]);
+            freePageCount.incrementAndGet();
+            lowerHint(magazine.ids[i]);
+        }
+        magazine.count = 0;
+    }
+
+    /**
+     * Claim count adjacent free ids of the free bitmap, looking at a bounded number of candidates
+     * @return null if none was found
+     */
+    private int[] claimRun(int count) {
+        int from = freePageHint.get();
+        for (int candidates = 0; candidates < MAX_RUN_CANDIDATES; candidates++) {
+            int first = freePages.nextSetBit(from);
+            if (first < 0) {
+                return null;
+            }
+            int length = 1;
+            while (length < count && freePages.get(first + length)) {
+                length++;
+            }
+            if (length == count) {
+                int claimed = 0;
+                while (claimed < count && freePages.testAndUnSet(first + claimed)) {
+                    claimed++;
+                }
+                if (claimed == count) {
+                    freePageCount.addAndGet(-count);
+                    int[] run = new int[count];
+                    for (int i = 0; i < count; i++) {
+                        run[i] = first + i;
+                    }
+                    return run;
+                }
+                // lost a race, give back what was taken
+                for (int i = 0; i < claimed; i++) {
+                    freePages.set(first + i);
+                }
+            }
+            from = first + length + 1;
+        }
+        return null;
+    }
+
+    /**
+     * Borrow count free ids below the bound, adjacent if there is such a run, for records moved down by
+     * the compaction. Only the free bitmap is looked at, see sweep
+     * @return ids in ascending order, null if there are not enough below the bound
+     */
+    public int[] borrowLowIds(int count, int below) {
+        if (count <= 0 || freePageCount.get() < count) {
+            return null;
+        }
+        if (count > 1) {
+            int[] run = claimRun(count);
+            if (run != null) {
+                if (run[count - 1] < below) {
+                    return run;
+                }
+                for (int id : run) {
+                    release(id);
+                }
+            }
+        }
+        int[] ids = new int[count];
+        int claimed = 0;
+        for (int id = freePages.nextSetBit(0); id >= 0 && id < below && claimed < count; id = freePages.nextSetBit(id + 1)) {
+            if (freePages.testAndUnSet(id)) {
+                freePageCount.decrementAndGet();
+                ids[claimed++] = id;
+            }
+        }
+        if (claimed < count) {
+            for (int i = 0; i < claimed; i++) {
+                release(ids[i]);
+            }
+            return null;
+        }
+        return ids;
+    }
+
+    /**
+     * Move the magazines of the depot and the magazine of the calling thread to the free bitmap,
+     * so that refills take the lowest free ids until ids are returned again
+     */
+    public void sweep() {
+        int[] ids;
+        while ((ids = depot.poll()) != null) {
+            for (int id : ids) {
+                release(id);
+            }
+        }
+        spill(magazine.get());
+    }
+
+    /**
+     * Give up the free ids at the top, so that the ids from the returned limit on are new ids again.
+     * Sweeps first, ids cached by other threads keep the top in use.
+     * @param alignment the limit is a multiple of it
+     * @param truncation told before the ids are given up, may be null
+     * @return the new limit, nextNewId if nothing was given up
+     */
+    public int truncate(int alignment, Truncation truncation) {
+        sweep();
+        int next = newPageIdGenerator.get();
+        int top = next;
+        while (top > 0 && freePages.get(top - 1)) {
+            top--;
+        }
+        int limit = (int) (((long) top + alignment - 1) / alignment * alignment);
+        if (limit >= next) {
+            return next;
+        }
+        int claimed = limit;
+        while (claimed < next && freePages.testAndUnSet(claimed)) {
+            claimed++;
+        }
+        if (claimed == next) {
+            if (truncation != null) {
+                truncation.before(limit);
+            }
+            if (newPageIdGenerator.compareAndSet(next, limit)) {
+                freePageCount.addAndGet(limit - next);
+                return limit;
+            }
+            // a borrow of new ids moved the top meanwhile
+            if (truncation != null) {
+                truncation.cancelled(limit);
+            }
+        }
+        for (int id = limit; id < claimed; id++) {
+            freePages.set(id);
+        }
+        return next;
+    }
+
+    /**
+     * @return the count of ids in the free bitmap, ids cached in magazines are not counted
+     */
+    public int freeCount() {
+        return freePageCount.get();
+    }
+
+    private void release(int id) {
+        freePages.set(id);
+        freePageCount.incrementAndGet();
+        lowerHint(id);
+    }
+
+    /**
+     * @return how many borrows of more than one id got adjacent ids
+     */
+    public long getContiguousBorrowCount() {
+        return contiguousBorrows.sum();
+    }
+
+    /**
+     * @return how many borrows asked for more than one id
+     */
+    public long getMultiPageBorrowCount() {
+        return multiPageBorrows.sum();
+    }
+
+    private void refill(Magazine magazine) {
+        int[] ids = lowestFirst ? null : depot.poll();
+        if (ids != null) {
+            System.arraycopy(ids, 0, magazine.ids, 0, ids.length);
+            magazine.count = ids.length;
+            return;
+        }
+        int claimed = claimFreePages(magazine.ids);
+        if (claimed > 0) {
+            magazine.count = claimed;
+            return;
+        }
+        int size = magazine.ids.length;
+        int first = newPageIdGenerator.getAndAdd(size);
+        // popped from the end, so new ids are handed out in ascending order
+        for (int i = 0; i < size; i++) {
+            magazine.ids[i] = first + size - 1 - i;
+        }
+        magazine.count = size;
+    }
+
+    /**
+     * Claim up to dst.length of the lowest free ids, stored in descending order
+     * @return the count claimed
+     */
+    private int claimFreePages(int[] dst) {
+        if (freePageCount.get() == 0) {
+            return 0;
+        }
+        int hint = freePageHint.get();
+        int count = claim(hint, dst, 0);
+        if (count < dst.length && hint > 0 && freePageCount.get() > 0) {
+            // ids returned below the hint while it was being raised
+            count = claim(0, dst, count);
+        }
+        if (count == 0) {
+            return 0;
+        }
+        Arrays.sort(dst, 0, count);
+        freePageHint.compareAndSet(hint, dst[count - 1] + 1);
+        for (int i = 0, j = count - 1; i < j; i++, j--) {
+            int id = dst[i];
+            dst[i] = dst[j];
+            dst[j] = id;
+        }
+        return count;
+    }
+
+    private int claim(int from, int[] dst, int count) {
+        for (int id = freePages.nextSetBit(from); id >= 0 && count < dst.length; id = freePages.nextSetBit(id + 1)) {
+            if (freePages.testAndUnSet(id)) {
+                freePageCount.decrementAndGet();
+                dst[count++] = id;
+            }
+        }
+        return count;
+    }
+
+    private void lowerHint(int id) {
+        for (;;) {
+            int hint = freePageHint.get();
+            if (hint <= id || freePageHint.compareAndSet(hint, id)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Ids left in the magazines of finished threads go to the free bitmap
+     */
+    private void reclaimMagazines() {
+        Iterator<Magazine> iterator = magazines.iterator();
+        while (iterator.hasNext()) {
+            Magazine magazine = iterator.next();
+            if (!magazine.owner.isAlive()) {
+                iterator.remove();
+                for (int i = 0; i < magazine.count; i++) {
+                    freePages.set(magazine.ids[i]);
+                    freePageCount.incrementAndGet();
+                    lowerHint(magazine.ids[i]);
+                }
+                magazine.count = 0;
+            }
+        }
+    }
+
+    /**
+     * @return the ids returned or cached and not borrowed again, a concurrent borrow may or may not be seen,
+     * an id may appear twice
+     */
+    public int[] recycledIds() {
+        reclaimMagazines();
+        int[] ints = new int[magazineSize];
+        int count = 0;
+        for (int[] ids : depot) {
+            ints = ensureCapacity(ints, count + ids.length);
+            System.arraycopy(ids, 0, ints, count, ids.length);
+            count += ids.length;
+        }
+        for (Magazine magazine : magazines) {
+            int magazineCount = magazine.count;
+            ints = ensureCapacity(ints, count + magazineCount);
+            System.arraycopy(magazine.ids, 0, ints, count, magazineCount);
+            count += magazineCount;
+        }
+        for (int id = freePages.nextSetBit(0); id >= 0; id = freePages.nextSetBit(id + 1)) {
+            ints = ensureCapacity(ints, count + 1);
+            ints[count++] = id;
+        }
+        return Arrays.copyOf(ints, count);
+    }
+
+    private static int[] ensureCapacity(int[] ints, int length) {
+        return length <= ints.length ? ints : Arrays.copyOf(ints, Math.max(length, ints.length * 2));
+    }
+
+    /**
+     * @return the id the next batch of new ids starts with
+     */
+    public int nextNewId() {
+        return newPageIdGenerator.get();
+    }
+
+    /**
+     * Lets the owner of the ids stop using the top before it is given up, see truncate
+     */
+    public interface Truncation {
+        /**
+         * The ids from limit on are free and about to be given up, a new id borrowed from now on may be
+         * one of them
+         */
+        void before(int limit);
+
+        /**
+         * They were not given up, ids from the old top on were borrowed before
+         */
+        void cancelled(int limit);
+    }
+
+    /**
+     * Only the owner pops and pushes, count is volatile so that recycledIds sees the ids below it
+     */
+    private static final class Magazine {
+        final Thread owner;
+        final int[] ids;
+        volatile int count;
+
+        Magazine(Thread owner, int size) {
+            this.owner = owner;
+            this.ids = new int[size];
+        }
+
+        int pop() {
+            int index = count - 1;
+            int id = ids[index];
+            count = index;
+            return id;
+        }
+
+        void push(int id) {
+            int index = count;
+            ids[index] = id;
+            count = index + 1;
+        }
+    }
 }
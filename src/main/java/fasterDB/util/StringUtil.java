@@ -7,4 +7,59 @@ public class StringUtil {
     public static final boolean isEmpty(String s) {
         return s == null || s.isEmpty();
     }
+
+    /**
+     * Encode s to UTF-8 into bytes without allocation, unpaired surrogates are encoded as '?'
+     * like String.getBytes does
+     * @param s
+     * @param bytes
+     * @param from
+     * @return the encoded length, -1 if bytes has no enough space
+     */
+    public static final int encodeUtf8(String s, byte[] bytes, int from) {
+        int index = from;
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (index >= bytes.length) {
+                    return -1;
+                }
+                bytes[index++] = (byte) c;
+            } else if (c < 0x800) {
+                if (index + 2 > bytes.length) {
+                    return -1;
+                }
+                bytes[index++] = (byte) (0xc0 | (c >> 6));
+                bytes[index++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                int codePoint = -1;
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    codePoint = Character.toCodePoint(c, s.charAt(++i));
+                }
+                if (codePoint < 0) {
+                    if (index >= bytes.length) {
+                        return -1;
+                    }
+                    bytes[index++] = (byte) '?';
+                } else {
+                    if (index + 4 > bytes.length) {
+                        return -1;
+                    }
+                    bytes[index++] = (byte) (0xf0 | (codePoint >> 18));
+                    bytes[index++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                    bytes[index++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                    bytes[index++] = (byte) (0x80 | (codePoint & 0x3f));
+                }
+            } else {
+                if (index + 3 > bytes.length) {
+                    return -1;
+                }
+                bytes[index++] = (byte) (0xe0 | (c >> 12));
+                bytes[index++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[index++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return index - from;
+    }
 }
@@ -11,6 +11,16 @@ public class Config<ValueType> {
     private Codec<ValueType> valueCodec;
     private int readCacheKV = 1000000;
     private int writeCacheKV = 1000000;
+    private boolean cacheKVSet = false;     // readCacheKV or writeCacheKV given, see isCacheKVSet
+    private long valueCacheBytes = 256l * 1024 * 1024;
+    private long offHeapValueCacheBytes = 0;
+    private boolean valueCacheAdmission = true;
+    private boolean writeBehind = false;
+    private int writeBehindBufferKV = 100000;
+    private long writeBehindIntervalMillis = 100;
+    private long hotKeyManifestIntervalMillis = 0;
+    private int hotKeyManifestKV = 100000;
+    private int warmupThreads = 4;
     private String dataPath;
     private String dataFile = "fdb.data";
     private String redoLogPath;
@@ -20,8 +30,27 @@ public class Config<ValueType> {
     private long rollingThreshold = 100l * 1024 * 1024;
     private long writeBlockThreshold = 1000l * 1024 * 1024;
     private boolean logWithFlush = false;
+    private boolean mappedRedoLog = false;
     private int pageSize = 256;
+    private int[] pageSizeClasses;
+    private int inlineValueThreshold = 0;
+    private boolean inPlaceUpdate = true;
     private int pageCacheSize = 10000;
+    private int pageLatchStripes = 4096;
+    private boolean crossProcessPageLatch = false;
+    private int keyLockStripes = 16384;
+    private int groupCommitMaxBatchSize = 256;
+    private long groupCommitMaxWaitMicros = 0;
+    private long maxWriteThrottleMicros = 10000;
+    private long backgroundFlushIntervalMillis = 1000;
+    private long backgroundFlushBytesPerSecond = 256l * 1024 * 1024;
+    private long compactionIntervalMillis = 0;
+    private double compactionFreeRatio = 0.25;
+    private long compactionPagesPerSecond = 10000;
+    private IndexType indexType = IndexType.HASH;
+    private int indexSegments = 64;
+    private PageIdPolicy pageIdPolicy = PageIdPolicy.ANY;
+    private int pageIdMagazineSize = 64;
 
     private Config() {}
 
@@ -33,20 +62,111 @@ public class Config<ValueType> {
         this.valueCodec = valueCodec;
     }
 
+    /**
+     * @deprecated ignored, the values are cached in one cache bounded by valueCacheBytes
+     */
+    @Deprecated
     public int getReadCacheKV() {
         return readCacheKV;
     }
 
+    @Deprecated
     public void setReadCacheKV(int readCacheKV) {
         this.readCacheKV = readCacheKV;
+        cacheKVSet = true;
     }
 
+    /**
+     * @deprecated ignored, the values are cached in one cache bounded by valueCacheBytes
+     */
+    @Deprecated
     public int getWriteCacheKV() {
         return writeCacheKV;
     }
 
+    @Deprecated
     public void setWriteCacheKV(int writeCacheKV) {
         this.writeCacheKV = writeCacheKV;
+        cacheKVSet = true;
+    }
+
+    /**
+     * @return true if readCacheKV or writeCacheKV was given, the DB warns that they are ignored
+     */
+    public boolean isCacheKVSet() {
+        return cacheKVSet;
+    }
+
+    public long getValueCacheBytes() {
+        return valueCacheBytes;
+    }
+
+    public void setValueCacheBytes(long valueCacheBytes) {
+        this.valueCacheBytes = valueCacheBytes;
+    }
+
+    public boolean isValueCacheAdmission() {
+        return valueCacheAdmission;
+    }
+
+    public void setValueCacheAdmission(boolean valueCacheAdmission) {
+        this.valueCacheAdmission = valueCacheAdmission;
+    }
+
+    public boolean isWriteBehind() {
+        return writeBehind;
+    }
+
+    public void setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    public int getWriteBehindBufferKV() {
+        return writeBehindBufferKV;
+    }
+
+    public void setWriteBehindBufferKV(int writeBehindBufferKV) {
+        this.writeBehindBufferKV = writeBehindBufferKV;
+    }
+
+    public long getWriteBehindIntervalMillis() {
+        return writeBehindIntervalMillis;
+    }
+
+    public void setWriteBehindIntervalMillis(long writeBehindIntervalMillis) {
+        this.writeBehindIntervalMillis = writeBehindIntervalMillis;
+    }
+
+    public long getHotKeyManifestIntervalMillis() {
+        return hotKeyManifestIntervalMillis;
+    }
+
+    public void setHotKeyManifestIntervalMillis(long hotKeyManifestIntervalMillis) {
+        this.hotKeyManifestIntervalMillis = hotKeyManifestIntervalMillis;
+    }
+
+    public int getHotKeyManifestKV() {
+        return hotKeyManifestKV;
+    }
+
+    public void setHotKeyManifestKV(int hotKeyManifestKV) {
+        this.hotKeyManifestKV = hotKeyManifestKV;
+    }
+
+    public int getWarmupThreads() {
+        return warmupThreads;
+    }
+
+    public void setWarmupThreads(int warmupThreads) {
+        this.warmupThreads = warmupThreads;
+    }
+
+    public long getOffHeapValueCacheBytes() {
+        return offHeapValueCacheBytes;
+    }
+
+    public void setOffHeapValueCacheBytes(long offHeapValueCacheBytes) {
+        this.offHeapValueCacheBytes = offHeapValueCacheBytes;
     }
 
     public String getDataPath() {
@@ -89,6 +209,30 @@ public class Config<ValueType> {
         this.redoLogSuffix = redoLogSuffix;
     }
 
+    public int[] getPageSizeClasses() {
+        return pageSizeClasses;
+    }
+
+    public void setPageSizeClasses(int[] pageSizeClasses) {
+        this.pageSizeClasses = pageSizeClasses;
+    }
+
+    public int getInlineValueThreshold() {
+        return inlineValueThreshold;
+    }
+
+    public void setInlineValueThreshold(int inlineValueThreshold) {
+        this.inlineValueThreshold = inlineValueThreshold;
+    }
+
+    public boolean isInPlaceUpdate() {
+        return inPlaceUpdate;
+    }
+
+    public void setInPlaceUpdate(boolean inPlaceUpdate) {
+        this.inPlaceUpdate = inPlaceUpdate;
+    }
+
     public int getPageCacheSize() {
         return pageCacheSize;
     }
@@ -129,26 +273,191 @@ public class Config<ValueType> {
         this.logWithFlush = logWithFlush;
     }
 
+    public boolean isMappedRedoLog() {
+        return mappedRedoLog;
+    }
+
+    public void setMappedRedoLog(boolean mappedRedoLog) {
+        this.mappedRedoLog = mappedRedoLog;
+    }
+
+    /**
+     * @deprecated ignored, keys are locked in memory, see keyLockStripes
+     */
+    @Deprecated
     public String getLockPath() {
         return lockPath;
     }
 
+    @Deprecated
     public void setLockPath(String lockPath) {
         this.lockPath = lockPath;
     }
 
+    /**
+     * @deprecated ignored, keys are locked in memory, see keyLockStripes
+     */
+    @Deprecated
     public String getLockFile() {
         return lockFile;
     }
 
+    @Deprecated
     public void setLockFile(String lockFile) {
         this.lockFile = lockFile;
     }
 
+    public int getPageLatchStripes() {
+        return pageLatchStripes;
+    }
+
+    public void setPageLatchStripes(int pageLatchStripes) {
+        this.pageLatchStripes = pageLatchStripes;
+    }
+
+    public boolean isCrossProcessPageLatch() {
+        return crossProcessPageLatch;
+    }
+
+    public void setCrossProcessPageLatch(boolean crossProcessPageLatch) {
+        this.crossProcessPageLatch = crossProcessPageLatch;
+    }
+
+    public int getKeyLockStripes() {
+        return keyLockStripes;
+    }
+
+    public void setKeyLockStripes(int keyLockStripes) {
+        this.keyLockStripes = keyLockStripes;
+    }
+
+    public int getGroupCommitMaxBatchSize() {
+        return groupCommitMaxBatchSize;
+    }
+
+    public void setGroupCommitMaxBatchSize(int groupCommitMaxBatchSize) {
+        this.groupCommitMaxBatchSize = groupCommitMaxBatchSize;
+    }
+
+    public long getGroupCommitMaxWaitMicros() {
+        return groupCommitMaxWaitMicros;
+    }
+
+    public void setGroupCommitMaxWaitMicros(long groupCommitMaxWaitMicros) {
+        this.groupCommitMaxWaitMicros = groupCommitMaxWaitMicros;
+    }
+
+    public long getMaxWriteThrottleMicros() {
+        return maxWriteThrottleMicros;
+    }
+
+    public void setMaxWriteThrottleMicros(long maxWriteThrottleMicros) {
+        this.maxWriteThrottleMicros = maxWriteThrottleMicros;
+    }
+
+    public long getBackgroundFlushIntervalMillis() {
+        return backgroundFlushIntervalMillis;
+    }
+
+    public void setBackgroundFlushIntervalMillis(long backgroundFlushIntervalMillis) {
+        this.backgroundFlushIntervalMillis = backgroundFlushIntervalMillis;
+    }
+
+    public long getBackgroundFlushBytesPerSecond() {
+        return backgroundFlushBytesPerSecond;
+    }
+
+    public void setBackgroundFlushBytesPerSecond(long backgroundFlushBytesPerSecond) {
+        this.backgroundFlushBytesPerSecond = backgroundFlushBytesPerSecond;
+    }
+
+    public long getCompactionIntervalMillis() {
+        return compactionIntervalMillis;
+    }
+
+    public void setCompactionIntervalMillis(long compactionIntervalMillis) {
+        this.compactionIntervalMillis = compactionIntervalMillis;
+    }
+
+    public double getCompactionFreeRatio() {
+        return compactionFreeRatio;
+    }
+
+    public void setCompactionFreeRatio(double compactionFreeRatio) {
+        this.compactionFreeRatio = compactionFreeRatio;
+    }
+
+    public long getCompactionPagesPerSecond() {
+        return compactionPagesPerSecond;
+    }
+
+    public void setCompactionPagesPerSecond(long compactionPagesPerSecond) {
+        this.compactionPagesPerSecond = compactionPagesPerSecond;
+    }
+
+    public IndexType getIndexType() {
+        return indexType;
+    }
+
+    public void setIndexType(IndexType indexType) {
+        this.indexType = indexType;
+    }
+
+    public int getIndexSegments() {
+        return indexSegments;
+    }
+
+    public void setIndexSegments(int indexSegments) {
+        this.indexSegments = indexSegments;
+    }
+
+    public PageIdPolicy getPageIdPolicy() {
+        return pageIdPolicy;
+    }
+
+    public void setPageIdPolicy(PageIdPolicy pageIdPolicy) {
+        this.pageIdPolicy = pageIdPolicy;
+    }
+
+    public int getPageIdMagazineSize() {
+        return pageIdMagazineSize;
+    }
+
+    public void setPageIdMagazineSize(int pageIdMagazineSize) {
+        this.pageIdMagazineSize = pageIdMagazineSize;
+    }
+
     public enum KeyType {
         STRING, SHORT, INT, FLOAT, LONG, DOUBLE
     }
 
+    public enum IndexType {
+        /**
+         * Hash table, O(1) point lookups
+         */
+        HASH,
+        /**
+         * Skip list, keeps the keys ordered
+         */
+        SKIP_LIST,
+        /**
+         * Hash table in direct memory holding a key hash and the first page id per key,
+         * keys and page lists are read from the pages so the heap does not grow with the keys
+         */
+        OFF_HEAP
+    }
+
+    public enum PageIdPolicy {
+        /**
+         * Reuse the ids a thread returned first, then whole magazines returned by other threads
+         */
+        ANY,
+        /**
+         * Reuse the lowest free ids first, so the data file stays dense
+         */
+        LOWEST
+    }
+
     public static Builder builder() {
         return new Builder();
     }
@@ -156,12 +465,99 @@ public class Config<ValueType> {
     public static class Builder {
         Config config = new Config();
 
+        /**
+         * @deprecated ignored, see valueCacheBytes
+         */
+        @Deprecated
         public void readCacheKV(int readCacheKV) {
             config.readCacheKV = readCacheKV;
+            config.cacheKVSet = true;
         }
 
+        /**
+         * @deprecated ignored, see valueCacheBytes
+         */
+        @Deprecated
         public void writeCacheKV(int writeCacheKV) {
             config.writeCacheKV = writeCacheKV;
+            config.cacheKVSet = true;
+        }
+
+        /**
+         * Bound of the value cache, every value read or written weighs its encoded length
+         * plus a small fixed cost per entry
+         * @param valueCacheBytes
+         */
+        public void valueCacheBytes(long valueCacheBytes) {
+            config.valueCacheBytes = valueCacheBytes;
+        }
+
+        /**
+         * Once the value cache is full, cache a value read back only if its key was read more often lately
+         * than the keys evicted (TinyLFU), so a scan does not flush the working set. Default true
+         * @param valueCacheAdmission
+         */
+        public void valueCacheAdmission(boolean valueCacheAdmission) {
+            config.valueCacheAdmission = valueCacheAdmission;
+        }
+
+        /**
+         * A put is logged and left in a buffer, a background task writes the last value of every key to
+         * the pages, so a key updated again meanwhile is written once. Default false
+         * @param writeBehind
+         */
+        public void writeBehind(boolean writeBehind) {
+            config.writeBehind = writeBehind;
+        }
+
+        /**
+         * Keys the write-behind buffer holds, once it is full a put of another key writes its pages itself
+         * @param writeBehindBufferKV
+         */
+        public void writeBehindBufferKV(int writeBehindBufferKV) {
+            config.writeBehindBufferKV = writeBehindBufferKV;
+        }
+
+        /**
+         * How long a buffered value waits for newer ones before it is written to the pages
+         * @param writeBehindIntervalMillis
+         */
+        public void writeBehindIntervalMillis(long writeBehindIntervalMillis) {
+            config.writeBehindIntervalMillis = writeBehindIntervalMillis;
+        }
+
+        /**
+         * How often the keys of the hottest cached values are written to the data path, and on close.
+         * initialize then loads their values in the background. 0 for never, the default
+         * @param hotKeyManifestIntervalMillis
+         */
+        public void hotKeyManifestIntervalMillis(long hotKeyManifestIntervalMillis) {
+            config.hotKeyManifestIntervalMillis = hotKeyManifestIntervalMillis;
+        }
+
+        /**
+         * Keys the hot-key manifest holds at most
+         * @param hotKeyManifestKV
+         */
+        public void hotKeyManifestKV(int hotKeyManifestKV) {
+            config.hotKeyManifestKV = hotKeyManifestKV;
+        }
+
+        /**
+         * Threads loading the values of the hot-key manifest on initialize
+         * @param warmupThreads
+         */
+        public void warmupThreads(int warmupThreads) {
+            config.warmupThreads = warmupThreads;
+        }
+
+        /**
+         * Second tier of the value cache, encoded values evicted from the heap are kept in direct memory,
+         * which is bounded by -XX:MaxDirectMemorySize. 0 for none
+         * @param offHeapValueCacheBytes
+         */
+        public void offHeapValueCacheBytes(long offHeapValueCacheBytes) {
+            config.offHeapValueCacheBytes = offHeapValueCacheBytes;
         }
 
         public void dataPath(String dataPath) {
@@ -172,10 +568,43 @@ public class Config<ValueType> {
             config.pageSize = pageSize;
         }
 
+        /**
+         * Page sizes in ascending order, every record goes to the class which fits it best and
+         * pageSize is then ignored. Not set means one class of pageSize
+         * @param pageSizeClasses
+         */
+        public void pageSizeClasses(int... pageSizeClasses) {
+            config.pageSizeClasses = pageSizeClasses == null ? null : pageSizeClasses.clone();
+        }
+
+        /**
+         * Values of at most this many bytes are kept in the index entry instead of pages, 0 disables it.
+         * They are written to the redo log and to the snapshot of every checkpoint only, a page scan
+         * after the snapshot is lost cannot find them. Not supported by the OFF_HEAP index
+         * @param inlineValueThreshold
+         */
+        public void inlineValueThreshold(int inlineValueThreshold) {
+            config.inlineValueThreshold = inlineValueThreshold;
+        }
+
+        /**
+         * A put whose value needs as many pages as the value it replaces overwrites those pages
+         * instead of taking new ones. Only with logWithFlush: a torn page is repaired by the replay,
+         * so the log record should be durable before the page is overwritten
+         * @param inPlaceUpdate
+         */
+        public void inPlaceUpdate(boolean inPlaceUpdate) {
+            config.inPlaceUpdate = inPlaceUpdate;
+        }
+
         public void redoLogPath(String redoLogPath) {
             config.redoLogPath = redoLogPath;
         }
 
+        /**
+         * @deprecated ignored, keys are locked in memory, see keyLockStripes
+         */
+        @Deprecated
         public void lockPath(String lockPath) {
             config.lockPath = lockPath;
         }
@@ -200,10 +629,126 @@ public class Config<ValueType> {
             config.logWithFlush = logWithFlush;
         }
 
+        /**
+         * Append the redo log into memory mapped segments preallocated to rollingThreshold bytes
+         * @param mappedRedoLog
+         */
+        public void mappedRedoLog(boolean mappedRedoLog) {
+            config.mappedRedoLog = mappedRedoLog;
+        }
+
         public void valueCodec(Codec valueCodec) {
             config.valueCodec = valueCodec;
         }
 
+        public void pageLatchStripes(int pageLatchStripes) {
+            config.pageLatchStripes = pageLatchStripes;
+        }
+
+        public void keyLockStripes(int keyLockStripes) {
+            config.keyLockStripes = keyLockStripes;
+        }
+
+        /**
+         * Max records forced by one fsync when logWithFlush is on
+         * @param groupCommitMaxBatchSize
+         */
+        public void groupCommitMaxBatchSize(int groupCommitMaxBatchSize) {
+            config.groupCommitMaxBatchSize = groupCommitMaxBatchSize;
+        }
+
+        /**
+         * How long a commit leader waits for the batch to fill, 0 means only batch what is already queued
+         * @param groupCommitMaxWaitMicros
+         */
+        public void groupCommitMaxWaitMicros(long groupCommitMaxWaitMicros) {
+            config.groupCommitMaxWaitMicros = groupCommitMaxWaitMicros;
+        }
+
+        /**
+         * Longest delay of a write when the log is over writeBlockThreshold, the delay grows
+         * with the overshoot and reaches this when the overshoot is writeBlockThreshold - rollingThreshold
+         * @param maxWriteThrottleMicros
+         */
+        public void maxWriteThrottleMicros(long maxWriteThrottleMicros) {
+            config.maxWriteThrottleMicros = maxWriteThrottleMicros;
+        }
+
+        /**
+         * How often dirty data pages are forced in the background, 0 disables it and leaves
+         * every force to the checkpoint
+         * @param backgroundFlushIntervalMillis
+         */
+        public void backgroundFlushIntervalMillis(long backgroundFlushIntervalMillis) {
+            config.backgroundFlushIntervalMillis = backgroundFlushIntervalMillis;
+        }
+
+        /**
+         * Rate limit of the background flush, 0 means unlimited
+         * @param backgroundFlushBytesPerSecond
+         */
+        public void backgroundFlushBytesPerSecond(long backgroundFlushBytesPerSecond) {
+            config.backgroundFlushBytesPerSecond = backgroundFlushBytesPerSecond;
+        }
+
+        /**
+         * How often the compaction looks for records to move down, 0 disables it. Records on the highest
+         * page ids are moved to the lowest free ones, and whole regions freed at the end of a data file
+         * are cut off. Works best with the LOWEST page id policy
+         * @param compactionIntervalMillis
+         */
+        public void compactionIntervalMillis(long compactionIntervalMillis) {
+            config.compactionIntervalMillis = compactionIntervalMillis;
+        }
+
+        /**
+         * A page class is compacted once at least this share of its page ids is free
+         * @param compactionFreeRatio
+         */
+        public void compactionFreeRatio(double compactionFreeRatio) {
+            config.compactionFreeRatio = compactionFreeRatio;
+        }
+
+        /**
+         * Rate limit of the pages moved by the compaction, 0 means unlimited
+         * @param compactionPagesPerSecond
+         */
+        public void compactionPagesPerSecond(long compactionPagesPerSecond) {
+            config.compactionPagesPerSecond = compactionPagesPerSecond;
+        }
+
+        public void indexType(IndexType indexType) {
+            config.indexType = indexType;
+        }
+
+        /**
+         * Lock segments of the hash index, rounded up to a power of two
+         * @param indexSegments
+         */
+        public void indexSegments(int indexSegments) {
+            config.indexSegments = indexSegments;
+        }
+
+        public void pageIdPolicy(PageIdPolicy pageIdPolicy) {
+            config.pageIdPolicy = pageIdPolicy;
+        }
+
+        /**
+         * Page ids each thread borrows and returns at once
+         * @param pageIdMagazineSize
+         */
+        public void pageIdMagazineSize(int pageIdMagazineSize) {
+            config.pageIdMagazineSize = pageIdMagazineSize;
+        }
+
+        /**
+         * Take an OS file lock on every page access, only needed when the data file is shared by processes
+         * @param crossProcessPageLatch
+         */
+        public void crossProcessPageLatch(boolean crossProcessPageLatch) {
+            config.crossProcessPageLatch = crossProcessPageLatch;
+        }
+
         public Config build() {
             if (config.readCacheKV <= 0) {
                 throw new IllegalArgumentException("readCacheKV should > 0");
@@ -211,6 +756,27 @@ public class Config<ValueType> {
             if (config.writeCacheKV <= 0) {
                 throw new IllegalArgumentException("writeCacheKV should > 0");
             }
+            if (config.valueCacheBytes <= 0) {
+                throw new IllegalArgumentException("valueCacheBytes should > 0");
+            }
+            if (config.writeBehindBufferKV <= 0) {
+                throw new IllegalArgumentException("writeBehindBufferKV should > 0");
+            }
+            if (config.writeBehindIntervalMillis <= 0) {
+                throw new IllegalArgumentException("writeBehindIntervalMillis should > 0");
+            }
+            if (config.hotKeyManifestIntervalMillis < 0) {
+                throw new IllegalArgumentException("hotKeyManifestIntervalMillis should >= 0");
+            }
+            if (config.hotKeyManifestKV <= 0) {
+                throw new IllegalArgumentException("hotKeyManifestKV should > 0");
+            }
+            if (config.warmupThreads <= 0) {
+                throw new IllegalArgumentException("warmupThreads should > 0");
+            }
+            if (config.offHeapValueCacheBytes < 0) {
+                throw new IllegalArgumentException("offHeapValueCacheBytes should >= 0");
+            }
             if (StringUtil.isEmpty(config.dataPath)) {
                 throw new IllegalArgumentException("dataPath is empty");
             }
@@ -220,6 +786,17 @@ public class Config<ValueType> {
             if (config.pageSize <= 0) {
                 throw new IllegalArgumentException("pageSize should > 0");
             }
+            if (config.pageSizeClasses != null) {
+                if (config.pageSizeClasses.length == 0 || config.pageSizeClasses.length > 8) {
+                    throw new IllegalArgumentException("pageSizeClasses should have 1 to 8 sizes");
+                }
+                for (int i = 0; i < config.pageSizeClasses.length; i++) {
+                    if (config.pageSizeClasses[i] <= 0
+                            || (i > 0 && config.pageSizeClasses[i] <= config.pageSizeClasses[i - 1])) {
+                        throw new IllegalArgumentException("pageSizeClasses should be > 0 and ascending");
+                    }
+                }
+            }
             if (StringUtil.isEmpty(config.redoLogPath)) {
                 throw new IllegalArgumentException("redoLogPath is empty");
             }
@@ -241,6 +818,54 @@ public class Config<ValueType> {
             if (config.valueCodec == null) {
                 throw new IllegalArgumentException("valueCodec should not be null");
             }
+            if (config.keyLockStripes <= 0) {
+                throw new IllegalArgumentException("keyLockStripes should > 0");
+            }
+            if (config.groupCommitMaxBatchSize <= 0) {
+                throw new IllegalArgumentException("groupCommitMaxBatchSize should > 0");
+            }
+            if (config.groupCommitMaxWaitMicros < 0) {
+                throw new IllegalArgumentException("groupCommitMaxWaitMicros should >= 0");
+            }
+            if (config.maxWriteThrottleMicros < 0) {
+                throw new IllegalArgumentException("maxWriteThrottleMicros should >= 0");
+            }
+            if (config.backgroundFlushIntervalMillis < 0) {
+                throw new IllegalArgumentException("backgroundFlushIntervalMillis should >= 0");
+            }
+            if (config.backgroundFlushBytesPerSecond < 0) {
+                throw new IllegalArgumentException("backgroundFlushBytesPerSecond should >= 0");
+            }
+            if (config.compactionIntervalMillis < 0) {
+                throw new IllegalArgumentException("compactionIntervalMillis should >= 0");
+            }
+            if (!(config.compactionFreeRatio > 0 && config.compactionFreeRatio < 1)) {
+                throw new IllegalArgumentException("compactionFreeRatio should > 0 and < 1");
+            }
+            if (config.compactionPagesPerSecond < 0) {
+                throw new IllegalArgumentException("compactionPagesPerSecond should >= 0");
+            }
+            if (config.indexType == null) {
+                throw new IllegalArgumentException("indexType should not be null");
+            }
+            if (config.indexSegments <= 0 || config.indexSegments > (1 << 16)) {
+                throw new IllegalArgumentException("indexSegments should > 0 and <= 65536");
+            }
+            if (config.inlineValueThreshold < 0 || config.inlineValueThreshold > (1 << 16)) {
+                throw new IllegalArgumentException("inlineValueThreshold should >= 0 and <= 65536");
+            }
+            if (config.inlineValueThreshold > 0 && config.indexType == IndexType.OFF_HEAP) {
+                throw new IllegalArgumentException("inlineValueThreshold should be 0 with the OFF_HEAP index");
+            }
+            if (config.pageIdPolicy == null) {
+                throw new IllegalArgumentException("pageIdPolicy should not be null");
+            }
+            if (config.pageIdMagazineSize <= 0) {
+                throw new IllegalArgumentException("pageIdMagazineSize should > 0");
+            }
+            if (config.pageLatchStripes <= 0) {
+                throw new IllegalArgumentException("pageLatchStripes should > 0");
+            }
             return config;
         }
     }
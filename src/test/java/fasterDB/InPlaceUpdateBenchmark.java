@@ -0,0 +1,118 @@
+package fasterDB;
+
+import fasterDB.vo.Config;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Overwrites of keys with values of the same size, with the in-place rewrite off and then on
+ *
+ * Every thread puts random keys of a preloaded key set for a fixed time. Printed for both runs: the puts
+ * per second, the pages freed, and the size of the data file at the end.
+ *
+ * mvn -B test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/classes:target/test-classes:$(cat target/cp.txt) fasterDB.InPlaceUpdateBenchmark \
+ *     [keys 100000] [valueSize 1000] [threads 8] [seconds 10]
+ */
+public class InPlaceUpdateBenchmark {
+
+    public static void main(String[] args) throws Throwable {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int valueSize = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        for (boolean inPlaceUpdate : new boolean[] {false, true}) {
+            run(inPlaceUpdate, keys, valueSize, threads, seconds);
+        }
+    }
+
+    private static void run(boolean inPlaceUpdate, final int keys, final int valueSize, int threads, int seconds)
+            throws Throwable {
+        File dir = Files.createTempDirectory("fdb-bench").toFile();
+        final DB<String, byte[]> db = new DB<String, byte[]>(config(dir.getPath(), inPlaceUpdate));
+        db.initialize();
+        try {
+            byte[] value = new byte[valueSize];
+            for (int i = 0; i < keys; i++) {
+                db.put("key-" + i, value);
+            }
+            final long deadline = System.nanoTime() + seconds * 1000000000L;
+            final AtomicLong puts = new AtomicLong();
+            final CountDownLatch done = new CountDownLatch(threads);
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                final long seed = t * 0x9E3779B97F4A7C15L + 1;
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        long random = seed;
+                        long count = 0;
+                        byte[] value = new byte[valueSize];
+                        try {
+                            while (System.nanoTime() < deadline) {
+                                random ^= random << 13;
+                                random ^= random >>> 7;
+                                random ^= random << 17;
+                                Arrays.fill(value, 0, 8, (byte) random);
+                                db.put("key-" + (int) ((random >>> 1) % keys), value);
+                                count++;
+                            }
+                        } catch (Throwable e) {
+                            e.printStackTrace();
+                        } finally {
+                            puts.addAndGet(count);
+                            done.countDown();
+                        }
+                    }
+                }).start();
+            }
+            done.await();
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            System.out.printf("inPlaceUpdate=%s puts/s=%.0f inPlace=%d freedPages=%d dataFileBytes=%d%n",
+                    inPlaceUpdate, puts.get() / elapsed, db.getInPlaceUpdateCount(), db.getFreedPageCount(),
+                    db.getDataFileBytes());
+        } finally {
+            db.close();
+            delete(dir);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Config<byte[]> config(String dir, boolean inPlaceUpdate) {
+        Config.Builder builder = Config.builder();
+        builder.dataPath(dir);
+        builder.redoLogPath(dir);
+        builder.keyType(Config.KeyType.STRING);
+        // the rewrite needs the redo record durable first
+        builder.logWithFlush(true);
+        builder.inPlaceUpdate(inPlaceUpdate);
+        builder.valueCodec(new Config.Codec<byte[]>() {
+            public byte[] toBytes(byte[] value) {
+                return value;
+            }
+
+            public byte[] toObject(byte[] bytes) {
+                return bytes;
+            }
+
+            public boolean equals(byte[] v1, byte[] v2) {
+                return Arrays.equals(v1, v2);
+            }
+        });
+        return builder.build();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,225 @@
+package fasterDB;
+
+import fasterDB.store.Snapshot;
+import fasterDB.vo.Config;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SnapshotLoadTest {
+
+    private static final int KEYS = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Ids a snapshot missed while they moved between the tiers of the allocator are free after the load
+     */
+    @Test
+    public void freesPagesMissingFromTheSnapshot() throws Throwable {
+        File dir = folder.newFolder("db");
+        DB<String, String> db = new DB<String, String>(config(dir, 0));
+        db.initialize();
+        for (int i = 0; i < KEYS; i++) {
+            db.put("key-" + i, value(i));
+        }
+        for (int i = 0; i < KEYS; i += 2) {
+            db.remove("key-" + i);
+        }
+        db.close();
+
+        File image = copy(dir, folder.newFolder("image"));
+        db = new DB<String, String>(config(image, 0));
+        db.initialize();
+        int free = freePageCount(db);
+        db.close();
+        assertTrue(free > 0);
+
+        dropFreePageIds(snapshotFile(dir));
+        db = new DB<String, String>(config(dir, 0));
+        db.initialize();
+        try {
+            assertEquals(free, freePageCount(db));
+            for (int i = 0; i < KEYS; i++) {
+                assertEquals(i % 2 == 0 ? null : value(i), db.get("key-" + i));
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * The snapshot has the only copy of the inline values written before the last checkpoint, without it
+     * the database does not open rather than lose them
+     */
+    @Test
+    public void refusesToOpenWithoutTheSnapshotOfInlineValues() throws Throwable {
+        File dir = folder.newFolder("db");
+        DB<String, String> db = new DB<String, String>(config(dir, 64));
+        db.initialize();
+        for (int i = 0; i < KEYS; i++) {
+            db.put("key-" + i, i % 2 == 0 ? "inline-" + i : value(i));
+        }
+        db.close();
+        File snapshot = snapshotFile(dir);
+        File saved = copy(dir, folder.newFolder("saved"));
+
+        assertTrue(snapshot.delete());
+        assertRefusedToOpen(config(dir, 64));
+        // whatever the threshold is now
+        assertRefusedToOpen(config(dir, 0));
+
+        byte[] bytes = Files.readAllBytes(new File(saved, snapshot.getName()).toPath());
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(snapshot.toPath(), bytes);
+        assertRefusedToOpen(config(dir, 64));
+
+        Files.copy(new File(saved, snapshot.getName()).toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        db = new DB<String, String>(config(dir, 64));
+        db.initialize();
+        try {
+            for (int i = 0; i < KEYS; i++) {
+                assertEquals(i % 2 == 0 ? "inline-" + i : value(i), db.get("key-" + i));
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Without inline values the pages have every value, a missing snapshot is made up for by a scan
+     */
+    @Test
+    public void scansThePagesWithoutTheSnapshotOfPagedValues() throws Throwable {
+        File dir = folder.newFolder("db");
+        DB<String, String> db = new DB<String, String>(config(dir, 64));
+        db.initialize();
+        for (int i = 0; i < KEYS; i++) {
+            db.put("key-" + i, "inline-" + i);
+        }
+        // the last checkpoint drops the inline values
+        for (int i = 0; i < KEYS; i++) {
+            db.put("key-" + i, value(i));
+        }
+        db.close();
+
+        assertTrue(snapshotFile(dir).delete());
+        db = new DB<String, String>(config(dir, 64));
+        db.initialize();
+        try {
+            for (int i = 0; i < KEYS; i++) {
+                assertEquals(value(i), db.get("key-" + i));
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    private static void assertRefusedToOpen(Config<String> config) throws Throwable {
+        DB<String, String> db = new DB<String, String>(config);
+        try {
+            db.initialize();
+            db.close();
+            fail("opened without the inline values");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("inline"));
+        }
+    }
+
+    /**
+     * Rewrite the snapshot as one whose free ids were all missed
+     */
+    private static void dropFreePageIds(File file) throws IOException {
+        final List<Object[]> entries = new ArrayList<Object[]>();
+        Snapshot snapshot = Snapshot.read(file, new Snapshot.Reader() {
+            public void readKey(byte[] keyBytes, int keyLength, int[] pageIds) {
+                entries.add(new Object[]{keyBytes.clone(), keyLength, pageIds.clone()});
+            }
+
+            public void readInline(byte[] keyBytes, int keyLength, byte[] valueBytes) {
+                throw new AssertionError("values are not inline");
+            }
+
+            public void readHash(long hash, int firstPageId) {
+                throw new AssertionError("keys are indexed");
+            }
+        });
+        assertNotNull(snapshot);
+        assertTrue(snapshot.freePageIds.length > 0);
+        Snapshot.Writer writer = Snapshot.create(file, snapshot.lsn);
+        for (Object[] entry : entries) {
+            writer.writeKey((byte[]) entry[0], (Integer) entry[1], (int[]) entry[2]);
+        }
+        writer.commit(snapshot.lastPageIds, new int[0]);
+    }
+
+    private static int freePageCount(DB<String, String> db) throws Exception {
+        Field field = DB.class.getDeclaredField("context");
+        field.setAccessible(true);
+        return ((Context) field.get(db)).sweepPageIds(0);
+    }
+
+    private static File snapshotFile(File dir) {
+        for (File file : dir.listFiles()) {
+            if (file.getName().endsWith(".snapshot")) {
+                return file;
+            }
+        }
+        throw new AssertionError("no snapshot in " + dir);
+    }
+
+    private static File copy(File dir, File image) throws IOException {
+        for (File file : dir.listFiles()) {
+            Files.copy(file.toPath(), new File(image, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return image;
+    }
+
+    private static String value(int i) {
+        StringBuilder sb = new StringBuilder("value-").append(i).append('-');
+        // a few pages, so the value is not inline
+        while (sb.length() < 1000) {
+            sb.append('x');
+        }
+        return sb.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Config<String> config(File dir, int inlineValueThreshold) {
+        Config.Builder builder = Config.builder();
+        builder.dataPath(dir.getPath());
+        builder.redoLogPath(dir.getPath());
+        builder.keyType(Config.KeyType.STRING);
+        builder.logWithFlush(true);
+        builder.inlineValueThreshold(inlineValueThreshold);
+        builder.valueCodec(new Config.Codec<String>() {
+            public byte[] toBytes(String value) {
+                return value.getBytes(StandardCharsets.UTF_8);
+            }
+
+            public String toObject(byte[] bytes) {
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            public boolean equals(String v1, String v2) {
+                return v1 == null ? v2 == null : v1.equals(v2);
+            }
+        });
+        return builder.build();
+    }
+}
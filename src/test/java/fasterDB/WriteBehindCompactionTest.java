@@ -0,0 +1,119 @@
+package fasterDB;
+
+import fasterDB.vo.Config;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A compaction must not log the value on the pages of a key whose newer value is still buffered
+ */
+public class WriteBehindCompactionTest {
+
+    private static final int KEYS = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replayAfterCompactingABufferedKey() throws Throwable {
+        File dir = folder.newFolder("db");
+        DB<String, String> db = new DB<String, String>(config(dir, false));
+        db.initialize();
+        for (int i = 0; i < KEYS; i++) {
+            db.put("key-" + i, value("old", i));
+        }
+        // the low pages are free once the close has checkpointed
+        for (int i = 0; i < KEYS / 2; i++) {
+            db.remove("key-" + i);
+        }
+        db.close();
+
+        db = new DB<String, String>(config(dir, true));
+        db.initialize();
+        try {
+            String last = "key-" + (KEYS - 1);
+            db.put(last, value("new", KEYS - 1));
+            assertEquals(1, db.getDirtyValueCount());
+            compact(db);
+            assertTrue(db.getRelocatedRecordCount() > 0);
+            assertEquals(1, db.getDirtyValueCount());
+
+            // what a crash leaves: the pages and the log written so far, no checkpoint since
+            File image = folder.newFolder("image");
+            for (File file : dir.listFiles()) {
+                Files.copy(file.toPath(), new File(image, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            DB<String, String> replayed = new DB<String, String>(config(image, false));
+            replayed.initialize();
+            try {
+                assertEquals(value("new", KEYS - 1), replayed.get(last));
+                for (int i = KEYS / 2; i < KEYS - 1; i++) {
+                    assertEquals(value("old", i), replayed.get("key-" + i));
+                }
+            } finally {
+                replayed.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * One pass of the compaction over the only page class, without the checkpoint it asks for afterwards
+     */
+    private static void compact(DB<String, String> db) throws Exception {
+        Field field = DB.class.getDeclaredField("context");
+        field.setAccessible(true);
+        Context context = (Context) field.get(db);
+        int free = context.sweepPageIds(0);
+        int bound = context.getNextNewPageId(0) - free;
+        Method compact = DB.class.getDeclaredMethod("compact", int.class, int.class);
+        compact.setAccessible(true);
+        compact.invoke(db, 0, bound);
+    }
+
+    private static String value(String prefix, int i) {
+        StringBuilder sb = new StringBuilder(prefix).append('-').append(i).append('-');
+        // a few pages, so the value is not inline
+        while (sb.length() < 1000) {
+            sb.append('x');
+        }
+        return sb.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Config<String> config(File dir, boolean writeBehind) {
+        Config.Builder builder = Config.builder();
+        builder.dataPath(dir.getPath());
+        builder.redoLogPath(dir.getPath());
+        builder.keyType(Config.KeyType.STRING);
+        builder.logWithFlush(true);
+        builder.writeBehind(writeBehind);
+        builder.writeBehindIntervalMillis(3600000);
+        builder.valueCodec(new Config.Codec<String>() {
+            public byte[] toBytes(String value) {
+                return value.getBytes(StandardCharsets.UTF_8);
+            }
+
+            public String toObject(byte[] bytes) {
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            public boolean equals(String v1, String v2) {
+                return v1 == null ? v2 == null : v1.equals(v2);
+            }
+        });
+        return builder.build();
+    }
+}
@@ -0,0 +1,118 @@
+package fasterDB.cache;
+
+import java.util.Random;
+
+/**
+ * Hit ratios of the value cache with and without the TinyLFU admission, replaying synthetic traces
+ *
+ * The trace draws 3M requests from 1M keys with a zipf(0.99) distribution, a miss caches a 100 byte entry.
+ * Every cache size is replayed three ways: the zipf trace alone, the zipf trace with a scan of 100k new keys
+ * every 50k requests, and the first 100k requests which follow a scan of 1M new keys.
+ *
+ * mvn -B test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/classes:target/test-classes:$(cat target/cp.txt) fasterDB.cache.ValueCacheTraceReplay
+ */
+public class ValueCacheTraceReplay {
+
+    private static final int KEYS = 1000000;
+    private static final int REQUESTS = 3000000;
+    private static final int ENTRY_SIZE = 100;
+    private static final int ENCODED_LENGTH = ENTRY_SIZE - 64;   // the cache adds 64 bytes of overhead to an entry
+    private static final int SCAN_BASE = 10000000;              // scan keys are never in the trace
+
+    public static void main(String[] args) {
+        int[] trace = zipf(KEYS, 0.99, REQUESTS, 1);
+        for (long entries : new long[] {10000, 50000}) {
+            System.out.printf("cache of %d entries%n", entries);
+            System.out.printf("  zipf:                          lru=%.3f tinylfu=%.3f%n",
+                    replay(trace, entries, false, 0, 0), replay(trace, entries, true, 0, 0));
+            System.out.printf("  zipf, 100k scan every 50k:     lru=%.3f tinylfu=%.3f%n",
+                    replay(trace, entries, false, 50000, 100000), replay(trace, entries, true, 50000, 100000));
+            System.out.printf("  first 100k after a 1M scan:    lru=%.3f tinylfu=%.3f%n",
+                    afterScan(trace, entries, false), afterScan(trace, entries, true));
+        }
+    }
+
+    /**
+     * @return the hit ratio of the trace requests, the scans are not counted
+     */
+    private static double replay(int[] trace, long entries, boolean admission, int scanEvery, int scanLength) {
+        ValueCache<Integer, String> cache = newCache(entries, admission);
+        int scanKey = SCAN_BASE;
+        long hits = 0;
+        for (int i = 0; i < trace.length; i++) {
+            if (scanEvery > 0 && i > 0 && i % scanEvery == 0) {
+                for (int j = 0; j < scanLength; j++) {
+                    request(cache, scanKey++);
+                }
+            }
+            if (request(cache, trace[i])) {
+                hits++;
+            }
+        }
+        return (double) hits / trace.length;
+    }
+
+    /**
+     * Half of the trace warms the cache up, then a scan, then the hit ratio of the next 100k requests
+     */
+    private static double afterScan(int[] trace, long entries, boolean admission) {
+        ValueCache<Integer, String> cache = newCache(entries, admission);
+        int half = trace.length / 2;
+        for (int i = 0; i < half; i++) {
+            request(cache, trace[i]);
+        }
+        for (int j = 0; j < KEYS; j++) {
+            request(cache, SCAN_BASE + j);
+        }
+        long hits = 0;
+        for (int i = half; i < half + 100000; i++) {
+            if (request(cache, trace[i])) {
+                hits++;
+            }
+        }
+        return hits / 100000.0;
+    }
+
+    private static ValueCache<Integer, String> newCache(long entries, boolean admission) {
+        return new ValueCache<Integer, String>(entries * ENTRY_SIZE, admission, 0, 0, null);
+    }
+
+    /**
+     * Read the key, caching it on a miss like DB.get does
+     * @return true on a hit
+     */
+    private static boolean request(ValueCache<Integer, String> cache, int key) {
+        if (cache.get(key) != null) {
+            return true;
+        }
+        cache.put(key, "x", ENCODED_LENGTH);
+        return false;
+    }
+
+    private static int[] zipf(int keys, double skew, int count, long seed) {
+        double[] cdf = new double[keys];
+        double sum = 0;
+        for (int i = 0; i < keys; i++) {
+            sum += 1 / Math.pow(i + 1, skew);
+            cdf[i] = sum;
+        }
+        Random random = new Random(seed);
+        int[] trace = new int[count];
+        for (int i = 0; i < count; i++) {
+            double u = random.nextDouble() * sum;
+            int low = 0;
+            int high = keys - 1;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (cdf[middle] < u) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            trace[i] = low;
+        }
+        return trace;
+    }
+}
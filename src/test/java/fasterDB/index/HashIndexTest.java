@@ -0,0 +1,158 @@
+package fasterDB.index;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HashIndexTest {
+
+    private static final int MIN_CAPACITY = 16;
+
+    @Test
+    public void putGetRemove() {
+        HashIndex<String, Integer> index = new HashIndex<String, Integer>(4);
+        assertNull(index.put("a", 1));
+        assertEquals(1, (int) index.put("a", 2));
+        assertEquals(2, (int) index.putIfAbsent("a", 3));
+        assertNull(index.putIfAbsent("b", 4));
+        assertEquals(2, (int) index.get("a"));
+        assertEquals(2, index.size());
+        assertEquals(2, (int) index.remove("a"));
+        assertNull(index.remove("a"));
+        assertNull(index.get("a"));
+        assertTrue(index.containsKey("b"));
+        assertEquals(1, index.size());
+    }
+
+    /**
+     * A cluster of keys homed on the last slot wraps to the start of the table, removing any of them
+     * shifts the ones after it back without losing one
+     */
+    @Test
+    public void backwardShiftAcrossTheEndOfTheTable() {
+        List<Integer> lastSlot = keysWithHome(MIN_CAPACITY - 1, 4);
+        List<Integer> firstSlot = keysWithHome(0, 2);
+        for (int removed = 0; removed < lastSlot.size() + firstSlot.size(); removed++) {
+            HashIndex<Integer, Integer> index = new HashIndex<Integer, Integer>(1);
+            List<Integer> keys = new ArrayList<Integer>();
+            // 6 keys stay under the resize threshold of 12
+            keys.addAll(lastSlot);
+            keys.addAll(firstSlot);
+            for (Integer key : keys) {
+                index.put(key, key);
+            }
+            Integer victim = keys.remove(removed);
+            assertEquals(victim, index.remove(victim));
+            for (Integer key : keys) {
+                assertEquals(key, index.get(key));
+            }
+            assertNull(index.get(victim));
+            assertEquals(keys.size(), index.size());
+        }
+    }
+
+    @Test
+    public void matchesAMapUnderRandomOperations() {
+        HashIndex<Integer, Integer> index = new HashIndex<Integer, Integer>(1);
+        Map<Integer, Integer> model = new HashMap<Integer, Integer>();
+        Random random = new Random(7);
+        for (int i = 0; i < 200000; i++) {
+            // a small key space keeps the table dense, with resizes early on and many shifts after
+            Integer key = random.nextInt(2000);
+            switch (random.nextInt(4)) {
+                case 0:
+                    assertEquals(model.put(key, i), index.put(key, i));
+                    break;
+                case 1:
+                    Integer current = model.get(key);
+                    if (current == null) {
+                        model.put(key, i);
+                    }
+                    assertEquals(current, index.putIfAbsent(key, i));
+                    break;
+                case 2:
+                    assertEquals(model.remove(key), index.remove(key));
+                    break;
+                default:
+                    assertEquals(model.get(key), index.get(key));
+            }
+        }
+        assertEquals(model.size(), index.size());
+        final Map<Integer, Integer> visited = new HashMap<Integer, Integer>();
+        index.forEach(new Index.Visitor<Integer, Integer>() {
+            @Override
+            public void visit(Integer key, Integer value) {
+                visited.put(key, value);
+            }
+        });
+        assertEquals(model, visited);
+    }
+
+    /**
+     * Lock-free readers of keys which never change while a writer resizes the table and shifts entries
+     */
+    @Test
+    public void readersSeeStableKeysDuringResizeAndShifts() throws Exception {
+        final HashIndex<Integer, Integer> index = new HashIndex<Integer, Integer>(1);
+        final int stable = 1000;
+        for (int i = 0; i < stable; i++) {
+            index.put(i, -i);
+        }
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final AtomicInteger reads = new AtomicInteger();
+        Thread[] readers = new Thread[3];
+        for (int t = 0; t < readers.length; t++) {
+            final Random random = new Random(t);
+            readers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!done.get() && failure.get() == null) {
+                        int key = random.nextInt(stable);
+                        Integer value = index.get(key);
+                        if (value == null || value != -key) {
+                            failure.set("key " + key + " read " + value);
+                        }
+                        reads.incrementAndGet();
+                    }
+                }
+            });
+            readers[t].start();
+        }
+        // grows the table from 2048 to 262144 slots, then removes every other key
+        for (int i = stable; i < 150000; i++) {
+            index.put(i, i);
+        }
+        for (int i = stable; i < 150000; i += 2) {
+            index.remove(i);
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get());
+        assertTrue(reads.get() > 0);
+        assertEquals(stable + 74500, index.size());
+    }
+
+    private static List<Integer> keysWithHome(int home, int count) {
+        List<Integer> keys = new ArrayList<Integer>();
+        for (int key = 0; keys.size() < count; key++) {
+            if ((HashIndex.hash(key) & (MIN_CAPACITY - 1)) == home) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,161 @@
+package fasterDB.index;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LongHashIndexTest {
+
+    private static final int MIN_CAPACITY = 16;
+
+    @Test
+    public void putGetRemove() {
+        LongHashIndex<String> index = new LongHashIndex<String>(4);
+        // 0 is a key like any other, empty slots are told by their value
+        assertNull(index.put(0, "a"));
+        assertEquals("a", index.put(0, "b"));
+        assertEquals("b", index.putIfAbsent(0, "c"));
+        assertNull(index.putIfAbsent(Long.MIN_VALUE, "d"));
+        assertEquals("b", index.get(0));
+        assertEquals("d", index.get(Long.MIN_VALUE));
+        assertEquals(2, index.size());
+        assertEquals("b", index.remove(0));
+        assertNull(index.remove(0));
+        assertFalse(index.containsKey(0));
+        assertTrue(index.containsKey(Long.MIN_VALUE));
+        assertEquals(1, index.size());
+    }
+
+    /**
+     * A cluster of keys homed on the last slot wraps to the start of the table, removing any of them
+     * shifts the ones after it back without losing one
+     */
+    @Test
+    public void backwardShiftAcrossTheEndOfTheTable() {
+        List<Long> lastSlot = keysWithHome(MIN_CAPACITY - 1, 4);
+        List<Long> firstSlot = keysWithHome(0, 2);
+        for (int removed = 0; removed < lastSlot.size() + firstSlot.size(); removed++) {
+            LongHashIndex<Long> index = new LongHashIndex<Long>(1);
+            List<Long> keys = new ArrayList<Long>();
+            // 6 keys stay under the resize threshold of 12
+            keys.addAll(lastSlot);
+            keys.addAll(firstSlot);
+            for (Long key : keys) {
+                index.put(key, key);
+            }
+            Long victim = keys.remove(removed);
+            assertEquals(victim, index.remove(victim));
+            for (Long key : keys) {
+                assertEquals(key, index.get(key));
+            }
+            assertNull(index.get(victim));
+            assertEquals(keys.size(), index.size());
+        }
+    }
+
+    @Test
+    public void matchesAMapUnderRandomOperations() {
+        LongHashIndex<Integer> index = new LongHashIndex<Integer>(2);
+        Map<Long, Integer> model = new HashMap<Long, Integer>();
+        Random random = new Random(7);
+        for (int i = 0; i < 200000; i++) {
+            // a small key space keeps the table dense, with resizes early on and many shifts after
+            long key = random.nextInt(2000) - 1000;
+            switch (random.nextInt(4)) {
+                case 0:
+                    assertEquals(model.put(key, i), index.put(key, i));
+                    break;
+                case 1:
+                    Integer current = model.get(key);
+                    if (current == null) {
+                        model.put(key, i);
+                    }
+                    assertEquals(current, index.putIfAbsent(key, i));
+                    break;
+                case 2:
+                    assertEquals(model.remove(key), index.remove(key));
+                    break;
+                default:
+                    assertEquals(model.get(key), index.get(key));
+            }
+        }
+        assertEquals(model.size(), index.size());
+        final Map<Long, Integer> visited = new HashMap<Long, Integer>();
+        index.forEach(new LongIndex.Visitor<Integer>() {
+            @Override
+            public void visit(long key, Integer value) {
+                visited.put(key, value);
+            }
+        });
+        assertEquals(model, visited);
+    }
+
+    /**
+     * Lock-free readers of keys which never change while a writer resizes the table and shifts entries
+     */
+    @Test
+    public void readersSeeStableKeysDuringResizeAndShifts() throws Exception {
+        final LongHashIndex<Long> index = new LongHashIndex<Long>(1);
+        final int stable = 1000;
+        for (long i = 0; i < stable; i++) {
+            index.put(i, -i);
+        }
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final AtomicInteger reads = new AtomicInteger();
+        Thread[] readers = new Thread[3];
+        for (int t = 0; t < readers.length; t++) {
+            final Random random = new Random(t);
+            readers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!done.get() && failure.get() == null) {
+                        long key = random.nextInt(stable);
+                        Long value = index.get(key);
+                        if (value == null || value != -key) {
+                            failure.set("key " + key + " read " + value);
+                        }
+                        reads.incrementAndGet();
+                    }
+                }
+            });
+            readers[t].start();
+        }
+        // grows the table from 2048 to 262144 slots, then removes every other key
+        for (long i = stable; i < 150000; i++) {
+            index.put(i, i);
+        }
+        for (long i = stable; i < 150000; i += 2) {
+            index.remove(i);
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get());
+        assertTrue(reads.get() > 0);
+        assertEquals(stable + 74500, index.size());
+    }
+
+    private static List<Long> keysWithHome(int home, int count) {
+        List<Long> keys = new ArrayList<Long>();
+        for (long key = 0; keys.size() < count; key++) {
+            if ((LongHashIndex.hash(key) & (MIN_CAPACITY - 1)) == home) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+}
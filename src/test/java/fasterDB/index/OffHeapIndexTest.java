@@ -0,0 +1,251 @@
+package fasterDB.index;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OffHeapIndexTest {
+
+    private static final int MIN_CAPACITY = 16;
+
+    @Test
+    public void keepsEveryEntryOfAHash() {
+        OffHeapIndex index = new OffHeapIndex(4);
+        long hash = OffHeapIndex.hash("key".getBytes(), 3);
+        index.put(hash, 7);
+        index.put(hash, 9);
+        assertArrayEquals(new int[]{7, 9}, sorted(pageIds(index, hash)));
+        // a short dst still gets the count
+        int[] one = new int[1];
+        assertEquals(2, index.get(hash, one));
+
+        assertTrue(index.replace(hash, 7, 8));
+        assertFalse(index.replace(hash, 7, 10));
+        assertArrayEquals(new int[]{8, 9}, sorted(pageIds(index, hash)));
+        assertTrue(index.remove(hash, 9));
+        assertFalse(index.remove(hash, 9));
+        assertArrayEquals(new int[]{8}, pageIds(index, hash));
+        assertEquals(1, index.size());
+        assertEquals(0, index.get(hash + 1, one));
+    }
+
+    /**
+     * A cluster homed on the last slot wraps to the start of the table, removing any entry of it shifts
+     * the ones after it back without losing one
+     */
+    @Test
+    public void backwardShiftAcrossTheEndOfTheTable() {
+        long[] hashes = {
+                hashWithHome(MIN_CAPACITY - 1, 1), hashWithHome(MIN_CAPACITY - 1, 2),
+                hashWithHome(MIN_CAPACITY - 1, 3), hashWithHome(0, 4), hashWithHome(1, 5), hashWithHome(0, 6)};
+        for (int removed = 0; removed < hashes.length; removed++) {
+            OffHeapIndex index = new OffHeapIndex(1);
+            for (int i = 0; i < hashes.length; i++) {
+                index.put(hashes[i], i);
+            }
+            assertTrue(index.remove(hashes[removed], removed));
+            for (int i = 0; i < hashes.length; i++) {
+                assertArrayEquals(i == removed ? new int[0] : new int[]{i}, pageIds(index, hashes[i]));
+            }
+            assertEquals(hashes.length - 1, index.size());
+        }
+    }
+
+    /**
+     * Freed slots are taken again by later entries, a table which neither grows nor shrinks in entries
+     * keeps its direct memory
+     */
+    @Test
+    public void reusesFreedSlots() {
+        OffHeapIndex index = new OffHeapIndex(1);
+        Random random = new Random(3);
+        long[] hashes = new long[10];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = random.nextLong();
+            index.put(hashes[i], i);
+        }
+        long bytes = index.getMemoryBytes();
+        assertEquals(MIN_CAPACITY * 12, bytes);
+        for (int round = 0; round < 10000; round++) {
+            int i = random.nextInt(hashes.length);
+            assertTrue(index.remove(hashes[i], i));
+            hashes[i] = random.nextLong();
+            index.put(hashes[i], i);
+        }
+        assertEquals(bytes, index.getMemoryBytes());
+        assertEquals(hashes.length, index.size());
+        for (int i = 0; i < hashes.length; i++) {
+            assertArrayEquals(new int[]{i}, pageIds(index, hashes[i]));
+        }
+    }
+
+    @Test
+    public void matchesAMapUnderRandomOperations() {
+        OffHeapIndex index = new OffHeapIndex(2);
+        Map<Long, Set<Integer>> model = new HashMap<Long, Set<Integer>>();
+        Random random = new Random(11);
+        int size = 0;
+        for (int i = 0; i < 100000; i++) {
+            // few distinct hashes and page ids make duplicates and misses common
+            long hash = ((long) random.nextInt(4) << 62) | random.nextInt(500);
+            int pageId = random.nextInt(4);
+            Set<Integer> pageIds = model.get(hash);
+            if (pageIds == null) {
+                model.put(hash, pageIds = new HashSet<Integer>());
+            }
+            switch (random.nextInt(4)) {
+                case 0:
+                    if (pageIds.add(pageId)) {
+                        index.put(hash, pageId);
+                        size++;
+                    }
+                    break;
+                case 1:
+                    int newPageId = 4 + random.nextInt(4);
+                    boolean present = pageIds.contains(pageId) && !pageIds.contains(newPageId);
+                    if (present) {
+                        pageIds.remove(pageId);
+                        pageIds.add(newPageId);
+                        assertTrue(index.replace(hash, pageId, newPageId));
+                    } else if (!pageIds.contains(pageId)) {
+                        assertFalse(index.replace(hash, pageId, newPageId));
+                    }
+                    break;
+                case 2:
+                    boolean removed = pageIds.remove(pageId);
+                    assertEquals(removed, index.remove(hash, pageId));
+                    if (removed) {
+                        size--;
+                    }
+                    break;
+                default:
+                    assertEquals(pageIds, toSet(pageIds(index, hash)));
+            }
+        }
+        assertEquals(size, index.size());
+        final Map<Long, Set<Integer>> visited = new HashMap<Long, Set<Integer>>();
+        index.forEach(new OffHeapIndex.Visitor() {
+            @Override
+            public void visit(long hash, int firstPageId) {
+                Set<Integer> pageIds = visited.get(hash);
+                if (pageIds == null) {
+                    visited.put(hash, pageIds = new HashSet<Integer>());
+                }
+                pageIds.add(firstPageId);
+            }
+        });
+        for (Map.Entry<Long, Set<Integer>> entry : model.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                assertEquals(entry.getValue(), visited.remove(entry.getKey()));
+            }
+        }
+        assertTrue(visited.isEmpty());
+    }
+
+    @Test
+    public void versionIsOddDuringAnUpdate() {
+        OffHeapIndex index = new OffHeapIndex(1);
+        long hash = 42;
+        index.put(hash, 1);
+        int version = index.version(hash);
+        assertEquals(0, version & 1);
+        long stamp = index.beginUpdate(hash);
+        assertEquals(1, index.version(hash) & 1);
+        index.endUpdate(hash, stamp);
+        assertEquals(version + 2, index.version(hash));
+    }
+
+    /**
+     * Readers of hashes which never change while a writer resizes the segments and shifts entries
+     */
+    @Test
+    public void readersSeeStableEntriesDuringResizeAndShifts() throws Exception {
+        final OffHeapIndex index = new OffHeapIndex(2);
+        final int stable = 1000;
+        for (int i = 0; i < stable; i++) {
+            index.put(stableHash(i), i);
+        }
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final AtomicInteger reads = new AtomicInteger();
+        Thread[] readers = new Thread[3];
+        for (int t = 0; t < readers.length; t++) {
+            final Random random = new Random(t);
+            readers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int[] dst = new int[2];
+                    while (!done.get() && failure.get() == null) {
+                        int i = random.nextInt(stable);
+                        int count = index.get(stableHash(i), dst);
+                        if (count != 1 || dst[0] != i) {
+                            failure.set("entry " + i + " read " + count + " " + dst[0]);
+                        }
+                        reads.incrementAndGet();
+                    }
+                }
+            });
+            readers[t].start();
+        }
+        Random random = new Random(5);
+        long[] churn = new long[100000];
+        for (int i = 0; i < churn.length; i++) {
+            // odd hashes, stable ones are even
+            churn[i] = random.nextLong() | 1;
+            index.put(churn[i], i);
+        }
+        for (int i = 0; i < churn.length; i += 2) {
+            assertTrue(index.remove(churn[i], i));
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get());
+        assertTrue(reads.get() > 0);
+        assertEquals(stable + churn.length / 2, index.size());
+    }
+
+    private static long stableHash(int i) {
+        return OffHeapIndex.hash(Integer.toString(i).getBytes(), Integer.toString(i).length()) & ~1L;
+    }
+
+    /**
+     * Distinct hashes with the same home slot in a single segment of the minimum capacity
+     */
+    private static long hashWithHome(int home, int tag) {
+        return ((long) tag << 32) | home;
+    }
+
+    private static int[] pageIds(OffHeapIndex index, long hash) {
+        int[] dst = new int[8];
+        return Arrays.copyOf(dst, index.get(hash, dst));
+    }
+
+    private static int[] sorted(int[] values) {
+        Arrays.sort(values);
+        return values;
+    }
+
+    private static Set<Integer> toSet(int[] values) {
+        Set<Integer> set = new HashSet<Integer>();
+        for (int value : values) {
+            set.add(value);
+        }
+        return set;
+    }
+}
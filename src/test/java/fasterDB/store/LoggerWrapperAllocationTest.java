@@ -0,0 +1,110 @@
+package fasterDB.store;
+
+import fasterDB.DB;
+import fasterDB.vo.Config;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Bytes allocated on the heap per redo record and per put, measured with the allocation counter of the
+ * thread. Records are encoded into reused direct buffers, so logging should allocate next to nothing.
+ */
+public class LoggerWrapperAllocationTest {
+
+    private static final int WARMUP = 20000;
+    private static final int COUNT = 100000;
+    private static final int CACHE_ENTRY_SIZE = 24;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private com.sun.management.ThreadMXBean threads;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    public void logAllocatesNothingPerRecord() throws Exception {
+        LoggerWrapper logger = new LoggerWrapper(config(folder.newFolder().getPath()));
+        try {
+            byte[] keyBytes = new byte[255];
+            byte[] valueBytes = new byte[100];
+            for (int i = 0; i < WARMUP; i++) {
+                logger.log(false, (byte) 1, keyBytes, 16, valueBytes);
+            }
+            long before = allocatedBytes();
+            for (int i = 0; i < COUNT; i++) {
+                logger.log(false, (byte) 1, keyBytes, 16, valueBytes);
+            }
+            double perRecord = (double) (allocatedBytes() - before) / COUNT;
+            assertTrue("allocated " + perRecord + " bytes per record", perRecord < 1);
+        } finally {
+            logger.close();
+        }
+    }
+
+    @Test
+    public void putAllocation() throws Throwable {
+        DB<String, byte[]> db = new DB<String, byte[]>(config(folder.newFolder().getPath()));
+        db.initialize();
+        try {
+            String[] keys = new String[1024];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = "key-" + i;
+            }
+            byte[] value = new byte[100];
+            for (int i = 0; i < WARMUP; i++) {
+                db.put(keys[i & 1023], value);
+            }
+            long before = allocatedBytes();
+            for (int i = 0; i < COUNT; i++) {
+                db.put(keys[i & 1023], value);
+            }
+            double perPut = (double) (allocatedBytes() - before) / COUNT;
+            // the key encoding, the redo record and the new pages allocate nothing, what is left is
+            // the 24 byte entry which the value cache keeps for the value
+            assertTrue("allocated " + perPut + " bytes per put", perPut < CACHE_ENTRY_SIZE + 1);
+        } finally {
+            db.close();
+        }
+    }
+
+    private long allocatedBytes() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Config<byte[]> config(String dir) {
+        Config.Builder builder = Config.builder();
+        builder.dataPath(dir);
+        builder.redoLogPath(dir);
+        builder.keyType(Config.KeyType.STRING);
+        builder.valueCodec(new Config.Codec<byte[]>() {
+            public byte[] toBytes(byte[] value) {
+                return value;
+            }
+
+            public byte[] toObject(byte[] bytes) {
+                return bytes;
+            }
+
+            public boolean equals(byte[] v1, byte[] v2) {
+                return java.util.Arrays.equals(v1, v2);
+            }
+        });
+        return builder.build();
+    }
+}
@@ -0,0 +1,127 @@
+package fasterDB.store;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class MappedLoggerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(timeout = 10000)
+    public void appendersAfterAFailedAppendGoOn() throws Exception {
+        File dir = folder.newFolder();
+        FailingLogger logger = new FailingLogger(dir, "0.redo");
+        logger.log(record(1));
+        logger.failing = record(99);
+        try {
+            logger.log(logger.failing);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        // a batch failing after its first buffer was copied
+        logger.failing = record(98);
+        try {
+            logger.log(new ByteBuffer[] {record(97), logger.failing}, 2);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        logger.log(record(2));
+        logger.flush();
+
+        assertRecords(replay(logger), 1, 2);
+        logger.close();
+        ChannelLogger channelLogger = new ChannelLogger(new File(dir, "0.redo"));
+        try {
+            assertRecords(replay(channelLogger), 1, 2);
+        } finally {
+            channelLogger.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void concurrentAppendersSurviveFailures() throws Exception {
+        final FailingLogger logger = new FailingLogger(folder.newFolder(), "0.redo");
+        final ByteBuffer failing = record(-1);
+        logger.failing = failing;
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        try {
+                            logger.log(i % 10 == 0 ? failing.duplicate() : record(thread * 1000 + i));
+                        } catch (IllegalStateException expected) {
+                        } catch (IOException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(threads.length * 900, replay(logger).size());
+        logger.close();
+    }
+
+    /**
+     * Fails the copy of one buffer, after half of it was written
+     */
+    private static final class FailingLogger extends MappedLogger {
+        volatile ByteBuffer failing;
+
+        FailingLogger(File parentPath, String filename) throws IOException {
+            super(parentPath, filename, 1 << 20);
+        }
+
+        @Override
+        void copy(ByteBuffer src, int offset) {
+            ByteBuffer failing = this.failing;
+            if (failing != null && src.getInt(src.position() + 4) == failing.getInt(4)) {
+                ByteBuffer half = src.duplicate();
+                half.limit(half.position() + half.remaining() / 2);
+                super.copy(half, offset);
+                throw new IllegalStateException("copy failed");
+            }
+            super.copy(src, offset);
+        }
+    }
+
+    private static ByteBuffer record(int value) {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putInt(0, 4);
+        buffer.putInt(4, value);
+        return buffer;
+    }
+
+    private static void assertRecords(List<Integer> records, Integer... expected) {
+        assertEquals(Arrays.asList(expected), records);
+    }
+
+    private static List<Integer> replay(Logger logger) throws Exception {
+        final List<Integer> records = new ArrayList<Integer>();
+        logger.redo(new Logger.Reader() {
+            @Override
+            public void read(byte[] bytes) {
+                records.add(ByteBuffer.wrap(bytes).getInt());
+            }
+        }, 0);
+        return records;
+    }
+}
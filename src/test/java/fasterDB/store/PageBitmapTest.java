@@ -0,0 +1,122 @@
+package fasterDB.store;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PageBitmapTest {
+
+    private static final int PAGES_PER_CHUNK = 1 << 23;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void restoresACompleteMap() throws Exception {
+        String dir = folder.getRoot().getPath();
+        PageBitmap bitmap = new PageBitmap(dir, "data.bitmap", false);
+        assertFalse(bitmap.isRestored());
+        bitmap.set(3);
+        bitmap.set(PAGES_PER_CHUNK + 5);
+        bitmap.clear(3);
+        bitmap.set(7);
+        bitmap.markComplete();
+        bitmap.close();
+
+        bitmap = new PageBitmap(dir, "data.bitmap", false);
+        try {
+            assertTrue(bitmap.isRestored());
+            assertFalse(bitmap.get(3));
+            assertTrue(bitmap.get(7));
+            assertTrue(bitmap.get(PAGES_PER_CHUNK + 5));
+            assertFalse(bitmap.get(3 * PAGES_PER_CHUNK));
+        } finally {
+            bitmap.close();
+        }
+    }
+
+    /**
+     * What a crash in the middle of a build leaves is built again from nothing
+     */
+    @Test
+    public void buildsAnIncompleteMapAgain() throws Exception {
+        String dir = folder.getRoot().getPath();
+        PageBitmap bitmap = new PageBitmap(dir, "data.bitmap", false);
+        bitmap.set(11);
+        bitmap.force();
+        bitmap.close();
+
+        bitmap = new PageBitmap(dir, "data.bitmap", false);
+        try {
+            assertFalse(bitmap.isRestored());
+            assertFalse(bitmap.get(11));
+        } finally {
+            bitmap.close();
+        }
+        assertTrue(new File(dir, "data.bitmap").isFile());
+    }
+
+    @Test
+    public void deletesTheMarkerWithTheMap() throws Exception {
+        String dir = folder.getRoot().getPath();
+        PageBitmap bitmap = new PageBitmap(dir, "data.bitmap", false);
+        bitmap.markComplete();
+        bitmap.close();
+
+        bitmap = new PageBitmap(dir, "data.bitmap", true);
+        bitmap.close();
+        bitmap = new PageBitmap(dir, "data.bitmap", false);
+        bitmap.close();
+        assertFalse(bitmap.isRestored());
+    }
+
+    /**
+     * Readers take no lock while writers add chunks
+     */
+    @Test
+    public void readersSeeBitsWhileChunksAreAdded() throws Exception {
+        final PageBitmap bitmap = new PageBitmap(folder.getRoot().getPath(), "data.bitmap", false);
+        final int chunks = 8;
+        final AtomicInteger written = new AtomicInteger(-1);      // chunks whose first page is set
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!done.get() && failure.get() == null) {
+                    int last = written.get();
+                    for (int chunk = 0; chunk <= last; chunk++) {
+                        if (!bitmap.get(chunk * PAGES_PER_CHUNK)) {
+                            failure.set("page of chunk " + chunk + " is not set");
+                        }
+                    }
+                    if (bitmap.get(chunks * PAGES_PER_CHUNK + 1)) {
+                        failure.set("page out of the chunks is set");
+                    }
+                }
+            }
+        });
+        reader.start();
+        try {
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                bitmap.set(chunk * PAGES_PER_CHUNK);
+                written.set(chunk);
+                bitmap.force();
+            }
+        } finally {
+            done.set(true);
+            reader.join();
+            bitmap.close();
+        }
+        assertNull(failure.get());
+    }
+}
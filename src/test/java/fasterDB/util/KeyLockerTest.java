@@ -0,0 +1,161 @@
+package fasterDB.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A single stripe, so every pair of keys collides
+ */
+public class KeyLockerTest {
+
+    @Test
+    public void nestsDistinctKeysOfOneStripe() {
+        KeyLocker locker = new KeyLocker(1);
+        locker.lockShared("a");
+        locker.lock("b");
+        locker.lockShared(1L);
+        locker.lock(2L);
+        locker.unLock(2L);
+        locker.unLockShared(1L);
+        locker.unLock("b");
+        locker.unLockShared("a");
+
+        locker.lock("a");
+        locker.lock("b");
+        locker.unLock("a");
+        locker.unLock("b");
+    }
+
+    @Test
+    public void reentersAKey() {
+        KeyLocker locker = new KeyLocker(1);
+        locker.lock("a");
+        locker.lock("a");
+        locker.lockShared("a");
+        locker.unLockShared("a");
+        locker.unLock("a");
+        locker.unLock("a");
+        locker.lockShared("a");
+        locker.lockShared("a");
+        locker.unLockShared("a");
+        locker.unLockShared("a");
+        assertTrue(lockedByAnotherThread(locker, "a", 1000));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void refusesToUpgradeAKey() {
+        KeyLocker locker = new KeyLocker(1);
+        locker.lockShared("a");
+        locker.lock("a");
+    }
+
+    @Test(expected = IllegalMonitorStateException.class)
+    public void refusesToUnlockAKeyNotHeld() {
+        new KeyLocker(1).unLock("a");
+    }
+
+    @Test
+    public void collidingKeysDoNotWaitForEachOther() throws Exception {
+        KeyLocker locker = new KeyLocker(1);
+        locker.lock("a");
+        try {
+            assertTrue(lockedByAnotherThread(locker, "b", 1000));
+            assertFalse(lockedByAnotherThread(locker, "a", 100));
+        } finally {
+            locker.unLock("a");
+        }
+    }
+
+    @Test
+    public void sharedHoldersShareAndExcludeWriters() throws Exception {
+        KeyLocker locker = new KeyLocker(1);
+        locker.lockShared("a");
+        try {
+            final KeyLocker l = locker;
+            final CountDownLatch shared = new CountDownLatch(1);
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    l.lockShared("a");
+                    l.unLockShared("a");
+                    shared.countDown();
+                }
+            });
+            reader.start();
+            assertTrue(shared.await(1, TimeUnit.SECONDS));
+            assertFalse(lockedByAnotherThread(locker, "a", 100));
+        } finally {
+            locker.unLockShared("a");
+        }
+    }
+
+    @Test
+    public void excludesConcurrentHoldersOfAKey() throws Exception {
+        final KeyLocker locker = new KeyLocker(4);
+        final int[] counters = new int[8];
+        final AtomicInteger inside = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        long key = i % counters.length;
+                        locker.lock(key);
+                        try {
+                            if (key == 0 && inside.incrementAndGet() > 1) {
+                                overlaps.incrementAndGet();
+                            }
+                            counters[(int) key]++;
+                            if (key == 0) {
+                                inside.decrementAndGet();
+                            }
+                        } finally {
+                            locker.unLock(key);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, overlaps.get());
+        for (int counter : counters) {
+            assertEquals(threads.length * 20000 / counters.length, counter);
+        }
+    }
+
+    /**
+     * @return true if another thread locked and unlocked the key exclusively within the time
+     */
+    private static boolean lockedByAnotherThread(final KeyLocker locker, final Object key, long millis) {
+        final CountDownLatch locked = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                locker.lock(key);
+                locker.unLock(key);
+                locked.countDown();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        try {
+            return locked.await(millis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            fail();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package fasterDB.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PageIdAllocatorTest {
+
+    @Test
+    public void handsOutNewIdsInAscendingOrder() {
+        PageIdAllocator allocator = new PageIdAllocator(5, null, 4, false);
+        for (int id = 5; id < 15; id++) {
+            assertArrayEquals(new int[]{id}, allocator.borrowIds(1));
+        }
+        // the third batch of 4 was taken
+        assertEquals(17, allocator.nextNewId());
+    }
+
+    @Test
+    public void reusesTheIdsReturnedToTheMagazine() {
+        PageIdAllocator allocator = new PageIdAllocator(0, null, 4, false);
+        int[] ids = borrowOneByOne(allocator, 8);
+        int next = allocator.nextNewId();
+        allocator.returnIds(ids);
+        Set<Integer> reborrowed = toSet(borrowOneByOne(allocator, 8));
+        assertEquals(toSet(ids), reborrowed);
+        assertEquals(next, allocator.nextNewId());
+    }
+
+    /**
+     * A full magazine goes to the depot, where the magazine of another thread is refilled from
+     */
+    @Test
+    public void exchangesFullMagazinesThroughTheDepot() throws Exception {
+        final PageIdAllocator allocator = new PageIdAllocator(0, null, 4, false);
+        final int[] ids = borrowOneByOne(allocator, 12);
+        int next = allocator.nextNewId();
+        // 12 ids fill the magazine twice over, two magazines are spilled to the depot
+        allocator.returnIds(ids);
+        final int[][] borrowed = new int[1][];
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                borrowed[0] = borrowOneByOne(allocator, 8);
+            }
+        });
+        other.start();
+        other.join();
+        assertEquals(next, allocator.nextNewId());
+        Set<Integer> all = toSet(ids);
+        for (int id : borrowed[0]) {
+            assertTrue(all.contains(id));
+        }
+        assertEquals(8, toSet(borrowed[0]).size());
+    }
+
+    @Test
+    public void refillsWithTheLowestFreeIds() {
+        PageIdAllocator allocator = new PageIdAllocator(0, null, 4, true);
+        borrowOneByOne(allocator, 8);
+        allocator.returnId(5);
+        allocator.returnId(2);
+        assertEquals(2, allocator.freeCount());
+        assertArrayEquals(new int[]{2}, allocator.borrowIds(1));
+        assertArrayEquals(new int[]{5}, allocator.borrowIds(1));
+        assertArrayEquals(new int[]{8}, allocator.borrowIds(1));
+    }
+
+    @Test
+    public void startsWithTheFreeIdsOfTheBitmap() {
+        // ids 1, 3 and 64 of 70 are free, bits from 70 on are ignored
+        long[] freePageBits = {(1L << 1) | (1L << 3), 1L | (1L << 10)};
+        PageIdAllocator allocator = new PageIdAllocator(70, freePageBits, 4, false);
+        assertEquals(3, allocator.freeCount());
+        assertEquals(toSet(new int[]{1, 3, 64}), toSet(borrowOneByOne(allocator, 3)));
+        assertArrayEquals(new int[]{70}, allocator.borrowIds(1));
+    }
+
+    /**
+     * Ids cached in the magazines and the depot, and the magazines of finished threads, which are moved
+     * to the free bitmap
+     */
+    @Test
+    public void recycledIdsSeeEveryTier() throws Exception {
+        final PageIdAllocator allocator = new PageIdAllocator(0, null, 4, false);
+        final int[] ids = borrowOneByOne(allocator, 8);
+        Thread finished = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                allocator.returnIds(Arrays.copyOfRange(ids, 0, 3));
+            }
+        });
+        finished.start();
+        finished.join();
+        // 5 ids: a full magazine goes to the depot, 1 stays in the magazine
+        allocator.returnIds(Arrays.copyOfRange(ids, 3, 8));
+        assertEquals(toSet(ids), toSet(allocator.recycledIds()));
+        assertEquals(3, allocator.freeCount());
+    }
+
+    @Test
+    public void neverIssuesAnIdTwiceToConcurrentBorrowers() throws Exception {
+        for (final boolean lowestFirst : new boolean[]{false, true}) {
+            final PageIdAllocator allocator = new PageIdAllocator(0, null, 8, lowestFirst);
+            final Set<Integer> issued = ConcurrentHashMap.newKeySet();
+            final AtomicReference<String> failure = new AtomicReference<String>();
+            int threadCount = 4;
+            final CountDownLatch done = new CountDownLatch(threadCount);
+            for (int t = 0; t < threadCount; t++) {
+                final Random random = new Random(t);
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            List<int[]> held = new ArrayList<int[]>();
+                            for (int i = 0; i < 50000 && failure.get() == null; i++) {
+                                if (held.size() < 16 && random.nextBoolean()) {
+                                    int[] ids = allocator.borrowIds(1 + random.nextInt(3));
+                                    for (int id : ids) {
+                                        if (!issued.add(id)) {
+                                            failure.set("id " + id + " issued twice");
+                                        }
+                                    }
+                                    held.add(ids);
+                                } else if (!held.isEmpty()) {
+                                    int[] ids = held.remove(random.nextInt(held.size()));
+                                    for (int id : ids) {
+                                        issued.remove(id);
+                                    }
+                                    allocator.returnIds(ids);
+                                }
+                            }
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }).start();
+            }
+            done.await();
+            assertNull(failure.get());
+            // at most 16 borrows of 3 ids are held by each thread, the rest keeps being reused
+            assertTrue(allocator.nextNewId() < 1000);
+        }
+    }
+
+    @Test
+    public void takesARunOfNewIds() {
+        PageIdAllocator allocator = new PageIdAllocator(0, null, 4, false);
+        assertArrayEquals(new int[]{0, 1, 2}, allocator.borrowIds(3));
+        assertEquals(3, allocator.nextNewId());
+        assertEquals(1, allocator.getMultiPageBorrowCount());
+        assertEquals(1, allocator.getContiguousBorrowCount());
+    }
+
+    @Test
+    public void takesARunFromTheTopOfTheMagazine() {
+        PageIdAllocator allocator = new PageIdAllocator(0, null, 4, false);
+        int[] run = allocator.borrowIds(3);
+        allocator.returnIds(run);
+        assertArrayEquals(run, allocator.borrowIds(3));
+        assertEquals(3, allocator.nextNewId());
+    }
+
+    /**
+     * Leftovers which would split the run go to the free bitmap, the magazine is refilled from the depot
+     */
+    @Test
+    public void spillsTheMagazineForARunFromTheDepot() throws Exception {
+        final PageIdAllocator allocator = new PageIdAllocator(0, null, 4, false);
+        final int[] ids = borrowOneByOne(allocator, 8);
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // ids 0 to 3 go to the depot
+                allocator.returnIds(Arrays.copyOfRange(ids, 0, 5));
+            }
+        });
+        other.start();
+        other.join();
+        allocator.returnId(7);
+        assertArrayEquals(new int[]{1, 2, 3}, allocator.borrowIds(3));
+        assertEquals(1, allocator.freeCount());
+        assertEquals(8, allocator.nextNewId());
+    }
+
+    @Test
+    public void claimsARunOfTheFreeBitmap() {
+        long[] freePageBits = {(1L << 2) | (1L << 5) | (1L << 6) | (1L << 7) | (1L << 10)};
+        PageIdAllocator allocator = new PageIdAllocator(20, freePageBits, 4, true);
+        assertArrayEquals(new int[]{5, 6, 7}, allocator.borrowIds(3));
+        assertEquals(2, allocator.freeCount());
+        assertEquals(20, allocator.nextNewId());
+    }
+
+    @Test
+    public void takesAFreshExtentWhenTooFewIdsAreFree() {
+        PageIdAllocator allocator = new PageIdAllocator(20, new long[]{1L << 2}, 4, true);
+        assertArrayEquals(new int[]{20, 21}, allocator.borrowIds(2));
+        assertEquals(1, allocator.freeCount());
+        assertArrayEquals(new int[]{2}, allocator.borrowIds(1));
+    }
+
+    @Test
+    public void borrowsLowIdsBelowTheBound() {
+        long[] freePageBits = {(1L << 10) | (1L << 11) | (1L << 12) | (1L << 50), 1L << (90 - 64)};
+        PageIdAllocator allocator = new PageIdAllocator(100, freePageBits, 4, false);
+        assertArrayEquals(new int[]{10, 11, 12}, allocator.borrowLowIds(3, 40));
+        assertNull(allocator.borrowLowIds(2, 60));
+        assertEquals(2, allocator.freeCount());
+        assertArrayEquals(new int[]{50}, allocator.borrowLowIds(1, 95));
+        assertNull(allocator.borrowLowIds(1, 90));
+        assertArrayEquals(new int[]{90}, allocator.borrowLowIds(1, 91));
+    }
+
+    @Test
+    public void truncatesTheFreeTopToTheAlignment() {
+        PageIdAllocator allocator = new PageIdAllocator(0, null, 4, false);
+        int[] ids = borrowOneByOne(allocator, 8);
+        // 5 to 7 are free, the top from 5 is not a multiple of 4
+        allocator.returnIds(Arrays.copyOfRange(ids, 5, 8));
+        assertEquals(8, allocator.truncate(4, null));
+        assertEquals(8, allocator.nextNewId());
+        assertEquals(3, allocator.freeCount());
+
+        allocator.returnId(4);
+        final int[] limits = {-1, -1};
+        assertEquals(4, allocator.truncate(4, new PageIdAllocator.Truncation() {
+            public void before(int limit) {
+                limits[0] = limit;
+            }
+
+            public void cancelled(int limit) {
+                limits[1] = limit;
+            }
+        }));
+        assertArrayEquals(new int[]{4, -1}, limits);
+        assertEquals(4, allocator.nextNewId());
+        assertEquals(0, allocator.freeCount());
+        assertArrayEquals(new int[]{4}, allocator.borrowIds(1));
+    }
+
+    /**
+     * A borrow of new ids between the claim of the top and the move of the limit cancels the truncation,
+     * the top stays free and the new ids are above it
+     */
+    @Test
+    public void cancelsTheTruncationWhenNewIdsAreBorrowed() throws Exception {
+        final PageIdAllocator allocator = new PageIdAllocator(0, null, 4, false);
+        int[] ids = borrowOneByOne(allocator, 8);
+        allocator.returnIds(Arrays.copyOfRange(ids, 4, 8));
+        final int[] borrowed = new int[1];
+        final int[] limits = {-1, -1};
+        assertEquals(8, allocator.truncate(4, new PageIdAllocator.Truncation() {
+            public void before(int limit) {
+                limits[0] = limit;
+                Thread other = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        borrowed[0] = allocator.borrowIds(1)[0];
+                    }
+                });
+                other.start();
+                try {
+                    other.join();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+
+            public void cancelled(int limit) {
+                limits[1] = limit;
+            }
+        }));
+        assertArrayEquals(new int[]{4, 4}, limits);
+        assertEquals(8, borrowed[0]);
+        assertEquals(12, allocator.nextNewId());
+        assertEquals(4, allocator.freeCount());
+        assertEquals(toSet(Arrays.copyOfRange(ids, 4, 8)), toSet(borrowOneByOne(allocator, 4)));
+    }
+
+    static int[] borrowOneByOne(PageIdAllocator allocator, int count) {
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = allocator.borrowIds(1)[0];
+        }
+        return ids;
+    }
+
+    static Set<Integer> toSet(int[] ids) {
+        Set<Integer> set = new HashSet<Integer>();
+        for (int id : ids) {
+            set.add(id);
+        }
+        return set;
+    }
+}